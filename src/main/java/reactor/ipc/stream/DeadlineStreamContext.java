@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+/**
+ * A per-stream view of the connection {@link StreamContext} carrying the deadline set
+ * by the remote when the stream was opened.
+ */
+final class DeadlineStreamContext<T> implements StreamContext<T> {
+
+	final StreamContext<T> parent;
+
+	final long deadline;
+
+	DeadlineStreamContext(StreamContext<T> parent, long deadline) {
+		this.parent = parent;
+		this.deadline = deadline;
+	}
+
+	@Override
+	public void set(CharSequence attribute, Object o) {
+		parent.set(attribute, o);
+	}
+
+	@Override
+	public <U> U get(CharSequence attribute) {
+		return parent.get(attribute);
+	}
+
+	@Override
+	public <U> U get(CharSequence attribute, U defaultValue) {
+		return parent.get(attribute, defaultValue);
+	}
+
+	@Override
+	public void remove(CharSequence attribute) {
+		parent.remove(attribute);
+	}
+
+	@Override
+	public boolean has(CharSequence attribute) {
+		return parent.has(attribute);
+	}
+
+	@Override
+	public T remoteAPI() {
+		return parent.remoteAPI();
+	}
+
+	@Override
+	public long deadline() {
+		return deadline;
+	}
+}
@@ -29,4 +29,48 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface Ipc {
 	String name() default "";
+
+	/**
+	 * Replay window in milliseconds of a server function only taking a
+	 * {@link StreamContext}. When positive, the function is invoked once per service
+	 * instance and its encoded values are replayed to every stream opened within the
+	 * window, the first stream opened after the window invokes it again. Values are
+	 * only replayed to connections encoding them alike, the function is invoked for
+	 * every stream of a connection whose encoded values cannot be shared. Zero
+	 * invokes the function for every new stream.
+	 *
+	 * @return the replay window in milliseconds
+	 */
+	long replay() default 0L;
+
+	/**
+	 * Time budget in milliseconds of a client function, propagated to the remote when a
+	 * stream is opened. The remote exposes it as {@link StreamContext#deadline()} and
+	 * abandons the stream once it is exceeded. Functions returning values also fail
+	 * locally with a {@link java.util.concurrent.TimeoutException} once it is
+	 * exceeded, functions only sending values rely on the remote to enforce it. Zero
+	 * does not propagate any budget.
+	 *
+	 * @return the time budget in milliseconds
+	 */
+	long timeout() default 0L;
+
+	/**
+	 * Priority of the frames of a client stream, from {@link StreamPriority#HIGHEST} to
+	 * {@link StreamPriority#LOWEST}, propagated to the remote when a stream is opened.
+	 * Frames of more urgent streams are written first.
+	 *
+	 * @return the stream priority
+	 * @see StreamPriority
+	 */
+	int priority() default StreamPriority.DEFAULT_PRIORITY;
+
+	/**
+	 * Share of the connection given to a client stream among the streams of the same
+	 * {@link #priority()}, 1 to {@link StreamPriority#MAX_WEIGHT}.
+	 *
+	 * @return the stream weight
+	 * @see StreamPriority
+	 */
+	int weight() default StreamPriority.DEFAULT_WEIGHT;
 }
\ No newline at end of file
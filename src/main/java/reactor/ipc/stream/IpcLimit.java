@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Bounds the number of concurrent streams a server accepts. Applied to an {@link Ipc}
+ * method, the limit is shared by every connection invoking that function; applied to
+ * the service class, each connection gets its own limit across all functions.
+ * <p>New streams above the limit are cancelled right away with an "overloaded" reason
+ * and fail on the remote with a {@link java.util.concurrent.RejectedExecutionException}
+ * so that it can retry elsewhere instead of queueing.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface IpcLimit {
+
+	/**
+	 * @return the concurrent stream limit, or the initial limit when adaptive
+	 */
+	int value();
+
+	/**
+	 * @return how the limit adapts to the observed stream latency
+	 */
+	Adaptive adaptive() default Adaptive.NONE;
+
+	/**
+	 * @return the lower bound of an adaptive limit
+	 */
+	int min() default 1;
+
+	/**
+	 * @return the upper bound of an adaptive limit
+	 */
+	int max() default 1000;
+
+	/**
+	 * @return the stream latency in milliseconds above which an {@link Adaptive#AIMD}
+	 * limit decreases
+	 */
+	long latency() default 100L;
+
+	enum Adaptive {
+		/**
+		 * Static limit.
+		 */
+		NONE,
+		/**
+		 * Additive increase while streams complete under {@link #latency()},
+		 * multiplicative decrease when they exceed it or are cancelled by the remote.
+		 */
+		AIMD,
+		/**
+		 * Scales the limit by the ratio between the minimum and the current latency.
+		 */
+		GRADIENT
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Decouples the demand sent to the remote from the requests of the local subscriber of
+ * a received stream. The remote is asked for {@link #value()} values ahead, buffered
+ * until requested locally, and asked for more every time {@link #refill()} percent of
+ * them were delivered, instead of forwarding each local request as it comes.
+ * <p>Can be applied to incoming and outgoing service interfaces, it only affects the
+ * values the annotated side receives.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface IpcPrefetch {
+
+	/**
+	 * @return the amount of values requested ahead from the remote
+	 */
+	int value() default 256;
+
+	/**
+	 * @return the percentage of {@link #value()} to deliver locally before requesting
+	 * the same amount again
+	 */
+	int refill() default 75;
+
+	/**
+	 * When true, {@link #value()} is only the initial amount. It is then resized on
+	 * every refill to about twice the bandwidth-delay product of the stream, that is
+	 * the local consumption rate times the round trip between a request and the first
+	 * value it covers, within {@link #min()} and {@link #max()}.
+	 *
+	 * @return true if the requested amount adapts to the stream
+	 */
+	boolean adaptive() default false;
+
+	/**
+	 * @return the lower bound of an adaptive amount
+	 */
+	int min() default 16;
+
+	/**
+	 * @return the upper bound of an adaptive amount
+	 */
+	int max() default 4096;
+}
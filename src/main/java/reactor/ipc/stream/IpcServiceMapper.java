@@ -19,19 +19,26 @@ package reactor.ipc.stream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 
 import org.reactivestreams.Publisher;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import reactor.core.CoreSubscriber;
+import reactor.core.Disposable;
+import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Schedulers;
 import reactor.util.Logger;
 import reactor.util.Loggers;
 import reactor.util.context.Context;
@@ -113,21 +120,29 @@ abstract class IpcServiceMapper {
 					name = aname;
 				}
 
+				StreamPrefetch prefetch =
+						StreamPrefetch.from(m.getAnnotation(IpcPrefetch.class));
+
 				Class<?> rt = m.getReturnType();
 
+				if (a.replay() > 0 && (!Publisher.class.isAssignableFrom(rt) || m.getParameterCount() != 1)) {
+					throw new IllegalStateException(
+							"Ipc replay requires a method returning a Publisher and only accepting a StreamContext: " + m);
+				}
+
 				if (rt == Void.TYPE) {
 					int pc = m.getParameterCount();
 					if (pc == 2) {
 						if (StreamContext.class.isAssignableFrom(m.getParameterTypes()[0])) {
 							if (Publisher.class.isAssignableFrom(m.getParameterTypes()[1])) {
 								if (Flux.class.equals(m.getParameterTypes()[1])) {
-									result.put(name, new IpcServerReceiveFlux(m, api));
+									result.put(name, new IpcServerReceiveFlux(m, api, prefetch));
 								}
 								else if (Mono.class.equals(m.getParameterTypes()[1])) {
-									result.put(name, new IpcServerReceiveMono(m, api));
+									result.put(name, new IpcServerReceiveMono(m, api, prefetch));
 								}
 								else {
-									result.put(name, new IpcServerReceive(m, api));
+									result.put(name, new IpcServerReceive(m, api, prefetch));
 								}
 							}
 							else {
@@ -149,7 +164,7 @@ abstract class IpcServiceMapper {
 					int pc = m.getParameterCount();
 					if (pc == 1) {
 						if (StreamContext.class.isAssignableFrom(m.getParameterTypes()[0])) {
-							result.put(name, new IpcServerSend(m, api));
+							result.put(name, new IpcServerSend(m, api, a.replay()));
 						}
 						else {
 							throw new IllegalStateException(
@@ -160,13 +175,13 @@ abstract class IpcServiceMapper {
 						if (StreamContext.class.isAssignableFrom(m.getParameterTypes()[0])) {
 							if (Publisher.class.isAssignableFrom(m.getParameterTypes()[1])) {
 								if (Flux.class.equals(m.getParameterTypes()[1])) {
-									result.put(name, new IpcServerMapFlux(m, api));
+									result.put(name, new IpcServerMapFlux(m, api, prefetch));
 								}
 								else if (Mono.class.equals(m.getParameterTypes()[1])) {
-									result.put(name, new IpcServerMapMono(m, api));
+									result.put(name, new IpcServerMapMono(m, api, prefetch));
 								}
 								else {
-									result.put(name, new IpcServerMap(m, api));
+									result.put(name, new IpcServerMap(m, api, prefetch));
 								}
 							}
 							else {
@@ -194,6 +209,29 @@ abstract class IpcServiceMapper {
 		return result;
 	}
 
+	public static Map<String, StreamLimiter> serverLimits(Object api) {
+		Map<String, StreamLimiter> result = new HashMap<>();
+
+		for (Method m : api.getClass()
+		                   .getMethods()) {
+			if (m.isAnnotationPresent(Ipc.class) && m.isAnnotationPresent(IpcLimit.class)) {
+				String name = m.getAnnotation(Ipc.class)
+				               .name();
+				if (name.isEmpty()) {
+					name = m.getName();
+				}
+				result.put(name, StreamLimiter.from(m.getAnnotation(IpcLimit.class)));
+			}
+		}
+
+		return result;
+	}
+
+	public static StreamLimiter connectionLimit(Object api) {
+		return StreamLimiter.from(api.getClass()
+		                             .getAnnotation(IpcLimit.class));
+	}
+
 	public static Map<String, Object> clientServiceMap(Class<?> api) {
 		Map<String, Object> result = new HashMap<>();
 
@@ -213,6 +251,11 @@ abstract class IpcServiceMapper {
 							"Overloads with the same target name are not supported");
 				}
 
+				StreamPrefetch prefetch =
+						StreamPrefetch.from(m.getAnnotation(IpcPrefetch.class));
+
+				StreamPriority priority = StreamPriority.from(a);
+
 				Class<?> rt = m.getReturnType();
 
 				if (rt == Void.TYPE) {
@@ -225,18 +268,18 @@ abstract class IpcServiceMapper {
 						if (Function.class.isAssignableFrom(m.getParameterTypes()[0])) {
 							String s = m.toGenericString();
 							if(s.contains("<"+Flux.class.getName())){
-								result.put(name, new IpcClientUmapFlux());
+								result.put(name, new IpcClientUmapFlux(a.timeout(), prefetch, priority));
 							}
 							else if(s.contains("<"+Mono.class.getName())){
-								result.put(name, new IpcClientUmapMono());
+								result.put(name, new IpcClientUmapMono(a.timeout(), prefetch, priority));
 							}
 							else {
-								result.put(name, new IpcClientUmap());
+								result.put(name, new IpcClientUmap(a.timeout(), prefetch, priority));
 							}
 							continue;
 						}
 						else if (Publisher.class.isAssignableFrom(m.getParameterTypes()[0])) {
-							result.put(name, new IpcClientSend());
+							result.put(name, new IpcClientSend(a.timeout(), priority));
 							continue;
 						}
 					}
@@ -251,26 +294,26 @@ abstract class IpcServiceMapper {
 					}
 					if (pc == 0) {
 						if (Flux.class.equals(rt)) {
-							result.put(name, new IpcClientReceiveFlux());
+							result.put(name, new IpcClientReceiveFlux(a.timeout(), prefetch, priority));
 						}
 						else if (Mono.class.equals(rt)) {
-							result.put(name, new IpcClientReceiveMono());
+							result.put(name, new IpcClientReceiveMono(a.timeout(), prefetch, priority));
 						}
 						else {
-							result.put(name, new IpcClientReceive());
+							result.put(name, new IpcClientReceive(a.timeout(), prefetch, priority));
 						}
 					}
 					else {
 						if (Publisher.class.isAssignableFrom(m.getParameterTypes()[0])) {
 
 							if (Flux.class.equals(rt)) {
-								result.put(name, new IpcClientMapFlux());
+								result.put(name, new IpcClientMapFlux(a.timeout(), prefetch, priority));
 							}
 							else if (Mono.class.equals(rt)) {
-								result.put(name, new IpcClientMapMono());
+								result.put(name, new IpcClientMapMono(a.timeout(), prefetch, priority));
 							}
 							else {
-								result.put(name, new IpcClientMap());
+								result.put(name, new IpcClientMap(a.timeout(), prefetch, priority));
 							}
 						}
 						else {
@@ -350,30 +393,41 @@ abstract class IpcServiceMapper {
 
 	static final class IpcClientSend {
 
+		final long timeout;
+
+		final StreamPriority priority;
+
+		public IpcClientSend(long timeout, StreamPriority priority) {
+			this.timeout = timeout;
+			this.priority = priority;
+		}
+
 		public static void sendStatic(String function,
+				long timeout,
+				StreamPriority priority,
 				Publisher<?> values,
 				StreamOperationsImpl io) {
 			long streamId = io.newStreamId();
 
 			SendSubscriber s = new SendSubscriber(io, streamId);
 			io.registerSubscription(streamId, s);
-			io.sendNew(streamId, function);
+			io.sendNew(streamId, function, timeout, 0L, priority.priority, priority.weight);
 
 			values.subscribe(s);
 		}
 
 		public void send(String function, Publisher<?> values, StreamOperationsImpl io) {
-			sendStatic(function, values, io);
+			sendStatic(function, timeout, priority, values, io);
 		}
 
 		static final class SendSubscriber extends Operators.DeferredSubscription
-				implements CoreSubscriber<Object> {
+				implements CoreSubscriber<Object>, Sender {
 
 			final StreamOperationsImpl io;
 
 			final long streamId;
 
-			boolean done;
+			volatile boolean done;
 
 			public SendSubscriber(StreamOperationsImpl io, long streamId) {
 				this.io = io;
@@ -419,51 +473,90 @@ abstract class IpcServiceMapper {
 				io.deregister(streamId);
 				io.sendComplete(streamId);
 			}
+
+			@Override
+			public void onSendError(Throwable e) {
+				abandon();
+			}
+
+			@Override
+			public void onRemoteCancel() {
+				abandon();
+			}
+
+			void abandon() {
+				if (done) {
+					return;
+				}
+				done = true;
+				cancel();
+				io.deregister(streamId);
+			}
 		}
 	}
 
 	static class IpcClientReceive {
 
-		static final class IpcReceiveSubscription implements Subscription {
+		final long timeout;
 
-			final long streamId;
+		final StreamPrefetch prefetch;
 
-			final StreamOperationsImpl io;
+		final StreamPriority priority;
+
+		public IpcClientReceive(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			this.timeout = timeout;
+			this.prefetch = prefetch;
+			this.priority = priority;
+		}
+
+		static final class IpcReceiveSubscription extends OpeningDemand
+				implements Subscription {
 
 			public IpcReceiveSubscription(long streamId, StreamOperationsImpl io) {
-				this.streamId = streamId;
-				this.io = io;
+				super(streamId, io);
 			}
 
 			@Override
 			public void request(long n) {
 				if (Operators.validate(n)) {
-					io.sendRequested(streamId, n);
+					requestRemote(n);
 				}
 			}
 
 			@Override
 			public void cancel() {
-				if (io.deregister(streamId)) {
-					io.sendCancel(streamId, "");
-				}
+				// only the subscriber is registered, the demand tells a first cancel
+				io.deregister(streamId);
+				cancelRemote();
 			}
 		}
 
 		public Publisher<?> receive(String function, StreamOperationsImpl io) {
-			return s -> {
+			return withDeadline(function, timeout, s -> {
 				long streamId = io.newStreamId();
-				io.registerSubscriber(streamId, s);
-				io.sendNew(streamId, function);
+				Subscriber<Object> local = prefetch.wrap(s);
+				io.registerSubscriber(streamId, local);
 
-				s.onSubscribe(new IpcReceiveSubscription(streamId, io));
-			};
+				IpcReceiveSubscription subscription =
+						new IpcReceiveSubscription(streamId, io);
+				local.onSubscribe(subscription);
+
+				subscription.open(function, timeout, priority.from(s));
+			});
 		}
 
 	}
 
 	static final class IpcClientReceiveMono extends IpcClientReceive {
 
+		public IpcClientReceiveMono(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			super(timeout, prefetch, priority);
+		}
+
 		@Override
 		public Publisher<?> receive(String function, StreamOperationsImpl io) {
 			return Mono.from(super.receive(function, io));
@@ -472,6 +565,12 @@ abstract class IpcServiceMapper {
 
 	static final class IpcClientReceiveFlux extends IpcClientReceive {
 
+		public IpcClientReceiveFlux(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			super(timeout, prefetch, priority);
+		}
+
 		@Override
 		public Publisher<?> receive(String function, StreamOperationsImpl io) {
 			return Flux.from(super.receive(function, io));
@@ -480,32 +579,52 @@ abstract class IpcServiceMapper {
 
 	static class IpcClientMap {
 
+		final long timeout;
+
+		final StreamPrefetch prefetch;
+
+		final StreamPriority priority;
+
+		public IpcClientMap(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			this.timeout = timeout;
+			this.prefetch = prefetch;
+			this.priority = priority;
+		}
+
 		public Publisher<?> map(String function,
 				Publisher<?> values,
 				StreamOperationsImpl io) {
-			return s -> {
+			return withDeadline(function, timeout, s -> {
 				long streamId = io.newStreamId();
 
 				final AtomicInteger open = new AtomicInteger(2);
 
+				Subscriber<Object> local = prefetch.wrap(s);
+
 				IpcMapReceiverSubscriber receiver =
-						new IpcMapReceiverSubscriber(s, streamId, open, io);
+						new IpcMapReceiverSubscriber(local, streamId, open, io);
 
 				IpcMapSubscriber sender = new IpcMapSubscriber(streamId, open, io);
 				receiver.sender = sender;
 
 				io.registerSubscriber(streamId, receiver);
 				io.registerSubscription(streamId, sender);
-				io.sendNew(streamId, function);
 
-				s.onSubscribe(receiver.s);
+				local.onSubscribe(receiver.s);
 
-				values.subscribe(sender);
-			};
+				if (receiver.demand.open(function, timeout, priority.from(s))) {
+					values.subscribe(sender);
+				}
+				else {
+					io.deregister(streamId);
+				}
+			});
 		}
 
 		static final class IpcMapSubscriber extends Operators.DeferredSubscription
-				implements CoreSubscriber<Object> {
+				implements CoreSubscriber<Object>, Sender {
 
 			final long streamId;
 
@@ -513,7 +632,7 @@ abstract class IpcServiceMapper {
 
 			final StreamOperationsImpl io;
 
-			boolean done;
+			volatile boolean done;
 
 			public IpcMapSubscriber(long streamId,
 					AtomicInteger open,
@@ -566,6 +685,28 @@ abstract class IpcServiceMapper {
 				}
 				io.sendComplete(streamId);
 			}
+
+			@Override
+			public void onSendError(Throwable e) {
+				abandon();
+			}
+
+			@Override
+			public void onRemoteCancel() {
+				abandon();
+			}
+
+			void abandon() {
+				if (done) {
+					return;
+				}
+				done = true;
+				cancel();
+				// the results are still received until the remote ends them
+				if (open.decrementAndGet() == 0) {
+					io.deregister(streamId);
+				}
+			}
 		}
 
 		static final class IpcMapReceiverSubscriber
@@ -579,6 +720,8 @@ abstract class IpcServiceMapper {
 
 			final StreamOperationsImpl io;
 
+			final OpeningDemand demand;
+
 			Subscription s;
 
 			IpcMapSubscriber sender;
@@ -591,6 +734,7 @@ abstract class IpcServiceMapper {
 				this.streamId = streamId;
 				this.open = open;
 				this.io = io;
+				this.demand = new OpeningDemand(streamId, io);
 				this.s = new Subscription() {
 					@Override
 					public void request(long n) {
@@ -606,7 +750,7 @@ abstract class IpcServiceMapper {
 
 			void innerRequest(long n) {
 				if (Operators.validate(n)) {
-					io.sendRequested(streamId, n);
+					demand.requestRemote(n);
 				}
 			}
 
@@ -614,7 +758,7 @@ abstract class IpcServiceMapper {
 				if (open.decrementAndGet() == 0) {
 					io.deregister(streamId);
 				}
-				io.sendCancel(streamId, "");
+				demand.cancelRemote();
 			}
 
 			@Override
@@ -655,8 +799,81 @@ abstract class IpcServiceMapper {
 		}
 	}
 
+	/**
+	 * Demand of a client stream requested before the stream is opened, sent along with
+	 * the new stream to save the remote a round trip before it can emit.
+	 */
+	static class OpeningDemand extends AtomicLong {
+
+		static final long OPEN      = Long.MIN_VALUE;
+		static final long CANCELLED = Long.MIN_VALUE + 1;
+
+		final long streamId;
+
+		final StreamOperationsImpl io;
+
+		OpeningDemand(long streamId, StreamOperationsImpl io) {
+			this.streamId = streamId;
+			this.io = io;
+		}
+
+		final void requestRemote(long n) {
+			for (; ; ) {
+				long r = get();
+				if (r == OPEN) {
+					io.sendRequested(streamId, n);
+					return;
+				}
+				if (r == CANCELLED) {
+					return;
+				}
+				if (compareAndSet(r, Operators.addCap(r, n))) {
+					return;
+				}
+			}
+		}
+
+		final void cancelRemote() {
+			for (; ; ) {
+				long r = get();
+				if (r == CANCELLED) {
+					return;
+				}
+				if (compareAndSet(r, CANCELLED)) {
+					// nothing to tell a remote the stream was never opened to
+					if (r == OPEN) {
+						io.sendCancel(streamId, "");
+					}
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return false if the stream was cancelled first and is not opened at all
+		 */
+		final boolean open(String function, long timeout, StreamPriority priority) {
+			for (; ; ) {
+				long r = get();
+				if (r == CANCELLED) {
+					return false;
+				}
+				if (compareAndSet(r, OPEN)) {
+					io.sendNew(streamId, function, timeout, r, priority.priority, priority.weight);
+					return true;
+				}
+			}
+		}
+	}
+
 	static final class IpcClientMapMono extends IpcClientMap {
 
+		public IpcClientMapMono(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			super(timeout, prefetch, priority);
+		}
+
 		@Override
 		public Publisher<?> map(String function,
 				Publisher<?> values,
@@ -667,6 +884,12 @@ abstract class IpcServiceMapper {
 
 	static final class IpcClientMapFlux extends IpcClientMap {
 
+		public IpcClientMapFlux(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			super(timeout, prefetch, priority);
+		}
+
 		@Override
 		public Publisher<?> map(String function,
 				Publisher<?> values,
@@ -677,12 +900,27 @@ abstract class IpcServiceMapper {
 
 	static class IpcClientUmap {
 
+		final long timeout;
+
+		final StreamPrefetch prefetch;
+
+		final StreamPriority priority;
+
+		public IpcClientUmap(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			this.timeout = timeout;
+			this.prefetch = prefetch;
+			this.priority = priority;
+		}
+
 		Publisher<?> producer(IpcUmapReceiver receiver){
 			AtomicBoolean once = new AtomicBoolean();
 			return s -> {
 				if (once.compareAndSet(false, true)) {
-					receiver.actual = s;
-					s.onSubscribe(receiver.s);
+					Subscriber<Object> local = prefetch.wrap(s);
+					receiver.actual = local;
+					local.onSubscribe(receiver.s);
 				}
 				else {
 					Operators.error(s,
@@ -706,7 +944,7 @@ abstract class IpcServiceMapper {
 			io.registerSubscriber(streamId, receiver);
 			io.registerSubscription(streamId, receiver);
 
-			io.sendNew(streamId, function);
+			io.sendNew(streamId, function, timeout, 0L, priority.priority, priority.weight);
 
 			Publisher<?> p = producer(receiver);
 
@@ -732,7 +970,8 @@ abstract class IpcServiceMapper {
 			u.subscribe(receiver.provider);
 		}
 
-		static final class IpcUmapReceiver implements CoreSubscriber<Object>, Subscription {
+		static final class IpcUmapReceiver
+				implements CoreSubscriber<Object>, Subscription, Sender {
 
 			final long streamId;
 
@@ -800,6 +1039,16 @@ abstract class IpcServiceMapper {
 			public void cancel() {
 				provider.cancel();
 			}
+
+			@Override
+			public void onSendError(Throwable e) {
+				provider.abandon();
+			}
+
+			@Override
+			public void onRemoteCancel() {
+				provider.abandon();
+			}
 		}
 
 		static final class IpcUmapProvider extends Operators.DeferredSubscription
@@ -811,7 +1060,7 @@ abstract class IpcServiceMapper {
 
 			final AtomicBoolean once;
 
-			boolean done;
+			volatile boolean done;
 
 			public IpcUmapProvider(long streamId,
 					StreamOperationsImpl io,
@@ -867,10 +1116,29 @@ abstract class IpcServiceMapper {
 				}
 				io.sendComplete(streamId);
 			}
+
+			void abandon() {
+				if (done) {
+					return;
+				}
+				done = true;
+				cancel();
+				io.deregister(streamId);
+				if (once.compareAndSet(false, true)) {
+					io.sendCancel(streamId, "");
+				}
+			}
 		}
 	}
 
 	static final class IpcClientUmapFlux extends IpcClientUmap {
+
+		public IpcClientUmapFlux(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			super(timeout, prefetch, priority);
+		}
+
 		@Override
 		Publisher<?> producer(IpcUmapReceiver receiver) {
 			return Flux.from(super.producer(receiver));
@@ -878,6 +1146,13 @@ abstract class IpcServiceMapper {
 	}
 
 	static final class IpcClientUmapMono extends IpcClientUmap {
+
+		public IpcClientUmapMono(long timeout,
+				StreamPrefetch prefetch,
+				StreamPriority priority) {
+			super(timeout, prefetch, priority);
+		}
+
 		@Override
 		Publisher<?> producer(IpcUmapReceiver receiver) {
 			return Mono.from(super.producer(receiver));
@@ -890,91 +1165,213 @@ abstract class IpcServiceMapper {
 
 		final Object instance;
 
-		public IpcServerSend(Method m, Object instance) {
+		final long replayNanos;
+
+		ReplayedOutput replayed;
+
+		public IpcServerSend(Method m, Object instance, long replayMillis) {
 			this.m = m;
 			this.instance = instance;
+			this.replayNanos = TimeUnit.MILLISECONDS.toNanos(replayMillis);
+		}
+
+		Publisher<?> output(StreamContext<?> ctx, StreamOperationsImpl io)
+				throws Exception {
+			Object encoding = io.encoding();
+			if (replayNanos <= 0L || encoding == null) {
+				return (Publisher<?>) m.invoke(instance, ctx);
+			}
+			ReplayedOutput r = acquire(encoding, System.nanoTime());
+			if (r == null) {
+				// invoked outside of the lock, a concurrent stream may install its
+				// output first and this one is then never subscribed
+				Publisher<?> output = (Publisher<?>) m.invoke(instance, ctx);
+				if (output == null) {
+					return null;
+				}
+				r = install(new ReplayedOutput(System.nanoTime(), encoding), output, io);
+			}
+			ReplayedOutput acquired = r;
+			return Flux.from(r.values)
+			           .doFinally(signal -> release(acquired));
+		}
+
+		/**
+		 * @return the replayed output a new stream with the given encoding subscribes
+		 * to, null if none is current
+		 */
+		synchronized ReplayedOutput acquire(Object encoding, long now) {
+			ReplayedOutput r = replayed;
+			if (r == null || now - r.start >= replayNanos || !encoding.equals(r.encoding)) {
+				return null;
+			}
+			r.streams++;
+			return r;
+		}
+
+		ReplayedOutput install(ReplayedOutput candidate,
+				Publisher<?> output,
+				StreamOperationsImpl io) {
+			ReplayedOutput r;
+			Disposable replaced;
+			synchronized (this) {
+				r = replayed;
+				if (r != null && candidate.start - r.start < replayNanos && candidate.encoding.equals(
+						r.encoding)) {
+					r.streams++;
+					return r;
+				}
+				candidate.values = replay(output, candidate, io);
+				candidate.streams++;
+				replayed = candidate;
+				replaced = r != null ? r.retire() : null;
+			}
+			if (replaced != null) {
+				replaced.dispose();
+			}
+			return candidate;
+		}
+
+		Publisher<?> replay(Publisher<?> output,
+				ReplayedOutput r,
+				StreamOperationsImpl io) {
+			return Flux.from(output)
+			           .map(v -> {
+				           try {
+					           return io.encode(v);
+				           }
+				           catch (IOException ex) {
+					           throw Exceptions.propagate(ex);
+				           }
+			           })
+			           .doOnError(e -> evict(r))
+			           .replay(Duration.ofNanos(replayNanos))
+			           .autoConnect(1, c -> r.connection = c);
+		}
+
+		void evict(ReplayedOutput r) {
+			Disposable evicted = null;
+			synchronized (this) {
+				if (replayed == r) {
+					replayed = null;
+					evicted = r.retire();
+				}
+			}
+			if (evicted != null) {
+				evicted.dispose();
+			}
+		}
+
+		void release(ReplayedOutput r) {
+			Disposable released = null;
+			boolean idle = false;
+			synchronized (this) {
+				if (--r.streams == 0) {
+					if (replayed != r) {
+						released = r.connection;
+					}
+					else {
+						idle = true;
+					}
+				}
+			}
+			if (released != null) {
+				released.dispose();
+			}
+			else if (idle) {
+				// still current, disconnected once its window is over unless a new
+				// stream subscribed meanwhile
+				Schedulers.parallel()
+				          .schedule(() -> evict(r),
+						          Math.max(0L, r.start + replayNanos - System.nanoTime()),
+						          TimeUnit.NANOSECONDS);
+			}
 		}
 
 		public boolean send(long streamId, StreamContext<?> ctx, StreamOperationsImpl io) {
+			long deadline = ctx.deadline();
+			if (expired(deadline)) {
+				io.deregister(streamId);
+				io.sendError(streamId, deadlineExceeded(streamId));
+				return true;
+			}
+
 			Publisher<?> output;
 			try {
-				output = (Publisher<?>) m.invoke(instance, ctx);
+				output = output(ctx, io);
 			}
 			catch (Throwable ex) {
 				if (log.isErrorEnabled()) {
 					log.error("", ex);
 				}
+				io.deregister(streamId);
 				io.sendError(streamId, ex);
 				return true;
 			}
 
 			if (output == null) {
+				io.deregister(streamId);
 				io.sendError(streamId,
 						new IllegalStateException(
 								"The service implementation returned a null Publisher"));
 				return true;
 			}
 
-			ServerSendSubscriber parent = new ServerSendSubscriber(streamId, io);
+			ServerSendSubscriber parent = new ServerSendSubscriber(streamId, io, deadline);
 			io.registerSubscription(streamId, parent);
+			parent.startDeadline();
 
 			output.subscribe(parent);
 
 			return true;
 		}
 
-		static final class ServerSendSubscriber extends Operators.DeferredSubscription
-				implements CoreSubscriber<Object> {
+		/**
+		 * The values of an invocation replayed to the streams opened within the window,
+		 * its source is disconnected once replaced or past the window, and left by all
+		 * its streams.
+		 */
+		static final class ReplayedOutput {
 
-			final long streamId;
+			final long start;
 
-			final StreamOperationsImpl io;
+			final Object encoding;
 
-			boolean done;
+			Publisher<?> values;
 
-			public ServerSendSubscriber(long streamId, StreamOperationsImpl io) {
-				this.streamId = streamId;
-				this.io = io;
-			}
+			/**
+			 * The streams subscribed to the values, guarded by the
+			 * {@link IpcServerSend}.
+			 */
+			int streams;
 
-			@Override
-			public void onSubscribe(Subscription s) {
-				set(s);
+			volatile Disposable connection;
+
+			ReplayedOutput(long start, Object encoding) {
+				this.start = start;
+				this.encoding = encoding;
 			}
 
-			@Override
-			public void onNext(Object t) {
-				if (done) {
-					return;
-				}
-				try {
-					io.sendNext(streamId, t);
-				}
-				catch (IOException ex) {
-					cancel();
-					onError(ex);
-				}
+			/**
+			 * @return the connection to dispose once no longer current, null if
+			 * streams still replay it
+			 */
+			Disposable retire() {
+				return streams == 0 ? connection : null;
 			}
+		}
 
-			@Override
-			public void onError(Throwable t) {
-				if (done) {
-					Operators.onErrorDropped(t, Context.empty());
-					return;
-				}
-				done = true;
-				io.deregister(streamId);
-				io.sendError(streamId, t);
+		static final class ServerSendSubscriber extends DeadlineSendSubscriber {
+
+			public ServerSendSubscriber(long streamId,
+					StreamOperationsImpl io,
+					long deadline) {
+				super(streamId, io, deadline);
 			}
 
 			@Override
-			public void onComplete() {
-				if (done) {
-					return;
-				}
-				done = true;
+			void onTerminate() {
 				io.deregister(streamId);
-				io.sendComplete(streamId);
 			}
 		}
 	}
@@ -985,9 +1382,12 @@ abstract class IpcServiceMapper {
 
 		final Object instance;
 
-		public IpcServerReceive(Method m, Object instance) {
+		final StreamPrefetch prefetch;
+
+		public IpcServerReceive(Method m, Object instance, StreamPrefetch prefetch) {
 			this.m = m;
 			this.instance = instance;
+			this.prefetch = prefetch;
 		}
 
 		Publisher<?> producer(long streamId, StreamOperationsImpl io) {
@@ -996,9 +1396,10 @@ abstract class IpcServiceMapper {
 			AtomicBoolean once = new AtomicBoolean();
 			return s -> {
 				if (once.compareAndSet(false, true)) {
-					parent.actual = s;
+					Subscriber<Object> local = prefetch.wrap(s);
+					parent.actual = local;
 					io.registerSubscriber(streamId, parent);
-					s.onSubscribe(parent);
+					local.onSubscribe(parent);
 				}
 				else {
 					Operators.error(s,
@@ -1012,6 +1413,12 @@ abstract class IpcServiceMapper {
 				StreamContext<?> ctx,
 				StreamOperationsImpl io) {
 
+			if (expired(ctx.deadline())) {
+				io.deregister(streamId);
+				io.sendCancel(streamId, deadlineExceeded(streamId).getMessage());
+				return true;
+			}
+
 			Publisher<?> p = producer(streamId, io);
 
 			try {
@@ -1022,6 +1429,7 @@ abstract class IpcServiceMapper {
 					log.error("", ex);
 				}
 
+				io.deregister(streamId);
 				io.sendCancel(streamId, ex.toString());
 			}
 			return true;
@@ -1081,8 +1489,8 @@ abstract class IpcServiceMapper {
 
 	static final class IpcServerReceiveFlux extends IpcServerReceive {
 
-		public IpcServerReceiveFlux(Method m, Object instance) {
-			super(m, instance);
+		public IpcServerReceiveFlux(Method m, Object instance, StreamPrefetch prefetch) {
+			super(m, instance, prefetch);
 		}
 
 		@Override
@@ -1093,8 +1501,8 @@ abstract class IpcServiceMapper {
 
 	static final class IpcServerReceiveMono extends IpcServerReceive {
 
-		public IpcServerReceiveMono(Method m, Object instance) {
-			super(m, instance);
+		public IpcServerReceiveMono(Method m, Object instance, StreamPrefetch prefetch) {
+			super(m, instance, prefetch);
 		}
 
 		@Override
@@ -1109,9 +1517,12 @@ abstract class IpcServiceMapper {
 
 		final Object instance;
 
-		public IpcServerMap(Method m, Object instance) {
+		final StreamPrefetch prefetch;
+
+		public IpcServerMap(Method m, Object instance, StreamPrefetch prefetch) {
 			this.m = m;
 			this.instance = instance;
+			this.prefetch = prefetch;
 		}
 
 		Publisher<?> producer(long streamId,
@@ -1128,8 +1539,9 @@ abstract class IpcServiceMapper {
 
 			return s -> {
 				if (once.compareAndSet(false, true)) {
-					parent.actual = s;
-					s.onSubscribe(parent.s);
+					Subscriber<Object> local = prefetch.wrap(s);
+					parent.actual = local;
+					local.onSubscribe(parent.s);
 				}
 				else {
 					Operators.error(s,
@@ -1140,9 +1552,18 @@ abstract class IpcServiceMapper {
 		}
 
 		final boolean map(long streamId, StreamContext<?> ctx, StreamOperationsImpl io) {
+			long deadline = ctx.deadline();
+			if (expired(deadline)) {
+				TimeoutException e = deadlineExceeded(streamId);
+				io.deregister(streamId);
+				io.sendCancel(streamId, e.getMessage());
+				io.sendError(streamId, e);
+				return true;
+			}
+
 			AtomicInteger innerOnce = new AtomicInteger(2);
 			ServerSendSubscriber sender =
-					new ServerSendSubscriber(streamId, io, innerOnce);
+					new ServerSendSubscriber(streamId, io, deadline, innerOnce);
 
 			Publisher<?> p = producer(streamId, innerOnce, sender, io);
 
@@ -1163,6 +1584,7 @@ abstract class IpcServiceMapper {
 								"The service implementation returned a null Publisher"));
 			}
 
+			sender.startDeadline();
 			u.subscribe(sender);
 
 			return true;
@@ -1255,75 +1677,269 @@ abstract class IpcServiceMapper {
 
 		}
 
-		static final class ServerSendSubscriber extends Operators.DeferredSubscription
-				implements CoreSubscriber<Object> {
-
-			final long streamId;
-
-			final StreamOperationsImpl io;
+		static final class ServerSendSubscriber extends DeadlineSendSubscriber {
 
 			final AtomicInteger once;
 
-			boolean done;
-
 			public ServerSendSubscriber(long streamId,
 					StreamOperationsImpl io,
+					long deadline,
 					AtomicInteger once) {
-				this.streamId = streamId;
-				this.io = io;
+				super(streamId, io, deadline);
 				this.once = once;
 			}
 
 			@Override
-			public void onSubscribe(Subscription s) {
-				set(s);
+			void onTerminate() {
+				if (once.decrementAndGet() == 0) {
+					io.deregister(streamId);
+				}
 			}
+		}
+	}
 
-			@Override
-			public void onNext(Object t) {
-				if (done) {
-					return;
-				}
-				try {
-					io.sendNext(streamId, t);
-				}
-				catch (IOException ex) {
-					cancel();
-					onError(ex);
-				}
+	static boolean expired(long deadline) {
+		return deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline;
+	}
+
+	static TimeoutException deadlineExceeded(long streamId) {
+		return new TimeoutException("Stream " + streamId + " deadline exceeded");
+	}
+
+	/**
+	 * Bound the values a client function returns by its time budget, so the stream
+	 * fails locally even if the remote does not enforce it: the stream is cancelled and
+	 * its subscriber receives a {@link TimeoutException}.
+	 *
+	 * @param function the remote function name
+	 * @param timeout the time budget in milliseconds, zero if none
+	 * @param values the values returned to the client
+	 *
+	 * @return the bounded values
+	 */
+	static Publisher<?> withDeadline(String function, long timeout, Publisher<?> values) {
+		if (timeout <= 0L) {
+			return values;
+		}
+		return Flux.defer(() -> {
+			AtomicBoolean expired = new AtomicBoolean();
+			return Flux.from(values)
+			           .takeUntilOther(Mono.delay(Duration.ofMillis(timeout))
+			                               .doOnNext(t -> expired.set(true)))
+			           .concatWith(Mono.defer(() -> expired.get() ? Mono.error(new TimeoutException(
+					           "Stream " + function + " deadline exceeded")) : Mono.empty()));
+		});
+	}
+
+	/**
+	 * A local producer whose values are sent on a stream, registered as the subscription
+	 * of the stream.
+	 */
+	interface Sender {
+
+		/**
+		 * Stop producing after a value already sent could not be encoded, the outbound
+		 * ended the stream with the error: the upstream is cancelled and the stream
+		 * deregistered once its other direction, if any, is done.
+		 *
+		 * @param e the encoding failure
+		 */
+		void onSendError(Throwable e);
+
+		/**
+		 * Stop producing once the remote cancelled the stream, it was purged of the
+		 * values still pending: the upstream is cancelled and the stream deregistered
+		 * like after a send failure, forgetting the purge.
+		 */
+		void onRemoteCancel();
+	}
+
+	/**
+	 * Sends a service output to the remote, abandoning the stream once the deadline set
+	 * by the remote has passed: the output is cancelled, the remote receives a {@link
+	 * TimeoutException} and values produced in the meantime are not sent.
+	 * <p>
+	 * The timer and the outbound abandon the stream from their own thread. A value being
+	 * sent meanwhile is sent first, the sending thread then ends the stream in their place.
+	 */
+	abstract static class DeadlineSendSubscriber extends Operators.DeferredSubscription
+			implements CoreSubscriber<Object>, Runnable, Sender {
+
+		static final int IDLE       = 0;
+		static final int SENDING    = 1;
+		static final int EXPIRED    = 2;
+		static final int FAILED     = 3;
+		static final int CANCELLED  = 4;
+		static final int TERMINATED = 5;
+
+		final long streamId;
+
+		final StreamOperationsImpl io;
+
+		final long deadline;
+
+		/**
+		 * {@link #SENDING} while a value is sent, {@link #EXPIRED}, {@link #FAILED} or
+		 * {@link #CANCELLED} if the stream was abandoned meanwhile and {@link
+		 * #TERMINATED} once ended.
+		 */
+		final AtomicInteger state;
+
+		boolean done;
+
+		volatile Disposable timer;
+
+		DeadlineSendSubscriber(long streamId, StreamOperationsImpl io, long deadline) {
+			this.streamId = streamId;
+			this.io = io;
+			this.deadline = deadline;
+			this.state = new AtomicInteger();
+		}
+
+		abstract void onTerminate();
+
+		final void startDeadline() {
+			if (deadline != Long.MAX_VALUE) {
+				timer = Schedulers.parallel()
+				                  .schedule(this,
+						                  deadline - System.currentTimeMillis(),
+						                  TimeUnit.MILLISECONDS);
 			}
+		}
 
-			@Override
-			public void onError(Throwable t) {
-				if (done) {
-					Operators.onErrorDropped(t, Context.empty());
-					return;
-				}
+		@Override
+		public void run() {
+			abandon(EXPIRED);
+		}
+
+		@Override
+		public void onSubscribe(Subscription s) {
+			set(s);
+		}
+
+		@Override
+		public void onNext(Object t) {
+			if (done) {
+				return;
+			}
+			if (expired(deadline)) {
 				done = true;
-				if (once.decrementAndGet() == 0) {
-					io.deregister(streamId);
-				}
+				abandon(EXPIRED);
+				return;
+			}
+			// dropped once abandoned, the stream may already be forgotten
+			if (!state.compareAndSet(IDLE, SENDING)) {
+				return;
+			}
+			IOException failure = null;
+			try {
+				io.sendNext(streamId, t);
+			}
+			catch (IOException ex) {
+				failure = ex;
+			}
+			if (!state.compareAndSet(SENDING, IDLE)) {
+				terminate(state.getAndSet(TERMINATED));
+				return;
+			}
+			if (failure != null) {
+				cancel();
+				onError(failure);
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			if (done) {
+				Operators.onErrorDropped(t, Context.empty());
+				return;
+			}
+			done = true;
+			if (state.compareAndSet(IDLE, TERMINATED)) {
+				disposeTimer();
+				onTerminate();
 				io.sendError(streamId, t);
 			}
+		}
 
-			@Override
-			public void onComplete() {
-				if (done) {
-					return;
+		@Override
+		public void onComplete() {
+			if (done) {
+				return;
+			}
+			done = true;
+			if (state.compareAndSet(IDLE, TERMINATED)) {
+				disposeTimer();
+				onTerminate();
+				io.sendComplete(streamId);
+			}
+		}
+
+		@Override
+		public void onSendError(Throwable e) {
+			abandon(FAILED);
+		}
+
+		@Override
+		public void onRemoteCancel() {
+			abandon(CANCELLED);
+		}
+
+		/**
+		 * End the stream from outside of the producer, right away unless a value is
+		 * being sent.
+		 *
+		 * @param reason {@link #EXPIRED}, {@link #FAILED} or {@link #CANCELLED}
+		 */
+		final void abandon(int reason) {
+			for (; ; ) {
+				int s = state.get();
+				if (s == IDLE) {
+					if (state.compareAndSet(IDLE, TERMINATED)) {
+						terminate(reason);
+						return;
+					}
 				}
-				done = true;
-				if (once.decrementAndGet() == 0) {
-					io.deregister(streamId);
+				else if (s == SENDING) {
+					if (state.compareAndSet(SENDING, reason)) {
+						return;
+					}
 				}
-				io.sendComplete(streamId);
+				else {
+					return;
+				}
+			}
+		}
+
+		final void terminate(int reason) {
+			super.cancel();
+			disposeTimer();
+			if (reason == EXPIRED) {
+				io.purge(streamId);
+				io.sendError(streamId, deadlineExceeded(streamId));
+			}
+			// deregistered last, forgetting the purge
+			onTerminate();
+		}
+
+		@Override
+		public void cancel() {
+			super.cancel();
+			disposeTimer();
+		}
+
+		final void disposeTimer() {
+			Disposable d = timer;
+			if (d != null) {
+				d.dispose();
 			}
 		}
 	}
 
 	static final class IpcServerMapMono extends IpcServerMap {
 
-		public IpcServerMapMono(Method m, Object instance) {
-			super(m, instance);
+		public IpcServerMapMono(Method m, Object instance, StreamPrefetch prefetch) {
+			super(m, instance, prefetch);
 		}
 
 		@Override
@@ -1337,8 +1953,8 @@ abstract class IpcServiceMapper {
 
 	static final class IpcServerMapFlux extends IpcServerMap {
 
-		public IpcServerMapFlux(Method m, Object instance) {
-			super(m, instance);
+		public IpcServerMapFlux(Method m, Object instance, StreamPrefetch prefetch) {
+			super(m, instance, prefetch);
 		}
 
 		@Override
@@ -18,5 +18,8 @@ package reactor.ipc.stream;
 @FunctionalInterface
 interface OnStream {
 
-	boolean onStream(long streamId, String function, StreamOperationsImpl manager);
+	boolean onStream(long streamId,
+			String function,
+			long timeout,
+			StreamOperationsImpl manager);
 }
@@ -29,4 +29,15 @@ public interface StreamContext<T> {
 	boolean has(CharSequence attribute);
 
 	T remoteAPI();
+
+	/**
+	 * Return the deadline the remote set when opening the current stream, the stream
+	 * is abandoned once it has passed.
+	 *
+	 * @return the deadline in milliseconds since the epoch, {@link Long#MAX_VALUE} if
+	 * none
+	 */
+	default long deadline() {
+		return Long.MAX_VALUE;
+	}
 }
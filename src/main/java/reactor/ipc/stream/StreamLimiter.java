@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts in-flight streams against a limit, adaptive implementations resize the limit
+ * from the latency of every released stream.
+ */
+abstract class StreamLimiter {
+
+	static StreamLimiter from(IpcLimit limit) {
+		if (limit == null) {
+			return null;
+		}
+		if (limit.value() < 1 || limit.min() < 1 || limit.min() > limit.max()) {
+			throw new IllegalStateException("IpcLimit requires 1 <= min <= max and a positive value");
+		}
+		switch (limit.adaptive()) {
+			case AIMD:
+				return new Aimd(limit);
+			case GRADIENT:
+				return new Gradient(limit);
+			default:
+				return new Fixed(limit.value());
+		}
+	}
+
+	final AtomicInteger inflight = new AtomicInteger();
+
+	volatile int limit;
+
+	StreamLimiter(int limit) {
+		this.limit = limit;
+	}
+
+	final boolean tryAcquire() {
+		for (; ; ) {
+			int n = inflight.get();
+			if (n >= limit) {
+				return false;
+			}
+			if (inflight.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Release a stream acquired with {@link #tryAcquire()}.
+	 *
+	 * @param latencyNanos how long the stream has been open
+	 */
+	final void release(long latencyNanos) {
+		int n = inflight.getAndDecrement();
+		onRelease(n, latencyNanos);
+	}
+
+	/**
+	 * Release a stream acquired with {@link #tryAcquire()} without sampling its latency.
+	 */
+	final void rollback() {
+		inflight.decrementAndGet();
+	}
+
+	abstract void onRelease(int inflight, long latencyNanos);
+
+	static final class Fixed extends StreamLimiter {
+
+		Fixed(int limit) {
+			super(limit);
+		}
+
+		@Override
+		void onRelease(int inflight, long latencyNanos) {
+		}
+	}
+
+	static final class Aimd extends StreamLimiter {
+
+		final int  min;
+		final int  max;
+		final long latencyNanos;
+
+		Aimd(IpcLimit limit) {
+			super(limit.value());
+			this.min = limit.min();
+			this.max = limit.max();
+			this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(limit.latency());
+		}
+
+		@Override
+		synchronized void onRelease(int inflight, long latencyNanos) {
+			int l = limit;
+			if (latencyNanos > this.latencyNanos) {
+				limit = Math.max(min, (int) (l * 0.9d));
+			}
+			// only grow a limit that is actually being used
+			else if (inflight * 2 >= l) {
+				limit = Math.min(max, l + 1);
+			}
+		}
+	}
+
+	static final class Gradient extends StreamLimiter {
+
+		final int min;
+		final int max;
+
+		double estimate;
+		long   minLatency = Long.MAX_VALUE;
+
+		Gradient(IpcLimit limit) {
+			super(limit.value());
+			this.min = limit.min();
+			this.max = limit.max();
+			this.estimate = limit.value();
+		}
+
+		@Override
+		synchronized void onRelease(int inflight, long latencyNanos) {
+			if (latencyNanos <= 0L) {
+				return;
+			}
+			minLatency = Math.min(minLatency, latencyNanos);
+			double gradient = Math.max(0.5d, Math.min(1d, (double) minLatency / latencyNanos));
+			double target = estimate * gradient + Math.sqrt(estimate);
+			estimate = Math.max(min, Math.min(max, estimate * 0.8d + target * 0.2d));
+			limit = (int) estimate;
+		}
+	}
+}
@@ -20,6 +20,32 @@ public interface StreamOperations extends StreamOutbound {
 
 	void onNew(long streamId, String function);
 
+	/**
+	 * Receive a new stream the remote will stop waiting for after the given time budget.
+	 *
+	 * @param streamId the stream identifier
+	 * @param function the local function name
+	 * @param timeout the time budget in milliseconds, zero if none
+	 */
+	default void onNew(long streamId, String function, long timeout) {
+		onNew(streamId, function);
+	}
+
+	/**
+	 * Receive a new stream along with the amount of values the remote already requested.
+	 *
+	 * @param streamId the stream identifier
+	 * @param function the local function name
+	 * @param timeout the time budget in milliseconds, zero if none
+	 * @param requested the initial request, zero if none
+	 */
+	default void onNew(long streamId, String function, long timeout, long requested) {
+		onNew(streamId, function, timeout);
+		if (requested != 0L) {
+			onRequested(streamId, requested);
+		}
+	}
+
 	void onNext(long streamId, Object o);
 
 	void onError(long streamId, String reason);
@@ -30,6 +56,28 @@ public interface StreamOperations extends StreamOutbound {
 
 	void onCancel(long streamId, String reason);
 
+	/**
+	 * Receive the rejection of a stream the remote could not start because of one of
+	 * its concurrency limits, see {@link StreamOutbound#sendOverloaded}.
+	 *
+	 * @param streamId the stream identifier
+	 * @param reason the rejection reason
+	 */
+	default void onOverloaded(long streamId, String reason) {
+		onCancel(streamId, reason);
+	}
+
 	void onRequested(long streamId, long n);
 
+	/**
+	 * Receive the failure of a value sent on a stream but only encoded after
+	 * {@link StreamOutbound#sendNext} returned. The outbound already ended the stream
+	 * with the error, the values and signals still sent on it are dropped.
+	 *
+	 * @param streamId the stream identifier
+	 * @param e the encoding failure
+	 */
+	default void onSendError(long streamId, Throwable e) {
+	}
+
 }
@@ -17,8 +17,10 @@
 package reactor.ipc.stream;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -40,10 +42,22 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 
 	static Logger log = Loggers.getLogger(StreamOperationsImpl.class);
 
+	/**
+	 * Reason of a new stream rejected by a {@link StreamLimiter}, the rejection itself is
+	 * signalled by {@link StreamOutbound#sendOverloaded}.
+	 */
+	static final String OVERLOADED = "overloaded";
+
 	final ConcurrentMap<Long, Subscriber<OUT>> subscribers;
 
 	final ConcurrentMap<Long, Subscription> subscriptions;
 
+	final ConcurrentMap<Long, StreamPermit> permits;
+
+	final StreamLimiter connectionLimit;
+
+	final Map<String, StreamLimiter> functionLimits;
+
 	final StreamOutbound remote;
 
 	final String name;
@@ -58,6 +72,8 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 
 	StreamOperationsImpl(String name,
 			OnStream onNew,
+			StreamLimiter connectionLimit,
+			Map<String, StreamLimiter> functionLimits,
 			StreamOutbound remote,
 			Inbound<? extends IN> channel,
 			Runnable onTerminate) {
@@ -66,10 +82,13 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 		this.channel = channel;
 		this.remote = remote;
 		this.onNew = onNew;
+		this.connectionLimit = connectionLimit;
+		this.functionLimits = functionLimits;
 		this.onTerminate = onTerminate;
 		this.terminateOnce = new AtomicBoolean();
 		this.subscribers = new ConcurrentHashMap<>();
 		this.subscriptions = new ConcurrentHashMap<>();
+		this.permits = new ConcurrentHashMap<>();
 	}
 
 	long newStreamId() {
@@ -90,15 +109,80 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 
 	boolean deregister(long streamId) {
 		subscribers.remove(streamId);
-		return subscriptions.remove(streamId) != null;
+		release(streamId);
+		boolean removed = subscriptions.remove(streamId) != null;
+		remote.forget(streamId);
+		return removed;
+	}
+
+	boolean acquire(long streamId, String function) {
+		StreamLimiter functionLimit = functionLimits.get(function);
+		if (connectionLimit == null && functionLimit == null) {
+			return true;
+		}
+		if (connectionLimit != null && !connectionLimit.tryAcquire()) {
+			return false;
+		}
+		if (functionLimit != null && !functionLimit.tryAcquire()) {
+			if (connectionLimit != null) {
+				connectionLimit.rollback();
+			}
+			return false;
+		}
+		permits.put(streamId,
+				new StreamPermit(connectionLimit, functionLimit, System.nanoTime()));
+		return true;
+	}
+
+	void release(long streamId) {
+		StreamPermit permit = permits.remove(streamId);
+		if (permit != null) {
+			permit.release();
+		}
+	}
+
+	void terminate() {
+		if (terminateOnce.compareAndSet(false, true)) {
+			for (Long streamId : permits.keySet()) {
+				StreamPermit permit = permits.remove(streamId);
+				if (permit != null) {
+					permit.rollback();
+				}
+			}
+			onTerminate.run();
+		}
 	}
 
 	@Override
 	public void onNew(long streamId, String function) {
+		onNew(streamId, function, 0L);
+	}
+
+	@Override
+	public void onNew(long streamId, String function, long timeout) {
 		if (log.isDebugEnabled()) {
 			log.debug("{}/onStream/{}/{}", name, streamId, function);
 		}
-		if (!onNew.onStream(streamId, function, this)) {
+		if (!acquire(streamId, function)) {
+			if (log.isDebugEnabled()) {
+				log.debug("{}/onStream/{} {}",
+						name,
+						streamId,
+						"New stream(" + function + ") " + OVERLOADED);
+			}
+			sendOverloaded(streamId, "New stream(" + function + ") " + OVERLOADED);
+			return;
+		}
+		boolean accepted;
+		try {
+			accepted = onNew.onStream(streamId, function, timeout, this);
+		}
+		catch (Throwable ex) {
+			release(streamId);
+			throw ex;
+		}
+		if (!accepted) {
+			release(streamId);
 			if (log.isDebugEnabled()) {
 				log.debug("{}/onStream/{} {}",
 						name,
@@ -149,9 +233,7 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 			}
 		}
 		else if (streamId < 0) {
-			if (terminateOnce.compareAndSet(false, true)) {
-				onTerminate.run();
-			}
+			terminate();
 			if (isClosed()) {
 				return;
 			}
@@ -161,6 +243,10 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 
 	@Override
 	public void onComplete(long streamId) {
+		if (streamId < 0) {
+			terminate();
+			return;
+		}
 		Subscriber<OUT> local = subscribers.get(streamId);
 		if (local != null) {
 			local.onComplete();
@@ -172,10 +258,49 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 		if (log.isDebugEnabled()) {
 			log.debug("{}/onCancel/{} {}", name, streamId, reason);
 		}
+		// purged first, the values sent while cancelling are discarded too
+		purge(streamId);
+		Subscription remove = subscriptions.get(streamId);
+		if (remove instanceof IpcServiceMapper.Sender) {
+			// deregistered by the sender, forgetting the purge
+			((IpcServiceMapper.Sender) remove).onRemoteCancel();
+		}
+		else if (remove != null) {
+			remove.cancel();
+		}
+		release(streamId);
+	}
+
+	@Override
+	public void onOverloaded(long streamId, String reason) {
+		if (log.isDebugEnabled()) {
+			log.debug("{}/onOverloaded/{} {}", name, streamId, reason);
+		}
+		purge(streamId);
 		Subscription remove = subscriptions.get(streamId);
 		if (remove != null) {
 			remove.cancel();
 		}
+		// deregistered without releasing a permit, the permits are held by the streams
+		// the remote opened and one of them may share this identifier
+		Subscriber<OUT> local = subscribers.remove(streamId);
+		subscriptions.remove(streamId);
+		remote.forget(streamId);
+		if (local != null) {
+			local.onError(new RejectedExecutionException(
+					"Stream " + streamId + " rejected by the remote: " + reason));
+		}
+	}
+
+	@Override
+	public void onSendError(long streamId, Throwable e) {
+		if (log.isDebugEnabled()) {
+			log.debug("{}/onSendError/{}", name, streamId, e);
+		}
+		Subscription sender = subscriptions.get(streamId);
+		if (sender instanceof IpcServiceMapper.Sender) {
+			((IpcServiceMapper.Sender) sender).onSendError(e);
+		}
 	}
 
 	@Override
@@ -197,6 +322,59 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 		remote.sendNew(streamId, function);
 	}
 
+	@Override
+	public void sendNew(long streamId, String function, long timeout) {
+		if (timeout <= 0L) {
+			sendNew(streamId, function);
+			return;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("{}/sendNew/{}/{}/timeout={}", name, streamId, function, timeout);
+		}
+		remote.sendNew(streamId, function, timeout);
+	}
+
+	@Override
+	public void sendNew(long streamId, String function, long timeout, long requested) {
+		if (requested == 0L) {
+			sendNew(streamId, function, timeout);
+			return;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("{}/sendNew/{}/{}/timeout={}/requested={}",
+					name,
+					streamId,
+					function,
+					timeout,
+					requested);
+		}
+		remote.sendNew(streamId, function, timeout, requested);
+	}
+
+	@Override
+	public void sendNew(long streamId,
+			String function,
+			long timeout,
+			long requested,
+			int priority,
+			int weight) {
+		if (priority == StreamPriority.DEFAULT_PRIORITY && weight == StreamPriority.DEFAULT_WEIGHT) {
+			sendNew(streamId, function, timeout, requested);
+			return;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("{}/sendNew/{}/{}/timeout={}/requested={}/priority={}/weight={}",
+					name,
+					streamId,
+					function,
+					timeout,
+					requested,
+					priority,
+					weight);
+		}
+		remote.sendNew(streamId, function, timeout, requested, priority, weight);
+	}
+
 	@Override
 	public void sendCancel(long streamId, String reason) {
 		if (log.isDebugEnabled()) {
@@ -205,6 +383,14 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 		remote.sendCancel(streamId, reason);
 	}
 
+	@Override
+	public void sendOverloaded(long streamId, String reason) {
+		if (log.isDebugEnabled()) {
+			log.debug("{}/sendOverloaded/{} {}", name, streamId, reason);
+		}
+		remote.sendOverloaded(streamId, reason);
+	}
+
 	@Override
 	public void sendNext(long streamId, Object o) throws IOException {
 		if (log.isDebugEnabled()) {
@@ -213,6 +399,24 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 		remote.sendNext(streamId, o);
 	}
 
+	@Override
+	public Object encode(Object o) throws IOException {
+		return remote.encode(o);
+	}
+
+	@Override
+	public Object encoding() {
+		return remote.encoding();
+	}
+
+	@Override
+	public void purge(long streamId) {
+		if (log.isDebugEnabled()) {
+			log.debug("{}/purge/{}", name, streamId);
+		}
+		remote.purge(streamId);
+	}
+
 	@Override
 	public void sendError(long streamId, Throwable e) {
 		if (log.isDebugEnabled()) {
@@ -241,4 +445,38 @@ final class StreamOperationsImpl<IN, OUT> extends AtomicLong
 	public boolean isClosed() {
 		return remote.isClosed();
 	}
+
+	static final class StreamPermit {
+
+		final StreamLimiter connectionLimit;
+		final StreamLimiter functionLimit;
+		final long          start;
+
+		StreamPermit(StreamLimiter connectionLimit,
+				StreamLimiter functionLimit,
+				long start) {
+			this.connectionLimit = connectionLimit;
+			this.functionLimit = functionLimit;
+			this.start = start;
+		}
+
+		void release() {
+			long latency = System.nanoTime() - start;
+			if (connectionLimit != null) {
+				connectionLimit.release(latency);
+			}
+			if (functionLimit != null) {
+				functionLimit.release(latency);
+			}
+		}
+
+		void rollback() {
+			if (connectionLimit != null) {
+				connectionLimit.rollback();
+			}
+			if (functionLimit != null) {
+				functionLimit.rollback();
+			}
+		}
+	}
 }
@@ -22,10 +22,117 @@ public interface StreamOutbound {
 
 	void sendNew(long streamId, String function);
 
+	/**
+	 * Open a new stream the remote should abandon after the given time budget.
+	 * Outbounds that cannot propagate a budget open the stream without it.
+	 *
+	 * @param streamId the stream identifier
+	 * @param function the remote function name
+	 * @param timeout the time budget in milliseconds, zero if none
+	 */
+	default void sendNew(long streamId, String function, long timeout) {
+		sendNew(streamId, function);
+	}
+
+	/**
+	 * Open a new stream along with the amount of values the local subscriber already
+	 * requested, so the remote can start emitting without waiting for a separate
+	 * request. Outbounds that cannot carry a request send it right after opening.
+	 *
+	 * @param streamId the stream identifier
+	 * @param function the remote function name
+	 * @param timeout the time budget in milliseconds, zero if none
+	 * @param requested the initial request, zero if none
+	 */
+	default void sendNew(long streamId, String function, long timeout, long requested) {
+		sendNew(streamId, function, timeout);
+		if (requested != 0L) {
+			sendRequested(streamId, requested);
+		}
+	}
+
+	/**
+	 * Open a new stream whose frames are scheduled with the given priority, which is
+	 * propagated to the remote for the frames it sends back. Outbounds that cannot
+	 * schedule streams open it without priority.
+	 *
+	 * @param streamId the stream identifier
+	 * @param function the remote function name
+	 * @param timeout the time budget in milliseconds, zero if none
+	 * @param requested the initial request, zero if none
+	 * @param priority the stream priority, see {@link StreamPriority}
+	 * @param weight the stream weight among the streams of the same priority
+	 */
+	default void sendNew(long streamId,
+			String function,
+			long timeout,
+			long requested,
+			int priority,
+			int weight) {
+		sendNew(streamId, function, timeout, requested);
+	}
+
 	void sendCancel(long streamId, String reason);
 
+	/**
+	 * Cancel a new stream rejected by a local concurrency limit before being started,
+	 * the remote fails it with a {@link java.util.concurrent.RejectedExecutionException}
+	 * and may retry later.
+	 *
+	 * @param streamId the stream identifier
+	 * @param reason the rejection reason
+	 */
+	default void sendOverloaded(long streamId, String reason) {
+		sendCancel(streamId, reason);
+	}
+
 	void sendNext(long streamId, Object o) throws IOException;
 
+	/**
+	 * Encode a value ahead of time so it can be passed to {@link #sendNext} on
+	 * several streams without being encoded again.
+	 *
+	 * @param o the value to encode
+	 *
+	 * @return the encoded value, by default the value itself
+	 *
+	 * @throws IOException if the value cannot be encoded
+	 */
+	default Object encode(Object o) throws IOException {
+		return o;
+	}
+
+	/**
+	 * Identify how {@link #encode} encodes values: a value it encoded can be sent on any
+	 * outbound returning an equal identity.
+	 *
+	 * @return the encoding identity, null if the values it encodes must only be sent on
+	 * this outbound
+	 */
+	default Object encoding() {
+		return null;
+	}
+
+	/**
+	 * Discard the values of a stream that were sent but not yet written, typically
+	 * because the remote cancelled the stream. Values sent afterwards are discarded as
+	 * well until the stream is {@link #forget forgotten}, its error or completion is
+	 * still written.
+	 *
+	 * @param streamId the stream identifier
+	 */
+	default void purge(long streamId) {
+	}
+
+	/**
+	 * Release what is kept of a stream no longer used locally, such as the record of a
+	 * {@link #purge}.
+	 *
+	 * @param streamId the stream identifier
+	 */
+	default void forget(long streamId) {
+	}
+
 	void sendError(long streamId, Throwable e);
 
 	void sendComplete(long streamId);
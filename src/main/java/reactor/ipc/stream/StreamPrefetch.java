@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import reactor.core.Exceptions;
+import reactor.core.Scannable;
+import reactor.core.publisher.Operators;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+import reactor.util.concurrent.Queues;
+import reactor.util.context.Context;
+
+/**
+ * Replenishment policy of a received stream, see {@link IpcPrefetch}.
+ */
+final class StreamPrefetch {
+
+	static final Logger log = Loggers.getLogger(StreamPrefetch.class);
+
+	/**
+	 * Forwards every local request to the remote as is.
+	 */
+	static final StreamPrefetch NONE = new StreamPrefetch(0, 0, false, 0, 0);
+
+	static StreamPrefetch from(IpcPrefetch prefetch) {
+		if (prefetch == null) {
+			return NONE;
+		}
+		if (prefetch.value() < 1 || prefetch.refill() < 1 || prefetch.refill() > 100) {
+			throw new IllegalStateException(
+					"IpcPrefetch requires a positive value and a refill between 1 and 100");
+		}
+		if (prefetch.adaptive() && (prefetch.min() < 1 || prefetch.min() > prefetch.max())) {
+			throw new IllegalStateException(
+					"Adaptive IpcPrefetch requires 1 <= min <= max");
+		}
+		return new StreamPrefetch(prefetch.value(),
+				prefetch.refill(),
+				prefetch.adaptive(),
+				prefetch.min(),
+				prefetch.max());
+	}
+
+	final int prefetch;
+
+	final int refill;
+
+	final boolean adaptive;
+
+	final int min;
+
+	final int max;
+
+	StreamPrefetch(int prefetch, int refill, boolean adaptive, int min, int max) {
+		this.prefetch = adaptive ? Math.max(min, Math.min(max, prefetch)) : prefetch;
+		this.refill = refill;
+		this.adaptive = adaptive;
+		this.min = min;
+		this.max = max;
+	}
+
+	int limit(int window) {
+		return Math.max(1, (int) ((long) window * refill / 100));
+	}
+
+	/**
+	 * Wrap the local subscriber of a received stream, the returned subscriber has to be
+	 * subscribed to the remote {@link Subscription} instead.
+	 *
+	 * @param actual the local subscriber
+	 *
+	 * @return the subscriber applying this policy
+	 */
+	@SuppressWarnings("unchecked")
+	Subscriber<Object> wrap(Subscriber<?> actual) {
+		if (this == NONE) {
+			return (Subscriber<Object>) actual;
+		}
+		return new PrefetchSubscriber((Subscriber<Object>) actual, this);
+	}
+
+	/**
+	 * Buffers the values requested ahead from the remote, {@link Attr#PREFETCH} exposes
+	 * the amount currently requested ahead.
+	 */
+	static final class PrefetchSubscriber
+			implements Subscriber<Object>, Subscription, Scannable {
+
+		final Subscriber<Object> actual;
+
+		final StreamPrefetch policy;
+
+		final Queue<Object> queue;
+
+		Subscription s;
+
+		boolean unbounded;
+
+		/**
+		 * Total amount requested from the remote, {@link Long#MAX_VALUE} once unbounded.
+		 */
+		volatile long issued;
+
+		/**
+		 * Total amount delivered to the local subscriber.
+		 */
+		long consumed;
+
+		volatile int window;
+
+		int limit;
+
+		long lastResize;
+
+		long lastConsumed;
+
+		/**
+		 * Total amount received from the remote, only accessed by {@link #onNext}.
+		 */
+		long received;
+
+		/**
+		 * When the pending round trip sample started, zero if none.
+		 */
+		volatile long rttStart;
+
+		/**
+		 * Amount received before the first value of the pending round trip sample.
+		 */
+		volatile long rttMark;
+
+		/**
+		 * Smoothed round trip in nanoseconds, zero until sampled.
+		 */
+		volatile long rtt;
+
+		volatile boolean done;
+		Throwable error;
+
+		volatile boolean cancelled;
+
+		volatile int started;
+		static final AtomicIntegerFieldUpdater<PrefetchSubscriber> STARTED =
+				AtomicIntegerFieldUpdater.newUpdater(PrefetchSubscriber.class, "started");
+
+		volatile int wip;
+		static final AtomicIntegerFieldUpdater<PrefetchSubscriber> WIP =
+				AtomicIntegerFieldUpdater.newUpdater(PrefetchSubscriber.class, "wip");
+
+		volatile long requested;
+		static final AtomicLongFieldUpdater<PrefetchSubscriber> REQUESTED =
+				AtomicLongFieldUpdater.newUpdater(PrefetchSubscriber.class, "requested");
+
+		PrefetchSubscriber(Subscriber<Object> actual, StreamPrefetch policy) {
+			this.actual = actual;
+			this.policy = policy;
+			this.window = policy.prefetch;
+			this.limit = policy.limit(policy.prefetch);
+			this.queue = policy.adaptive ? Queues.unbounded()
+			                                     .get() : Queues.get(policy.prefetch)
+			                                                    .get();
+		}
+
+		@Override
+		public void onSubscribe(Subscription s) {
+			this.s = s;
+			actual.onSubscribe(this);
+		}
+
+		@Override
+		public void onNext(Object t) {
+			if (done) {
+				return;
+			}
+			// the adaptive queue grows with the window, the remote is held to the demand
+			// issued instead
+			if ((policy.adaptive && sample() > issued) || !queue.offer(t)) {
+				s.cancel();
+				onError(Exceptions.failWithOverflow(
+						"Remote sent more values than requested"));
+				return;
+			}
+			drain();
+		}
+
+		/**
+		 * @return the total amount received, including this value
+		 */
+		long sample() {
+			long r = ++received;
+			long start = rttStart;
+			if (start != 0L && r > rttMark) {
+				long sample = System.nanoTime() - start;
+				long smoothed = rtt;
+				rtt = smoothed == 0L ? sample : smoothed - (smoothed >> 3) + (sample >> 3);
+				rttStart = 0L;
+			}
+			return r;
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			if (done) {
+				Operators.onErrorDropped(t, Context.empty());
+				return;
+			}
+			error = t;
+			done = true;
+			drain();
+		}
+
+		@Override
+		public void onComplete() {
+			if (done) {
+				return;
+			}
+			done = true;
+			drain();
+		}
+
+		@Override
+		public void request(long n) {
+			if (Operators.validate(n)) {
+				Operators.addCap(REQUESTED, this, n);
+				if (started == 0 && STARTED.compareAndSet(this, 0, 1)) {
+					if (n == Long.MAX_VALUE) {
+						unbounded = true;
+						issued = Long.MAX_VALUE;
+						s.request(Long.MAX_VALUE);
+					}
+					else {
+						lastResize = System.nanoTime();
+						requestRemote(window);
+					}
+				}
+				drain();
+			}
+		}
+
+		void requestRemote(long n) {
+			if (policy.adaptive && rttStart == 0L) {
+				rttMark = issued;
+				rttStart = System.nanoTime();
+			}
+			issued += n;
+			s.request(n);
+		}
+
+		void replenish() {
+			int w = window;
+			if (w - (issued - consumed) < limit) {
+				return;
+			}
+			if (policy.adaptive) {
+				w = resize(w);
+			}
+			long n = w - (issued - consumed);
+			if (n > 0L) {
+				requestRemote(n);
+			}
+		}
+
+		int resize(int w) {
+			long now = System.nanoTime();
+			long elapsed = now - lastResize;
+			long delivered = consumed - lastConsumed;
+			long r = rtt;
+
+			lastResize = now;
+			lastConsumed = consumed;
+
+			if (r == 0L || elapsed <= 0L) {
+				return w;
+			}
+
+			long target = (long) (2d * delivered * r / elapsed);
+			int next = (int) Math.max(policy.min,
+					Math.min(Math.min(policy.max, 2L * w), target));
+
+			if (next != w) {
+				if (log.isDebugEnabled()) {
+					log.debug("prefetch/{}->{}/rtt={}us", w, next, r / 1000);
+				}
+				window = next;
+				limit = policy.limit(next);
+			}
+			return next;
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled) {
+				return;
+			}
+			cancelled = true;
+			s.cancel();
+			if (WIP.getAndIncrement(this) == 0) {
+				queue.clear();
+			}
+		}
+
+		@Override
+		public Object scanUnsafe(Attr key) {
+			if (key == Attr.PREFETCH) {
+				return unbounded ? Integer.MAX_VALUE : window;
+			}
+			if (key == Attr.REQUESTED_FROM_DOWNSTREAM) {
+				return requested;
+			}
+			if (key == Attr.BUFFERED) {
+				return queue.size();
+			}
+			if (key == Attr.TERMINATED) {
+				return done && queue.isEmpty();
+			}
+			if (key == Attr.CANCELLED) {
+				return cancelled;
+			}
+			if (key == Attr.ERROR) {
+				return error;
+			}
+			return null;
+		}
+
+		void drain() {
+			if (WIP.getAndIncrement(this) != 0) {
+				return;
+			}
+
+			int missed = 1;
+
+			for (; ; ) {
+				long r = requested;
+				long e = 0L;
+
+				while (e != r) {
+					boolean d = done;
+					Object v = queue.poll();
+					boolean empty = v == null;
+
+					if (checkTerminated(d, empty)) {
+						return;
+					}
+					if (empty) {
+						break;
+					}
+
+					try {
+						actual.onNext(v);
+					}
+					catch (Throwable ex) {
+						Exceptions.throwIfFatal(ex);
+						cancelled = true;
+						s.cancel();
+						queue.clear();
+						actual.onError(ex);
+						return;
+					}
+					e++;
+					consumed++;
+
+					if (!unbounded) {
+						replenish();
+					}
+				}
+
+				if (e == r && checkTerminated(done, queue.isEmpty())) {
+					return;
+				}
+
+				if (e != 0L && r != Long.MAX_VALUE) {
+					REQUESTED.addAndGet(this, -e);
+				}
+
+				missed = WIP.addAndGet(this, -missed);
+				if (missed == 0) {
+					break;
+				}
+			}
+		}
+
+		boolean checkTerminated(boolean d, boolean empty) {
+			if (cancelled) {
+				queue.clear();
+				return true;
+			}
+			if (d && empty) {
+				Throwable e = error;
+				if (e != null) {
+					actual.onError(e);
+				}
+				else {
+					actual.onComplete();
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}
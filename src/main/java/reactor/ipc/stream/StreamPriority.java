@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import org.reactivestreams.Subscriber;
+import reactor.core.CoreSubscriber;
+import reactor.util.context.Context;
+
+/**
+ * Scheduling class of the frames of a client stream, set by {@link Ipc#priority()} and
+ * {@link Ipc#weight()} or at call time for the functions returning a
+ * {@link org.reactivestreams.Publisher}:
+ * <pre>
+ * api.export(query)
+ *    .subscriberContext(StreamPriority.of(StreamPriority.LOWEST, 4));
+ * </pre>
+ * Outbounds write the streams of a more urgent priority first, streams of the same
+ * priority share the connection in proportion to their weight. The priority is sent
+ * along with the new stream so the remote schedules the frames it sends back the same
+ * way.
+ */
+public final class StreamPriority {
+
+	/**
+	 * The most urgent priority.
+	 */
+	public static final int HIGHEST = 0;
+
+	/**
+	 * The least urgent priority.
+	 */
+	public static final int LOWEST = 7;
+
+	/**
+	 * The priority of streams not setting any.
+	 */
+	public static final int DEFAULT_PRIORITY = 3;
+
+	/**
+	 * The weight of streams not setting any.
+	 */
+	public static final int DEFAULT_WEIGHT = 16;
+
+	public static final int MAX_WEIGHT = 256;
+
+	static final StreamPriority DEFAULT =
+			new StreamPriority(DEFAULT_PRIORITY, DEFAULT_WEIGHT);
+
+	/**
+	 * @param priority the priority, from {@link #HIGHEST} to {@link #LOWEST}
+	 * @param weight the weight among the streams of the same priority, 1 to
+	 * {@link #MAX_WEIGHT}
+	 *
+	 * @return a subscriber context setting the priority of the stream it is applied to
+	 */
+	public static Context of(int priority, int weight) {
+		if (!valid(priority, weight)) {
+			throw new IllegalArgumentException(
+					"StreamPriority requires a priority between 0 and 7 and a weight between 1 and 256");
+		}
+		return Context.of(StreamPriority.class, new StreamPriority(priority, weight));
+	}
+
+	static StreamPriority from(Ipc ipc) {
+		if (ipc.priority() == DEFAULT_PRIORITY && ipc.weight() == DEFAULT_WEIGHT) {
+			return DEFAULT;
+		}
+		if (!valid(ipc.priority(), ipc.weight())) {
+			throw new IllegalStateException(
+					"Ipc requires a priority between 0 and 7 and a weight between 1 and 256");
+		}
+		return new StreamPriority(ipc.priority(), ipc.weight());
+	}
+
+	static boolean valid(int priority, int weight) {
+		return priority >= HIGHEST && priority <= LOWEST && weight >= 1 && weight <= MAX_WEIGHT;
+	}
+
+	final int priority;
+
+	final int weight;
+
+	StreamPriority(int priority, int weight) {
+		this.priority = priority;
+		this.weight = weight;
+	}
+
+	/**
+	 * @param s the subscriber of a client stream
+	 *
+	 * @return the priority set in the subscriber context, this one otherwise
+	 */
+	StreamPriority from(Subscriber<?> s) {
+		if (s instanceof CoreSubscriber) {
+			return ((CoreSubscriber<?>) s).currentContext()
+			                               .getOrDefault(StreamPriority.class, this);
+		}
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamPriority{priority=" + priority + ", weight=" + weight + "}";
+	}
+}
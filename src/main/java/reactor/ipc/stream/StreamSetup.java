@@ -17,6 +17,7 @@
 package reactor.ipc.stream;
 
 import java.lang.reflect.Proxy;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Objects;
 import java.util.function.BiConsumer;
@@ -80,17 +81,22 @@ abstract class StreamSetup {
 		@SuppressWarnings("unchecked")
 		public void accept(MonoSink<API> sink) {
 			Object localAPI;
+			Map<String, Object> serverMap;
+			Map<String, StreamLimiter> serverLimits;
 
 			if (localSupplier == null) {
 				localAPI = null;
+				serverMap = null;
+				serverLimits = null;
 			}
 			else {
 				localAPI = Objects.requireNonNull(localSupplier.get(), "localSupplier");
+				serverMap = IpcServiceMapper.serverServiceMap(localAPI);
+				serverLimits = IpcServiceMapper.serverLimits(localAPI);
 			}
 
 			Mono<? extends Disposable> connect = connector.newHandler((in, out) -> {
 				Map<String, Object> clientMap;
-				Map<String, Object> serverMap;
 
 				StreamOperationsImpl[] am = {null};
 				API api;
@@ -145,10 +151,8 @@ abstract class StreamSetup {
 						Objects.requireNonNull(ipcWriter.apply(out), "remote");
 
 				if (localAPI != null) {
-					serverMap = IpcServiceMapper.serverServiceMap(localAPI);
-
 					am[0] = new StreamOperationsImpl<>(endpointName,
-							(streamId, function, iom) -> {
+							(streamId, function, timeout, iom) -> {
 								Object action = serverMap.get(function);
 								if (action == null) {
 									throw new IllegalStateException("Function " + function + " not found");
@@ -156,15 +160,24 @@ abstract class StreamSetup {
 								return IpcServiceMapper.dispatchServer(streamId,
 										action,
 										iom,
-										ctx);
-							}, streamOutbound, in,
+										timeout > 0L ?
+												new DeadlineStreamContext<>(ctx,
+														System.currentTimeMillis() + timeout) :
+												ctx);
+							},
+							IpcServiceMapper.connectionLimit(localAPI),
+							serverLimits,
+							streamOutbound,
+							in,
 							() -> IpcServiceMapper.invokeDone(localAPI, ctx));
 
 					IpcServiceMapper.invokeInit(localAPI, ctx);
 				}
 				else {
 					am[0] = new StreamOperationsImpl<>(endpointName,
-							(streamId, function, iom) -> false,
+							(streamId, function, timeout, iom) -> false,
+							null,
+							Collections.emptyMap(),
 							streamOutbound,
 							in,
 							() -> {
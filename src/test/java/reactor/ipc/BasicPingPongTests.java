@@ -16,22 +16,60 @@
 
 package reactor.ipc;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 import org.junit.Test;
 import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
 import reactor.core.Disposable;
+import reactor.core.Scannable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
+import reactor.ipc.socket.FrameCompression;
 import reactor.ipc.socket.SimpleClient;
 import reactor.ipc.socket.SimpleContext;
 import reactor.ipc.socket.SimpleServer;
+import reactor.ipc.socket.WaitStrategy;
 import reactor.ipc.stream.Ipc;
+import reactor.ipc.stream.IpcLimit;
+import reactor.ipc.stream.IpcPrefetch;
 import reactor.ipc.stream.StreamContext;
+import reactor.ipc.stream.StreamPriority;
 import reactor.util.Logger;
 import reactor.util.Loggers;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class BasicPingPongTests {
 	
 	static final Logger log = Loggers.getLogger(BasicPingPongTests.class);
@@ -145,6 +183,59 @@ public class BasicPingPongTests {
 		                       .blockLast().toString());
 	}
 
+	/**
+	 * A server exposing a receiver and a client producing an API to it, both disposed
+	 * on close.
+	 */
+	static final class Peers<API extends Disposable> implements AutoCloseable {
+
+		final SimpleContext server;
+		final API           api;
+
+		Peers(SimpleContext server, API api) {
+			this.server = server;
+			this.api = api;
+		}
+
+		static <API extends Disposable> Peers<API> of(Supplier<?> receiver,
+				Class<API> api) {
+			return of(receiver, s -> s, api, c -> c);
+		}
+
+		static <API extends Disposable> Peers<API> of(Supplier<?> receiver,
+				UnaryOperator<SimpleServer> server,
+				Class<API> api,
+				UnaryOperator<SimpleClient> client) {
+			SimpleContext c = serve(receiver, server);
+			return new Peers<>(c, connect(c, api, client));
+		}
+
+		static SimpleContext serve(Supplier<?> receiver,
+				UnaryOperator<SimpleServer> server) {
+			return server.apply(SimpleServer.create(0))
+			             .newReceiver(receiver)
+			             .cast(SimpleContext.class)
+			             .block();
+		}
+
+		static <API> API connect(SimpleContext server,
+				Class<API> api,
+				UnaryOperator<SimpleClient> client) {
+			return client.apply(SimpleClient.create(server.address()
+			                                              .getAddress(),
+					server.address()
+					      .getPort()))
+			             .newProducer(api)
+			             .block();
+		}
+
+		@Override
+		public void close() {
+			api.dispose();
+			server.dispose();
+		}
+	}
+
 	@Test
 	public void pingPong() throws Exception {
 
@@ -264,4 +355,717 @@ public class BasicPingPongTests {
 		api.dispose();
 		c.dispose();
 	}
+
+	public interface ReplayClientAPI extends Disposable {
+
+		@Ipc
+		Flux<Integer> snapshot();
+
+		@Ipc
+		Flux<Integer> updates();
+	}
+
+	public static final class ReplayServerAPI {
+
+		final AtomicInteger invocations = new AtomicInteger();
+
+		final CountDownLatch disconnected = new CountDownLatch(1);
+
+		@Ipc(replay = 60_000)
+		public Publisher<Integer> snapshot(StreamContext<?> ctx) {
+			invocations.incrementAndGet();
+			return Flux.range(1, 3);
+		}
+
+		@Ipc(replay = 200)
+		public Publisher<Integer> updates(StreamContext<?> ctx) {
+			return Flux.just(1)
+			           .concatWith(Flux.never())
+			           .doOnCancel(disconnected::countDown);
+		}
+	}
+
+	@Test
+	public void replayedSend() throws Exception {
+		ReplayServerAPI server = new ReplayServerAPI();
+
+		SimpleContext c = Peers.serve(() -> server, s -> s);
+
+		for (int i = 0; i < 2; i++) {
+			ReplayClientAPI api = Peers.connect(c, ReplayClientAPI.class, cl -> cl);
+
+			assertEquals(Arrays.asList(1, 2, 3),
+					api.snapshot()
+					   .collectList()
+					   .block());
+			assertEquals(Arrays.asList(1, 2, 3),
+					api.snapshot()
+					   .collectList()
+					   .block());
+
+			api.dispose();
+		}
+
+		assertEquals(1, server.invocations.get());
+
+		c.dispose();
+	}
+
+	@Test
+	public void replayedSendLeft() throws Exception {
+		ReplayServerAPI server = new ReplayServerAPI();
+
+		try (Peers<ReplayClientAPI> peers = Peers.of(() -> server, ReplayClientAPI.class)) {
+			assertEquals(Integer.valueOf(1),
+					peers.api.updates()
+					         .blockFirst());
+
+			// left by its only stream, the source is disconnected once the window is over
+			assertTrue(server.disconnected.await(5, TimeUnit.SECONDS));
+		}
+	}
+
+	public interface LimitClientAPI extends Disposable {
+
+		@Ipc
+		Flux<Integer> slow();
+	}
+
+	public static final class LimitServerAPI {
+
+		@Ipc
+		@IpcLimit(1)
+		public Publisher<Integer> slow(StreamContext<?> ctx) {
+			return Flux.never();
+		}
+	}
+
+	@Test
+	public void overloadedFunction() throws Exception {
+		try (Peers<LimitClientAPI> peers = Peers.of(LimitServerAPI::new, LimitClientAPI.class)) {
+			Disposable first = peers.api.slow()
+			                            .subscribe();
+			try {
+				peers.api.slow()
+				         .blockFirst(Duration.ofSeconds(5));
+				fail("Expected the second stream to be rejected");
+			}
+			catch (RejectedExecutionException expected) {
+				log.info(expected.getMessage());
+			}
+			finally {
+				first.dispose();
+			}
+		}
+	}
+
+	public interface DeadlineClientAPI extends Disposable {
+
+		@Ipc(timeout = 200)
+		Flux<Long> ticks();
+	}
+
+	public static final class DeadlineServerAPI {
+
+		final CountDownLatch cancelled = new CountDownLatch(1);
+
+		volatile long deadline;
+
+		@Ipc
+		public Publisher<Long> ticks(StreamContext<?> ctx) {
+			deadline = ctx.deadline();
+			return Flux.interval(Duration.ofMillis(50))
+			           .doOnCancel(cancelled::countDown);
+		}
+	}
+
+	@Test
+	public void deadlineExceeded() throws Exception {
+		DeadlineServerAPI server = new DeadlineServerAPI();
+
+		try (Peers<DeadlineClientAPI> peers = Peers.of(() -> server, DeadlineClientAPI.class)) {
+			try {
+				peers.api.ticks()
+				         .blockLast(Duration.ofSeconds(5));
+				fail("Expected the stream to exceed its deadline");
+			}
+			catch (Exception expected) {
+				assertTrue(expected.getMessage(),
+						expected.getMessage()
+						        .contains("deadline exceeded"));
+			}
+
+			// checked while connected, not cancelled by the connection closing
+			assertTrue(server.cancelled.await(5, TimeUnit.SECONDS));
+			assertTrue(server.deadline != Long.MAX_VALUE);
+		}
+	}
+
+	public interface PrefetchClientAPI extends Disposable {
+
+		@Ipc
+		@IpcPrefetch(32)
+		Flux<Integer> range();
+
+		@Ipc
+		@IpcPrefetch(value = 32, adaptive = true, min = 8, max = 512)
+		Flux<Integer> adaptiveRange();
+	}
+
+	public static final class PrefetchServerAPI {
+
+		final AtomicInteger requests = new AtomicInteger();
+
+		@Ipc
+		public Publisher<Integer> range(StreamContext<?> ctx) {
+			return Flux.range(1, 1000)
+			           .doOnRequest(n -> requests.incrementAndGet());
+		}
+
+		@Ipc
+		public Publisher<Integer> adaptiveRange(StreamContext<?> ctx) {
+			return Flux.range(1, 10_000);
+		}
+	}
+
+	@Test
+	public void prefetchedReceive() throws Exception {
+		PrefetchServerAPI server = new PrefetchServerAPI();
+
+		try (Peers<PrefetchClientAPI> peers = Peers.of(() -> server, PrefetchClientAPI.class)) {
+			PrefetchClientAPI api = peers.api;
+
+			assertEquals(1000,
+					api.range()
+					   .limitRate(1)
+					   .count()
+					   .block()
+					   .intValue());
+			assertTrue("Requests not replenished in batches: " + server.requests.get(),
+					server.requests.get() <= 1 + 1000 / 24);
+
+			AtomicReference<Subscription> subscription = new AtomicReference<>();
+			assertEquals(10_000,
+					api.adaptiveRange()
+					   .doOnSubscribe(subscription::set)
+					   .limitRate(1)
+					   .count()
+					   .block()
+					   .intValue());
+			int window = Scannable.from(subscription.get())
+			                      .scan(Scannable.Attr.PREFETCH);
+			assertTrue("Window out of bounds: " + window, window >= 8 && window <= 512);
+		}
+	}
+
+	public interface ObjectClientAPI extends Disposable {
+
+		@Ipc
+		Flux<Map.Entry<String, Integer>> entries();
+	}
+
+	public static final class ObjectServerAPI {
+
+		@Ipc
+		public Publisher<Map.Entry<String, Integer>> entries(StreamContext<?> ctx) {
+			return Flux.range(0, 3000)
+			           .map(ObjectServerAPI::entry);
+		}
+
+		static Map.Entry<String, Integer> entry(int i) {
+			return new AbstractMap.SimpleImmutableEntry<>("object-stream-key-" + i % 1500,
+					i);
+		}
+	}
+
+	@Test
+	public void objectStream() throws Exception {
+		try (Peers<ObjectClientAPI> peers = Peers.of(ObjectServerAPI::new, ObjectClientAPI.class)) {
+			ObjectClientAPI api = peers.api;
+
+			for (int i = 0; i < 2; i++) {
+				assertEquals(Flux.range(0, 3000)
+				                 .map(ObjectServerAPI::entry)
+				                 .collectList()
+				                 .block(),
+						api.entries()
+						   .collectList()
+						   .block(Duration.ofSeconds(10)));
+			}
+		}
+	}
+
+	public interface CompressionClientAPI extends Disposable {
+
+		@Ipc
+		Flux<String> echo(Publisher<String> documents);
+	}
+
+	public static final class CompressionServerAPI {
+
+		@Ipc
+		public Publisher<String> echo(StreamContext<?> ctx, Publisher<String> documents) {
+			return documents;
+		}
+
+		static String document(int i) {
+			StringBuilder sb = new StringBuilder("[");
+			for (int j = 0; j < 50; j++) {
+				sb.append("{\"id\":")
+				  .append(i * 50 + j)
+				  .append(",\"name\":\"item-")
+				  .append(j)
+				  .append("\",\"tags\":[\"compressible\",\"payload\"]},");
+			}
+			return sb.append("{}]")
+			         .toString();
+		}
+	}
+
+	@Test
+	public void compressedEcho() throws Exception {
+		FrameCompression lz4 = FrameCompression.lz4(256);
+		FrameCompression deflate = FrameCompression.deflate(6, 256);
+
+		try (Peers<CompressionClientAPI> peers = Peers.of(CompressionServerAPI::new,
+				s -> s.compression(lz4),
+				CompressionClientAPI.class,
+				c -> c.compression(deflate))) {
+			CompressionClientAPI api = peers.api;
+
+			List<String> documents = Flux.range(0, 100)
+			                             .map(CompressionServerAPI::document)
+			                             .concatWith(Flux.just("short"))
+			                             .collectList()
+			                             .block();
+
+			assertEquals(documents,
+					api.echo(Flux.fromIterable(documents))
+					   .collectList()
+					   .block(Duration.ofSeconds(10)));
+
+			log.info("Client: " + deflate);
+			log.info("Server: " + lz4);
+			assertEquals(100, deflate.compressedFrames());
+			assertEquals(100, lz4.compressedFrames());
+			assertTrue(deflate.ratio() < 0.5);
+			assertTrue(lz4.ratio() < 0.5);
+		}
+	}
+
+	@Test
+	public void compressedStream() throws Exception {
+		byte[] dictionary = "{\"id\":0,\"status\":\"accepted\",\"region\":\"eu-west\"}"
+				.getBytes(StandardCharsets.UTF_8);
+		FrameCompression client = FrameCompression.deflateStream(6, dictionary);
+		FrameCompression server = FrameCompression.deflateStream(6, dictionary);
+
+		try (Peers<CompressionClientAPI> peers = Peers.of(CompressionServerAPI::new,
+				s -> s.compression(server),
+				CompressionClientAPI.class,
+				c -> c.compression(client))) {
+			CompressionClientAPI api = peers.api;
+
+			List<String> messages = Flux.range(0, 1000)
+			                            .map(i -> "{\"id\":" + i + ",\"status\":\"accepted\",\"region\":\"eu-west\"}")
+			                            .collectList()
+			                            .block();
+
+			assertEquals(messages,
+					api.echo(Flux.fromIterable(messages))
+					   .collectList()
+					   .block(Duration.ofSeconds(10)));
+
+			log.info("Client: " + client);
+			log.info("Server: " + server);
+			assertTrue(client.toString(), client.ratio() < 0.5);
+			assertTrue(server.toString(), server.ratio() < 0.5);
+		}
+	}
+
+	public interface FragmentClientAPI extends Disposable {
+
+		@Ipc
+		Flux<byte[]> bytes(Publisher<byte[]> values);
+
+		@Ipc
+		Flux<String> text(Publisher<String> values);
+	}
+
+	public static final class FragmentServerAPI {
+
+		@Ipc
+		public Publisher<byte[]> bytes(StreamContext<?> ctx, Publisher<byte[]> values) {
+			return values;
+		}
+
+		@Ipc
+		public Publisher<String> text(StreamContext<?> ctx, Publisher<String> values) {
+			return values;
+		}
+	}
+
+	@Test
+	public void fragmentedValues() throws Exception {
+		try (Peers<FragmentClientAPI> peers = Peers.of(FragmentServerAPI::new,
+				s -> s,
+				FragmentClientAPI.class,
+				c -> c.compression(FrameCompression.lz4(1024)))) {
+			FragmentClientAPI api = peers.api;
+
+			Random random = new Random(0);
+			List<byte[]> blobs = Flux.range(0, 4)
+			                         .map(i -> {
+				                         byte[] b = new byte[(1 << 20) + i];
+				                         random.nextBytes(b);
+				                         return b;
+			                         })
+			                         .collectList()
+			                         .block();
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 20; i++) {
+				sb.append(CompressionServerAPI.document(i))
+				  .append("\u00e9t\u00e9 \ud83d\ude00 ");
+			}
+			List<String> texts = Flux.range(0, 100)
+			                         .map(i -> i % 10 == 0 ? sb.toString() + i : "small-" + i)
+			                         .collectList()
+			                         .block();
+
+			CompletableFuture<List<byte[]>> echoedBlobs =
+					api.bytes(Flux.fromIterable(blobs))
+					   .collectList()
+					   .toFuture();
+
+			List<String> echoedTexts = api.text(Flux.fromIterable(texts))
+			                              .collectList()
+			                              .block(Duration.ofSeconds(10));
+
+			List<byte[]> received = echoedBlobs.get(10, TimeUnit.SECONDS);
+
+			assertEquals(texts, echoedTexts);
+			assertEquals(blobs.size(), received.size());
+			for (int i = 0; i < blobs.size(); i++) {
+				assertTrue("Blob " + i, Arrays.equals(blobs.get(i), received.get(i)));
+			}
+		}
+	}
+
+	public interface PriorityClientAPI extends Disposable {
+
+		@Ipc
+		@IpcPrefetch(64)
+		Flux<byte[]> bulk();
+
+		@Ipc(priority = StreamPriority.HIGHEST)
+		Mono<Integer> ping(Mono<Integer> value);
+	}
+
+	public static final class PriorityServerAPI {
+
+		@Ipc
+		public Publisher<byte[]> bulk(StreamContext<?> ctx) {
+			byte[] chunk = new byte[256 * 1024];
+			return Flux.range(0, 512)
+			           .map(i -> chunk);
+		}
+
+		@Ipc
+		public Publisher<Integer> ping(StreamContext<?> ctx, Publisher<Integer> value) {
+			return value;
+		}
+	}
+
+	@Test
+	public void prioritizedStreams() throws Exception {
+		try (Peers<PriorityClientAPI> peers = Peers.of(PriorityServerAPI::new, PriorityClientAPI.class)) {
+			PriorityClientAPI api = peers.api;
+
+			CountDownLatch started = new CountDownLatch(1);
+			AtomicInteger received = new AtomicInteger();
+
+			CompletableFuture<Long> bulk =
+					api.bulk()
+					   .doOnNext(v -> {
+						   received.incrementAndGet();
+						   started.countDown();
+					   })
+					   .count()
+					   .subscriberContext(StreamPriority.of(StreamPriority.LOWEST, 1))
+					   .toFuture();
+
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+
+			for (int i = 0; i < 3; i++) {
+				assertEquals(i,
+						api.ping(Mono.just(i))
+						   .block(Duration.ofSeconds(10))
+						   .intValue());
+			}
+			int duringPings = received.get();
+
+			assertEquals(512L, bulk.get(10, TimeUnit.SECONDS)
+			                       .longValue());
+			log.info("Bulk values received when the pings completed: " + duringPings);
+			assertTrue("Pings waited for the bulk stream: " + duringPings, duringPings < 512);
+
+			// the more urgent stream goes first even when opened last, the other only
+			// got the values sent before
+			AtomicInteger low = new AtomicInteger();
+			CompletableFuture<Long> lowBulk = bulk(api, StreamPriority.LOWEST, 1, low);
+			CompletableFuture<Long> highBulk =
+					bulk(api, StreamPriority.HIGHEST, 1, new AtomicInteger());
+			assertEquals(512L, highBulk.get(10, TimeUnit.SECONDS)
+			                           .longValue());
+			int lowReceived = low.get();
+			assertEquals(512L, lowBulk.get(10, TimeUnit.SECONDS)
+			                          .longValue());
+			log.info("Lowest priority values received when the highest completed: " + lowReceived);
+			assertTrue("Lowest priority stream was not delayed: " + lowReceived,
+					lowReceived < 64);
+
+			// a third of the bandwidth for weight 1 against weight 3
+			AtomicInteger light = new AtomicInteger();
+			CompletableFuture<Long> lightBulk = bulk(api, StreamPriority.LOWEST, 1, light);
+			CompletableFuture<Long> heavyBulk =
+					bulk(api, StreamPriority.LOWEST, 3, new AtomicInteger());
+			assertEquals(512L, heavyBulk.get(10, TimeUnit.SECONDS)
+			                            .longValue());
+			int lightReceived = light.get();
+			assertEquals(512L, lightBulk.get(10, TimeUnit.SECONDS)
+			                            .longValue());
+			log.info("Weight 1 values received when the weight 3 stream completed: " + lightReceived);
+			assertTrue("Weight 1 stream got an unfair share: " + lightReceived,
+					lightReceived > 512 / 6 && lightReceived < 512 / 2);
+		}
+	}
+
+	static CompletableFuture<Long> bulk(PriorityClientAPI api,
+			int priority,
+			int weight,
+			AtomicInteger received) {
+		return api.bulk()
+		          .doOnNext(v -> received.incrementAndGet())
+		          .count()
+		          .subscriberContext(StreamPriority.of(priority, weight))
+		          .toFuture();
+	}
+
+	public interface ResumeClientAPI extends Disposable {
+
+		@Ipc
+		Flux<Integer> echo(Flux<Integer> values);
+	}
+
+	public static final class ResumeServerAPI {
+
+		@Ipc
+		public Publisher<Integer> echo(StreamContext<?> ctx, Publisher<Integer> values) {
+			return values;
+		}
+	}
+
+	/**
+	 * Forwards connections to a server and drops them all on demand.
+	 */
+	static final class DroppingProxy implements Closeable {
+
+		final ServerSocket  server;
+		final int           target;
+		final Set<Socket>   sockets;
+		final AtomicInteger connections;
+
+		DroppingProxy(int target) throws IOException {
+			this.server = new ServerSocket(0);
+			this.target = target;
+			this.sockets = ConcurrentHashMap.newKeySet();
+			this.connections = new AtomicInteger();
+			Thread t = new Thread(this::accept, "dropping-proxy");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int port() {
+			return server.getLocalPort();
+		}
+
+		void accept() {
+			try {
+				for (; ; ) {
+					Socket a = server.accept();
+					Socket b = new Socket(InetAddress.getLoopbackAddress(), target);
+					sockets.add(a);
+					sockets.add(b);
+					connections.incrementAndGet();
+					pump(a, b);
+					pump(b, a);
+				}
+			}
+			catch (IOException ex) {
+				// closed
+			}
+		}
+
+		void pump(Socket from, Socket to) {
+			Thread t = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					int n;
+					while ((n = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, n);
+					}
+				}
+				catch (IOException ex) {
+					// dropped
+				}
+				close(from);
+				close(to);
+			}, "dropping-proxy-pump");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void drop() {
+			for (Socket s : sockets) {
+				close(s);
+			}
+		}
+
+		void close(Socket s) {
+			sockets.remove(s);
+			try {
+				s.close();
+			}
+			catch (IOException ex) {
+				// ignored
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			server.close();
+			drop();
+		}
+	}
+
+	@Test
+	public void resumedSession() throws Exception {
+		SimpleContext c = Peers.serve(ResumeServerAPI::new,
+				s -> s.resume(Duration.ofSeconds(10), 1 << 22));
+
+		try (DroppingProxy proxy = new DroppingProxy(c.address()
+		                                              .getPort())) {
+			ResumeClientAPI api = SimpleClient.create(InetAddress.getLoopbackAddress(),
+					proxy.port())
+			                                  .resume(Duration.ofSeconds(10), 1 << 22)
+			                                  .newProducer(ResumeClientAPI.class)
+			                                  .block();
+
+			List<Integer> values = Flux.range(0, 2000)
+			                           .collectList()
+			                           .block();
+
+			CountDownLatch halfway = new CountDownLatch(values.size() / 4);
+			CompletableFuture<List<Integer>> echoed =
+					api.echo(Flux.fromIterable(values)
+					             .delayElements(Duration.ofMillis(1)))
+					   .doOnNext(v -> halfway.countDown())
+					   .collectList()
+					   .toFuture();
+
+			assertTrue(halfway.await(10, TimeUnit.SECONDS));
+			proxy.drop();
+
+			assertEquals(values, echoed.get(20, TimeUnit.SECONDS));
+			assertTrue("The client did not reconnect: " + proxy.connections.get(),
+					proxy.connections.get() > 1);
+
+			api.dispose();
+		}
+		c.dispose();
+	}
+
+	@Test
+	public void parallelDecoding() throws Exception {
+		try (Peers<CompressionClientAPI> peers = Peers.of(CompressionServerAPI::new,
+				s -> s.decodeParallelism(3),
+				CompressionClientAPI.class,
+				c -> c.decodeParallelism(3))) {
+			CompressionClientAPI api = peers.api;
+
+			List<List<String>> streams = Flux.range(0, 8)
+			                                 .map(s -> Flux.range(0, 200)
+			                                               .map(i -> text(s, i))
+			                                               .collectList()
+			                                               .block())
+			                                 .collectList()
+			                                 .block();
+
+			// long and short texts alternate, decoded in lanes and from the read thread
+			assertEquals(streams,
+					Flux.fromIterable(streams)
+					    .flatMapSequential(documents -> api.echo(Flux.fromIterable(documents))
+					                                       .collectList(), 8)
+					    .collectList()
+					    .block(Duration.ofSeconds(30)));
+		}
+	}
+
+	static String text(int stream, int i) {
+		char[] padding = new char[i % 2 == 0 ? 5000 + i : 0];
+		Arrays.fill(padding, (char) ('a' + stream));
+		return stream + "-" + i + new String(padding);
+	}
+
+	@Test
+	public void parallelEncoding() throws Exception {
+		try (Peers<ObjectClientAPI> peers = Peers.of(ObjectServerAPI::new,
+				s -> s.encodeParallelism(4),
+				ObjectClientAPI.class,
+				c -> c.decodeParallelism(2))) {
+			ObjectClientAPI api = peers.api;
+
+			// a single producer, its values serialized on several threads
+			assertEquals(Flux.range(0, 3000)
+			                 .map(ObjectServerAPI::entry)
+			                 .collectList()
+			                 .block(),
+					api.entries()
+					   .collectList()
+					   .block(Duration.ofSeconds(10)));
+		}
+	}
+
+	@Test
+	public void waitStrategies() throws Exception {
+		Queue<Throwable> uncaught = new ConcurrentLinkedQueue<>();
+		List<Thread> threads = new CopyOnWriteArrayList<>();
+		for (WaitStrategy wait : WaitStrategy.values()) {
+			try (Peers<CompressionClientAPI> peers = Peers.of(CompressionServerAPI::new,
+					s -> s.waitStrategy(wait),
+					CompressionClientAPI.class,
+					c -> c.waitStrategy(wait, r -> {
+						Thread t = new Thread(r, "pinned-" + wait);
+						t.setDaemon(true);
+						t.setUncaughtExceptionHandler((th, e) -> uncaught.add(e));
+						threads.add(t);
+						return t;
+					}))) {
+				for (int i = 0; i < 20; i++) {
+					assertEquals(wait + "-" + i,
+							peers.api.echo(Flux.just(wait + "-" + i))
+							         .blockLast(Duration.ofSeconds(5)));
+				}
+			}
+		}
+		// the read loops end on their own once their socket is closed
+		for (Thread t : threads) {
+			t.join(5000);
+		}
+		assertTrue("failed on dispose: " + uncaught, uncaught.isEmpty());
+	}
+
 }
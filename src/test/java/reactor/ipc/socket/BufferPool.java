@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles byte arrays in power-of-two size classes from {@link #MIN_SIZE} to
+ * {@link #MAX_SIZE}. Larger requests are allocated and dropped on release.
+ * <p>
+ * Acquired arrays must be released exactly once when their content is no longer
+ * needed; {@link #outstanding()} counts the arrays not released yet so leaks can be
+ * reported when the owner is disposed. A tracked pool also remembers which arrays are
+ * out, rejecting a second release of the same array or one it never handed out.
+ */
+final class BufferPool {
+
+	/**
+	 * Whether pools track their arrays by default, when assertions are enabled.
+	 */
+	static final boolean TRACKED = BufferPool.class.desiredAssertionStatus();
+
+	static final int MIN_SHIFT = 6;
+	static final int MAX_SHIFT = 16;
+
+	static final int MIN_SIZE = 1 << MIN_SHIFT;
+	static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+	final Queue<byte[]>[] classes;
+
+	final AtomicInteger outstanding;
+
+	/**
+	 * The arrays acquired and not released yet, compared by identity, null if not
+	 * tracked.
+	 */
+	final Set<byte[]> acquired;
+
+	/**
+	 * @param maxPerClass the number of free arrays kept per size class
+	 */
+	BufferPool(int maxPerClass) {
+		this(maxPerClass, TRACKED);
+	}
+
+	/**
+	 * @param maxPerClass the number of free arrays kept per size class
+	 * @param tracked whether to remember the acquired arrays to check their release
+	 */
+	@SuppressWarnings("unchecked")
+	BufferPool(int maxPerClass, boolean tracked) {
+		this.classes = new Queue[MAX_SHIFT - MIN_SHIFT + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new ArrayBlockingQueue<>(maxPerClass);
+		}
+		this.outstanding = new AtomicInteger();
+		this.acquired = tracked ? ConcurrentHashMap.newKeySet() : null;
+	}
+
+	/**
+	 * Return an array of at least {@code size} bytes, its length is the size class.
+	 *
+	 * @param size the minimum length
+	 *
+	 * @return a pooled or new array
+	 */
+	byte[] acquire(int size) {
+		outstanding.getAndIncrement();
+		byte[] b;
+		if (size > MAX_SIZE) {
+			b = new byte[size];
+		}
+		else {
+			int shift =
+					size <= MIN_SIZE ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(size - 1);
+			b = classes[shift - MIN_SHIFT].poll();
+			if (b == null) {
+				b = new byte[1 << shift];
+			}
+		}
+		if (acquired != null) {
+			acquired.add(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Give back an array obtained from {@link #acquire(int)}, it must not be used
+	 * afterwards.
+	 *
+	 * @param b the array to recycle
+	 *
+	 * @throws IllegalStateException if the array is not out of this pool
+	 */
+	void release(byte[] b) {
+		if (acquired != null && !acquired.remove(b)) {
+			throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+		}
+		if (outstanding.getAndDecrement() <= 0) {
+			outstanding.getAndIncrement();
+			throw new IllegalStateException("Buffer released more times than acquired");
+		}
+		int length = b.length;
+		if (length <= MAX_SIZE && length >= MIN_SIZE && Integer.bitCount(length) == 1) {
+			classes[Integer.numberOfTrailingZeros(length) - MIN_SHIFT].offer(b);
+		}
+	}
+
+	/**
+	 * @return the number of acquired arrays not released yet
+	 */
+	int outstanding() {
+		return outstanding.get();
+	}
+}
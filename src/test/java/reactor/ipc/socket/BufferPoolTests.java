@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class BufferPoolTests {
+
+	@Test
+	public void sizeClasses() {
+		BufferPool pool = new BufferPool(4, true);
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(0).length);
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(1).length);
+		assertEquals(BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE).length);
+		assertEquals(2 * BufferPool.MIN_SIZE, pool.acquire(BufferPool.MIN_SIZE + 1).length);
+		assertEquals(4096, pool.acquire(3000).length);
+		assertEquals(BufferPool.MAX_SIZE, pool.acquire(BufferPool.MAX_SIZE).length);
+		// larger ones are not pooled, they are allocated exactly
+		assertEquals(BufferPool.MAX_SIZE + 1, pool.acquire(BufferPool.MAX_SIZE + 1).length);
+		assertEquals(7, pool.outstanding());
+	}
+
+	@Test
+	public void recycled() {
+		BufferPool pool = new BufferPool(1, true);
+		byte[] b = pool.acquire(100);
+		byte[] other = pool.acquire(100);
+		pool.release(b);
+		pool.release(other);
+		assertEquals(0, pool.outstanding());
+
+		// only one array kept per class, in the smallest class fitting
+		assertSame(b, pool.acquire(65));
+		assertNotSame(other, pool.acquire(128));
+
+		byte[] large = pool.acquire(BufferPool.MAX_SIZE + 1);
+		pool.release(large);
+		assertNotSame(large, pool.acquire(BufferPool.MAX_SIZE + 1));
+	}
+
+	@Test
+	public void doubleRelease() {
+		BufferPool pool = new BufferPool(4, true);
+		byte[] b = pool.acquire(100);
+		byte[] other = pool.acquire(100);
+		pool.release(b);
+		try {
+			pool.release(b);
+			fail("Expected a second release to be rejected");
+		}
+		catch (IllegalStateException expected) {
+			// released twice
+		}
+		assertEquals(1, pool.outstanding());
+		pool.release(other);
+		assertEquals(0, pool.outstanding());
+	}
+
+	@Test
+	public void foreignRelease() {
+		BufferPool pool = new BufferPool(4, true);
+		pool.acquire(100);
+		try {
+			pool.release(new byte[128]);
+			fail("Expected an array not acquired from the pool to be rejected");
+		}
+		catch (IllegalStateException expected) {
+			// not from this pool
+		}
+		assertEquals(1, pool.outstanding());
+	}
+
+	@Test
+	public void untrackedOverRelease() {
+		BufferPool pool = new BufferPool(4, false);
+		byte[] b = pool.acquire(100);
+		pool.release(b);
+		try {
+			pool.release(b);
+			fail("Expected more releases than acquisitions to be rejected");
+		}
+		catch (IllegalStateException expected) {
+			// only counted
+		}
+		assertEquals(0, pool.outstanding());
+	}
+}
@@ -17,27 +17,35 @@
 package reactor.ipc.socket;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import reactor.ipc.stream.StreamOperations;
+import reactor.ipc.stream.StreamPriority;
 import reactor.util.Logger;
 import reactor.util.Loggers;
 
 /**
  * Protocol pattern:
  * <p>
+ * Both peers start by writing a {@link Handshake} preamble advertising the protocol
+ * version, header formats, payload encodings, compression and frame size they support,
+ * and settle on what both support before writing any frame.
+ * <p>
+ * Every entry then starts with a header in the most compact format both peers can
+ * read, by default:
  * <pre>
  * 00-03: payload length including the header (4 bytes little endian)
  * 04-04: entry type (1 bytes)
  * 05-07: entry flags (3 bytes little endian)
  * 08-0F: stream identifier (8 bytes little endian); bit 63: set for server opened streams
+ * </pre>
  */
 abstract class ByteArrayStreamProtocol {
 
@@ -74,332 +82,527 @@ abstract class ByteArrayStreamProtocol {
 	 * negative amounts indicate unbounded mode. Zero is ignored in both cases.
 	 */
 	public static final int  TYPE_REQUEST   = 6;
+	/**
+	 * Grant more value payload bytes to the connection, see {@link ConnectionWindow}.
+	 * The stream identifier is zero and the payload holds the increment (4 bytes
+	 * little endian). Handled by the connection, never dispatched to a stream.
+	 */
+	public static final int  TYPE_WINDOW    = 7;
+	/**
+	 * {@link #TYPE_NEW} flag indicating the payload starts with the time budget of
+	 * the stream in milliseconds (8 bytes little endian), followed by the function name.
+	 */
+	public static final int  FLAG_NEW_TIMEOUT = 0x80_0000;
+	/**
+	 * {@link #TYPE_NEW} flag indicating the payload continues, after the time budget if
+	 * any, with the stream priority (1 byte) and its weight minus one (1 byte), followed
+	 * by the function name. See {@link reactor.ipc.stream.StreamPriority}.
+	 */
+	public static final int  FLAG_NEW_PRIORITY = 0x40_0000;
+	/**
+	 * {@link #TYPE_NEW} flags holding the initial request of the stream, zero if none.
+	 * All bits set indicate unbounded mode, larger amounts are completed by a following
+	 * {@link #TYPE_REQUEST}.
+	 */
+	public static final int  FLAG_NEW_REQUEST = 0x3F_FFFF;
+	/**
+	 * {@link #TYPE_NEXT} flag indicating the payload is compressed with raw deflate,
+	 * see {@link FrameCompressor}.
+	 */
+	public static final int  FLAG_NEXT_DEFLATE = 0x10_0000;
+	/**
+	 * {@link #TYPE_NEXT} flag indicating the payload is compressed in the LZ4 block
+	 * format, see {@link FrameCompressor}.
+	 */
+	public static final int  FLAG_NEXT_LZ4 = 0x20_0000;
+	public static final int  FLAG_NEXT_COMPRESSED = FLAG_NEXT_DEFLATE | FLAG_NEXT_LZ4;
+	/**
+	 * {@link #TYPE_NEXT} flag indicating the payload is a fragment of a larger one and
+	 * more fragments follow, see {@link FrameAssembler}. The first fragment starts with
+	 * the length of the whole payload (4 bytes little endian), every fragment has the
+	 * flags of the whole payload.
+	 */
+	public static final int  FLAG_NEXT_MORE = 0x40_0000;
+	/**
+	 * {@link #TYPE_CANCEL} flag indicating the stream was rejected by a concurrency
+	 * limit of the remote before being started, see
+	 * {@link StreamOperations#onOverloaded(long, String)}.
+	 */
+	public static final int  FLAG_CANCEL_OVERLOADED = 0x80_0000;
 	public static final byte PAYLOAD_OBJECT = 0;
 	public static final byte PAYLOAD_INT    = 1;
 	public static final byte PAYLOAD_LONG   = 2;
 	public static final byte PAYLOAD_STRING = 3;
 	public static final byte PAYLOAD_BYTES  = 4;
+	/**
+	 * A {@link ByteBuffer} value. Received values larger than the read buffer are a
+	 * read-only view of the array they were read into, smaller ones are copied out of
+	 * the read buffer.
+	 */
+	public static final byte PAYLOAD_BUFFER = 5;
+	/**
+	 * A serialized value, decoded by the connection {@link ObjectCodec} in frame order.
+	 * {@link #PAYLOAD_OBJECT} values are self-contained instead.
+	 */
+	public static final byte PAYLOAD_OBJECT_STREAM = 6;
 
-	public static void cancel(OutputStream out, long streamId, String reason, byte[] wb) {
-		send(out, streamId, TYPE_CANCEL, 0, utf8(reason), wb);
+	public static void cancel(FrameWriter w,
+			long streamId,
+			String reason) {
+		send(w, streamId, TYPE_CANCEL, 0, reason);
 	}
 
-	public static void cancel(OutputStream out,
+	public static void cancel(FrameWriter w,
 			long streamId,
-			Throwable reason,
-			byte[] wb) {
-		send(out, streamId, TYPE_CANCEL, 0, errorBytes(reason), wb);
+			int flags,
+			String reason) {
+		send(w, streamId, TYPE_CANCEL, flags, reason);
 	}
 
-	public static void complete(OutputStream out, long streamId, byte[] wb) {
-		send(out, streamId, TYPE_COMPLETE, 0, EMPTY, wb);
+	public static void cancel(FrameWriter w,
+			long streamId,
+			Throwable reason) {
+		send(w, streamId, TYPE_CANCEL, 0, stackTrace(reason));
 	}
 
-	public static void error(OutputStream out, long streamId, String reason, byte[] wb) {
-		send(out, streamId, TYPE_ERROR, 0, utf8(reason), wb);
+	public static void complete(FrameWriter w,
+			long streamId) {
+		send(w, streamId, TYPE_COMPLETE, 0, EMPTY);
 	}
 
-	public static void error(OutputStream out,
+	public static void error(FrameWriter w,
 			long streamId,
-			Throwable reason,
-			byte[] wb) {
-		send(out, streamId, TYPE_ERROR, 0, errorBytes(reason), wb);
+			String reason) {
+		send(w, streamId, TYPE_ERROR, 0, reason);
 	}
 
-	public static byte[] errorBytes(Throwable reason) {
+	public static void error(FrameWriter w,
+			long streamId,
+			Throwable reason) {
+		send(w, streamId, TYPE_ERROR, 0, stackTrace(reason));
+	}
+
+	public static String stackTrace(Throwable reason) {
 		if (reason == null) {
-			return EMPTY;
+			return "";
 		}
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		reason.printStackTrace(new PrintWriter(new OutputStreamWriter(bout,
-				StandardCharsets.UTF_8)));
-		return bout.toByteArray();
+		StringWriter sw = new StringWriter();
+		reason.printStackTrace(new PrintWriter(sw));
+		return sw.toString();
 	}
 
-	public static void next(OutputStream out,
+	public static void next(FrameWriter w,
 			long streamId,
 			int flags,
-			byte[] data,
-			byte[] wb) {
-		send(out, streamId, TYPE_NEXT, flags, data, wb);
+			byte[] data) {
+		send(w, streamId, TYPE_NEXT, flags, data);
 	}
 
-	public static void next(OutputStream out,
+	public static void next(FrameWriter w,
 			long streamId,
 			int flags,
-			String text,
-			byte[] wb) {
-		next(out, streamId, flags, utf8(text), wb);
+			byte[] data,
+			int length) {
+		try {
+			w.frame(streamId, TYPE_NEXT, flags, data, length);
+		}
+		catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
 	}
 
-	public static void open(OutputStream out,
+	/**
+	 * Write a fragment of a value payload, flagged with {@link #FLAG_NEXT_MORE} unless
+	 * it is the last one.
+	 *
+	 * @param w the frame writer
+	 * @param streamId the stream identifier
+	 * @param flags the flags of the whole payload
+	 * @param data the whole payload
+	 * @param offset the fragment offset
+	 * @param length the fragment length
+	 * @param total the whole payload length
+	 */
+	public static void fragment(FrameWriter w,
 			long streamId,
-			String functionName,
-			byte[] wb) {
-		send(out, streamId, TYPE_NEW, 0, utf8(functionName), wb);
-	}
-
-	static int readFully(InputStream in, byte[] output, int count) throws IOException {
-		int offset = 0;
-		int remaining = count;
-
-		for (; ; ) {
-			int a = in.read(output, offset, remaining);
-			if (a < 0) {
-				break;
+			int flags,
+			byte[] data,
+			int offset,
+			int length,
+			int total) {
+		if (offset + length < total) {
+			flags |= FLAG_NEXT_MORE;
+		}
+		try {
+			if (offset == 0) {
+				w.frame(streamId, TYPE_NEXT, flags, total, data, 0, length);
 			}
-			offset += a;
-			remaining -= a;
-			if (remaining == 0) {
-				break;
+			else {
+				w.frame(streamId, TYPE_NEXT, flags, data, offset, length);
 			}
 		}
-
-		return offset;
+		catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
 	}
 
-	static String readUtf8(InputStream in, int payloadLength) throws IOException {
-		StringBuilder sb = new StringBuilder(payloadLength);
-
-		for (; ; ) {
-			if (payloadLength == 0) {
-				break;
-			}
-			int b = in.read();
-
-			payloadLength--;
-
-			if (b < 0) {
-				break;
-			}
-			else if ((b & 0x80) == 0) {
-				sb.append((char) b);
-			}
-			else if ((b & 0b1110_0000) == 0b1100_0000) {
-
-				if (payloadLength-- == 0) {
-					break;
-				}
+	public static void next(FrameWriter w,
+			long streamId,
+			int value) {
+		send(w, streamId, TYPE_NEXT, PAYLOAD_INT, value);
+	}
 
-				int b1 = in.read();
-				if (b1 < 0) {
-					break;
-				}
+	public static void next(FrameWriter w,
+			long streamId,
+			long value) {
+		send(w, streamId, TYPE_NEXT, PAYLOAD_LONG, value);
+	}
 
-				int c = ((b & 0b1_1111) << 6) | (b1 & 0b0011_1111);
-				sb.append((char) c);
-			}
-			else if ((b & 0b1111_0000) == 0b1110_0000) {
-				if (payloadLength-- == 0) {
-					break;
-				}
+	public static void next(FrameWriter w,
+			long streamId,
+			int flags,
+			String text) {
+		send(w, streamId, TYPE_NEXT, flags, text);
+	}
 
-				int b1 = in.read();
+	public static void open(FrameWriter w,
+			long streamId,
+			String functionName) {
+		send(w, streamId, TYPE_NEW, 0, functionName);
+	}
 
-				if (b1 < 0) {
-					break;
-				}
+	public static void open(FrameWriter w,
+			long streamId,
+			String functionName,
+			long timeout) {
+		open(w, streamId, functionName, timeout, 0L);
+	}
 
-				if (payloadLength-- == 0) {
-					break;
-				}
+	public static void open(FrameWriter w,
+			long streamId,
+			String functionName,
+			long timeout,
+			long requested) {
+		open(w,
+				streamId,
+				functionName,
+				timeout,
+				requested,
+				StreamPriority.DEFAULT_PRIORITY,
+				StreamPriority.DEFAULT_WEIGHT);
+	}
 
-				int b2 = in.read();
+	public static void open(FrameWriter w,
+			long streamId,
+			String functionName,
+			long timeout,
+			long requested,
+			int priority,
+			int weight) {
+		int flags;
+		long remaining;
+		if (requested < 0 || requested == Long.MAX_VALUE) {
+			flags = FLAG_NEW_REQUEST;
+			remaining = 0L;
+		}
+		else {
+			flags = (int) Math.min(requested, FLAG_NEW_REQUEST - 1);
+			remaining = requested - flags;
+		}
 
-				if (b2 < 0) {
-					break;
-				}
+		byte[] name = Utf8.encode(functionName);
+		byte[] payload;
 
-				int c =
-						((b & 0b1111) << 12) | ((b1 & 0b11_1111) << 6) | ((b2 & 0b11_1111));
+		boolean prioritized = priority != StreamPriority.DEFAULT_PRIORITY || weight != StreamPriority.DEFAULT_WEIGHT;
 
-				sb.append((char) c);
+		if (timeout > 0L || prioritized) {
+			ByteBuffer b = ByteBuffer.allocate((timeout > 0L ? 8 : 0) + (prioritized ? 2 : 0) + name.length)
+			                         .order(ByteOrder.LITTLE_ENDIAN);
+			if (timeout > 0L) {
+				flags |= FLAG_NEW_TIMEOUT;
+				b.putLong(timeout);
 			}
-			else if ((b & 0b1111_1000) == 0b1111_0000) {
-				if (payloadLength-- == 0) {
-					break;
-				}
-
-				int b1 = in.read();
-
-				if (b1 < 0) {
-					break;
-				}
-
-				if (payloadLength-- == 0) {
-					break;
-				}
-
-				int b2 = in.read();
-
-				if (b2 < 0) {
-					break;
-				}
-
-				if (payloadLength-- == 0) {
-					break;
-				}
-
-				int b3 = in.read();
-
-				if (b3 < 0) {
-					break;
-				}
+			if (prioritized) {
+				flags |= FLAG_NEW_PRIORITY;
+				b.put((byte) priority)
+				 .put((byte) (weight - 1));
+			}
+			payload = b.put(name)
+			           .array();
+		}
+		else {
+			payload = name;
+		}
 
-				int c =
-						((b & 0b111) << 18) | ((b1 & 0b11_1111) << 12) | ((b1 & 0b11_1111) << 6) | ((b2 & 0b11_1111));
+		send(w, streamId, TYPE_NEW, flags, payload);
 
-				sb.append((char) c);
-			}
+		if (remaining != 0L) {
+			request(w, streamId, remaining);
 		}
+	}
 
-		return sb.toString();
+	static int readFully(InputStream in, byte[] output, int count) throws IOException {
+		return readFully(in, output, 0, count);
 	}
 
-	static String readUtf8(byte[] in, int start, int len) throws IOException {
-		StringBuilder sb = new StringBuilder(len);
+	static int readFully(InputStream in, byte[] output, int offset, int count)
+			throws IOException {
+		int remaining = count;
 
-		for (; ; ) {
-			if (start == len) {
+		while (remaining != 0) {
+			int a = in.read(output, offset, remaining);
+			if (a < 0) {
 				break;
 			}
-			int b = in[start++] & 0xFF;
-
-			if ((b & 0x80) == 0) {
-				sb.append((char) b);
-			}
-			else if ((b & 0b1110_0000) == 0b1100_0000) {
-
-				if (start == len) {
-					break;
-				}
-
-				int b1 = in[start++] & 0b11_1111;
-
-				int c = ((b & 0b1_1111) << 6) | (b1);
-				sb.append((char) c);
-			}
-			else if ((b & 0b1111_0000) == 0b1110_0000) {
-				if (start == len) {
-					break;
-				}
-				int b1 = in[start++] & 0b11_1111;
-
-				if (start == len) {
-					break;
-				}
-
-				int b2 = in[start++] & 0b11_1111;
+			offset += a;
+			remaining -= a;
+		}
 
-				int c = ((b & 0b1111) << 12) | (b1 << 6) | (b2);
+		return count - remaining;
+	}
 
-				sb.append((char) c);
+	/**
+	 * Read and decode an UTF-8 payload, through the read buffer if it fits or a pooled
+	 * array otherwise.
+	 *
+	 * @param in the input to read from
+	 * @param len the payload length
+	 * @param rb the read buffer
+	 * @param pool the pool of payload arrays
+	 *
+	 * @return the decoded text, null if the input ended before
+	 *
+	 * @throws IOException if the input cannot be read
+	 */
+	static String readUtf8(InputStream in, int len, byte[] rb, BufferPool pool)
+			throws IOException {
+		byte[] b = len <= rb.length ? rb : pool.acquire(len);
+		try {
+			if (readFully(in, b, len) < len) {
+				return null;
 			}
-			else if ((b & 0b1111_1000) == 0b1111_0000) {
-				if (start == len) {
-					break;
-				}
-				int b1 = in[start++] & 0b11_1111;
-
-				if (start == len) {
-					break;
-				}
-
-				int b2 = in[start++] & 0b11_1111;
-
-				if (start == len) {
-					break;
-				}
-
-				int b3 = in[start++] & 0b11_1111;
-
-				int c = ((b & 0b111) << 18) | (b1 << 12) | (b2 << 6) | (b3);
-
-				sb.append((char) c);
+			return Utf8.decode(b, 0, len);
+		}
+		finally {
+			if (b != rb) {
+				pool.release(b);
 			}
 		}
-
-		return sb.toString();
 	}
 
-	public static boolean receive(InputStream in, byte[] rb, StreamOperations onReceive) {
+	/**
+	 * Decode and dispatch the frame whose canonical header is in the read buffer,
+	 * reading its payload from the input.
+	 * <p>
+	 * Payloads larger than the read buffer are read into an array from the pool and
+	 * released once the decoded value has been delivered, unless the array itself is the
+	 * value ({@link #PAYLOAD_BYTES} and {@link #PAYLOAD_BUFFER}). Fragmented payloads
+	 * are reassembled by the connection {@link FrameAssembler} and dispatched after
+	 * their last fragment, frames of the stream being cancelled or terminated drop any
+	 * payload being reassembled.
+	 *
+	 * @param in the input to read the payload from
+	 * @param rb the read buffer holding the header
+	 * @param pool the pool of payload arrays
+	 * @param objects the connection decoder of {@link #PAYLOAD_OBJECT_STREAM} values
+	 * @param compressor the connection decompressor
+	 * @param fragments the connection reassembler of fragmented payloads
+	 * @param scheduler the connection scheduler, told the priority of the streams the
+	 * remote opens
+	 * @param lanes the connection lanes decoding costly payloads, null to decode every
+	 * payload from the read thread
+	 * @param onReceive the frame handler
+	 *
+	 * @return false if the input cannot be read anymore
+	 */
+	public static boolean receive(InputStream in,
+			byte[] rb,
+			BufferPool pool,
+			ObjectCodec.Decoder objects,
+			FrameCompressor compressor,
+			FrameAssembler fragments,
+			FrameScheduler scheduler,
+			DecodeLanes lanes,
+			StreamOperations onReceive) {
 		try {
 
-			int len =
-					(rb[0] & 0xFF) | ((rb[1] & 0xFF) << 8) | ((rb[2] & 0xFF) << 16) | ((rb[3] & 0xFF) << 24);
+			ByteBuffer b = ByteBuffer.wrap(rb).order(ByteOrder.LITTLE_ENDIAN);
+
+			int len = b.getInt(0);
+
+			int type = b.getInt(4);
 
-			byte type = rb[4];
+			int flags = type >>> 8;
 
-			int flags = ((rb[5] & 0xFF)) | ((rb[6] & 0xFF) << 8) | ((rb[7] & 0xFF) << 16);
+			type &= 0xFF;
 
-			long streamId =
-					(rb[8] & 0xFFL) | ((rb[9] & 0xFFL) << 8) | ((rb[10] & 0xFFL) << 16) | ((rb[11] & 0xFFL) << 24) | ((rb[12] & 0xFFL) << 32) | ((rb[13] & 0xFFL) << 40) | ((rb[14] & 0xFFL) << 48) | ((rb[15] & 0xFFL) << 56);
+			long streamId = b.getLong(8);
 
 			switch (type) {
 				case TYPE_NEW: {
 					len -= 16;
-					if (len != 0) {
-						String function;
-						if (len <= rb.length) {
-							int r = readFully(in, rb, len);
-							if (r < len) {
-								onReceive.onError(streamId,
-										"Channel/Connection closed (@ new)");
-								return false;
-							}
-							function = readUtf8(rb, 0, len);
+					long timeout = 0L;
+					if ((flags & FLAG_NEW_TIMEOUT) != 0) {
+						if (len < 8 || readFully(in, rb, 8) < 8) {
+							onReceive.onError(streamId,
+									"Channel/Connection closed (@ new)");
+							return false;
 						}
-						else {
-							function = readUtf8(in, len);
+						timeout = b.getLong(0);
+						len -= 8;
+					}
+					if ((flags & FLAG_NEW_PRIORITY) != 0) {
+						if (len < 2 || readFully(in, rb, 2) < 2) {
+							onReceive.onError(streamId,
+									"Channel/Connection closed (@ new)");
+							return false;
 						}
-						onReceive.onNew(streamId, function);
+						scheduler.prioritize(streamId, rb[0] & 0xFF, (rb[1] & 0xFF) + 1);
+						len -= 2;
+					}
+					long requested = flags & FLAG_NEW_REQUEST;
+					if (requested == FLAG_NEW_REQUEST) {
+						requested = Long.MAX_VALUE;
+					}
+					if (len != 0) {
+						String function = readUtf8(in, len, rb, pool);
+						if (function == null) {
+							onReceive.onError(streamId,
+									"Channel/Connection closed (@ new)");
+							return false;
+						}
+						onReceive.onNew(streamId, function, timeout, requested);
 					}
 					else {
-						onReceive.onNew(streamId, "");
+						onReceive.onNew(streamId, "", timeout, requested);
 					}
 					break;
 				}
 				case TYPE_CANCEL: {
+					fragments.discard(streamId);
+					scheduler.forget(streamId);
 					if (len > 16) {
-						String reason = readUtf8(in, len - 16);
-						onReceive.onCancel(streamId, reason);
+						String reason = readUtf8(in, len - 16, rb, pool);
+						if (reason == null) {
+							onReceive.onError(streamId,
+									"Channel/Connection closed (@ cancel)");
+							return false;
+						}
+						cancel(onReceive, lanes, streamId, flags, reason);
 					}
 					else {
-						onReceive.onCancel(streamId, "");
+						cancel(onReceive, lanes, streamId, flags, "");
 					}
 					break;
 				}
 
 				case TYPE_NEXT: {
 					len -= 16;
-					if (len != 0) {
+					if ((flags & FLAG_NEXT_MORE) != 0 || fragments.receiving(streamId)) {
+						FrameAssembler.Partial p =
+								fragments.read(in, streamId, flags, len, rb);
+						if (p != null) {
+							try {
+								if ((p.flags & FLAG_NEXT_COMPRESSED) != 0) {
+									onCompressedNext(streamId,
+											p.flags,
+											p.data,
+											p.length,
+											onReceive,
+											rb,
+											pool,
+											objects,
+											compressor,
+											lanes);
+								}
+								else {
+									onNext(streamId,
+											p.flags,
+											p.data,
+											p.length,
+											p.length,
+											onReceive,
+											rb,
+											objects,
+											lanes);
+								}
+							}
+							finally {
+								fragments.release(p);
+							}
+						}
+					}
+					else if (len != 0) {
 						byte[] payload;
+						boolean pooled = false;
 						if (len <= rb.length) {
 							payload = rb;
 						}
-						else {
+						else if (flags == PAYLOAD_BYTES || flags == PAYLOAD_BUFFER) {
 							payload = new byte[len];
 						}
-						int r = readFully(in, payload, len);
-						onNext(streamId, flags, payload, len, r, onReceive, rb);
+						else {
+							payload = pool.acquire(len);
+							pooled = true;
+						}
+						try {
+							int r = readFully(in, payload, len);
+							if ((flags & FLAG_NEXT_COMPRESSED) != 0 && r == len) {
+								onCompressedNext(streamId,
+										flags,
+										payload,
+										len,
+										onReceive,
+										rb,
+										pool,
+										objects,
+										compressor,
+										lanes);
+							}
+							else {
+								onNext(streamId,
+										flags,
+										payload,
+										len,
+										r,
+										onReceive,
+										rb,
+										objects,
+										lanes);
+							}
+						}
+						finally {
+							if (pooled) {
+								pool.release(payload);
+							}
+						}
 					}
 					else {
-						onNext(streamId, flags, EMPTY, 0, 0, onReceive, rb);
+						onNext(streamId, flags, EMPTY, 0, 0, onReceive, rb, objects, lanes);
 					}
 					break;
 				}
 				case TYPE_ERROR: {
+					fragments.discard(streamId);
+					scheduler.forget(streamId);
 					if (len > 16) {
-						String reason = readUtf8(in, len - 16);
-						onReceive.onError(streamId, reason);
+						String reason = readUtf8(in, len - 16, rb, pool);
+						if (reason == null) {
+							onReceive.onError(streamId,
+									"Channel/Connection closed (@ error)");
+							return false;
+						}
+						ordered(lanes, streamId, () -> onReceive.onError(streamId, reason));
 					}
 					else {
-						onReceive.onError(streamId, "");
+						ordered(lanes, streamId, () -> onReceive.onError(streamId, ""));
 					}
 					break;
 				}
 
 				case TYPE_COMPLETE: {
+					fragments.discard(streamId);
+					scheduler.forget(streamId);
 					// ignore payload
 					len -= 16;
 					while (len != 0) {
@@ -409,7 +612,7 @@ abstract class ByteArrayStreamProtocol {
 						}
 						len -= r;
 					}
-					onReceive.onComplete(streamId);
+					ordered(lanes, streamId, () -> onReceive.onComplete(streamId));
 					break;
 				}
 
@@ -421,10 +624,7 @@ abstract class ByteArrayStreamProtocol {
 							return false;
 						}
 
-						long requested =
-								(rb[0] & 0xFFL) | ((rb[1] & 0xFFL) << 8) | ((rb[2] & 0xFFL) << 16) | ((rb[3] & 0xFFL) << 24) | ((rb[4] & 0xFFL) << 32) | ((rb[5] & 0xFFL) << 40) | ((rb[6] & 0xFFL) << 48) | ((rb[7] & 0xFFL) << 56);
-
-						onReceive.onRequested(streamId, requested);
+						onReceive.onRequested(streamId, b.getLong(0));
 					}
 					else {
 						onReceive.onRequested(streamId, flags);
@@ -466,20 +666,31 @@ abstract class ByteArrayStreamProtocol {
 			int count,
 			int read,
 			StreamOperations endpoint,
-			byte[] readBuffer) {
+			byte[] readBuffer,
+			ObjectCodec.Decoder objects,
+			DecodeLanes lanes) {
 		if (count != read) {
-			endpoint.onError(streamId,
-					new IOException("Partial value received: expected = " + payload.length + ", actual = " + read));
+			IOException ex =
+					new IOException("Partial value received: expected = " + count + ", actual = " + read);
+			ordered(lanes, streamId, () -> endpoint.onError(streamId, ex));
+		}
+		else if (lanes != null && DecodeLanes.accepts(flags, count)) {
+			lanes.decode(streamId, flags, payload, count, endpoint);
 		}
 		else {
 			Object o;
 
 			try {
-				o = decode(flags, payload, count, readBuffer);
+				o = decode(flags, payload, count, readBuffer, objects);
 			}
 			catch (IOException | ClassNotFoundException ex) {
 				endpoint.sendCancel(streamId, ex.toString());
-				endpoint.onError(streamId, ex);
+				ordered(lanes, streamId, () -> endpoint.onError(streamId, ex));
+				return;
+			}
+
+			if (lanes != null && lanes.busy(streamId)) {
+				lanes.deliver(streamId, o, endpoint);
 				return;
 			}
 
@@ -493,20 +704,87 @@ abstract class ByteArrayStreamProtocol {
 		}
 	}
 
-	static Object decode(int flags, byte[] payload, int len, byte[] readBuffer)
-			throws IOException, ClassNotFoundException {
+	static void onCompressedNext(long streamId,
+			int flags,
+			byte[] payload,
+			int len,
+			StreamOperations endpoint,
+			byte[] readBuffer,
+			BufferPool pool,
+			ObjectCodec.Decoder objects,
+			FrameCompressor compressor,
+			DecodeLanes lanes) {
+		int kind = flags & ~FLAG_NEXT_COMPRESSED;
+		byte[] data = null;
+		boolean pooled = kind != PAYLOAD_BYTES && kind != PAYLOAD_BUFFER;
+		try {
+			int n;
+			try {
+				n = FrameCompressor.decompressedLength(payload, len);
+				data = pooled ? pool.acquire(n) : new byte[n];
+				compressor.decompress(flags, payload, len, data, n);
+			}
+			catch (IOException ex) {
+				endpoint.sendCancel(streamId, ex.toString());
+				ordered(lanes, streamId, () -> endpoint.onError(streamId, ex));
+				return;
+			}
+			onNext(streamId, kind, data, n, n, endpoint, readBuffer, objects, lanes);
+		}
+		finally {
+			if (pooled && data != null) {
+				pool.release(data);
+			}
+		}
+	}
+
+	/**
+	 * Deliver a stream event after the values of the stream still being decoded in its
+	 * lane, if any.
+	 *
+	 * @param lanes the connection lanes, null if values are decoded from the read thread
+	 * @param streamId the stream identifier
+	 * @param event the event to deliver
+	 */
+	static void ordered(DecodeLanes lanes, long streamId, Runnable event) {
+		if (lanes != null) {
+			lanes.execute(streamId, event);
+		}
+		else {
+			event.run();
+		}
+	}
+
+	static void cancel(StreamOperations onReceive,
+			DecodeLanes lanes,
+			long streamId,
+			int flags,
+			String reason) {
+		if ((flags & FLAG_CANCEL_OVERLOADED) != 0) {
+			ordered(lanes, streamId, () -> onReceive.onOverloaded(streamId, reason));
+		}
+		else {
+			ordered(lanes, streamId, () -> onReceive.onCancel(streamId, reason));
+		}
+	}
+
+	static Object decode(int flags,
+			byte[] payload,
+			int len,
+			byte[] readBuffer,
+			ObjectCodec.Decoder objects) throws IOException, ClassNotFoundException {
 		if (flags == PAYLOAD_INT) {
-			int v =
-					(payload[0] & 0xFF) | ((payload[1] & 0xFF) << 8) | ((payload[2] & 0xFF) << 16) | ((payload[3] & 0xFF) << 24);
-			return v;
+			return ByteBuffer.wrap(payload, 0, len)
+			                 .order(ByteOrder.LITTLE_ENDIAN)
+			                 .getInt();
 		}
 		else if (flags == PAYLOAD_LONG) {
-			long v =
-					(payload[0] & 0xFFL) | ((payload[1] & 0xFFL) << 8) | ((payload[2] & 0xFFL) << 16) | ((payload[3] & 0xFFL) << 24) | ((payload[4] & 0xFFL) << 32) | ((payload[5] & 0xFFL) << 40) | ((payload[6] & 0xFFL) << 48) | ((payload[7] & 0xFFL) << 56);
-			return v;
+			return ByteBuffer.wrap(payload, 0, len)
+			                 .order(ByteOrder.LITTLE_ENDIAN)
+			                 .getLong();
 		}
 		else if (flags == PAYLOAD_STRING) {
-			return readUtf8(payload, 0, len);
+			return Utf8.decode(payload, 0, len);
 		}
 		else if (flags == PAYLOAD_BYTES) {
 			if (payload == readBuffer) {
@@ -516,125 +794,83 @@ abstract class ByteArrayStreamProtocol {
 			}
 			return payload;
 		}
+		else if (flags == PAYLOAD_OBJECT_STREAM) {
+			return objects.decode(payload, len);
+		}
+		else if (flags == PAYLOAD_BUFFER) {
+			if (payload == readBuffer) {
+				return ByteBuffer.wrap(Arrays.copyOf(payload, len));
+			}
+			return ByteBuffer.wrap(payload, 0, len)
+			                 .asReadOnlyBuffer();
+		}
 
-		ByteArrayInputStream bin = new ByteArrayInputStream(payload);
+		ByteArrayInputStream bin = new ByteArrayInputStream(payload, 0, len);
 		ObjectInputStream oin = new ObjectInputStream(bin);
 		return oin.readObject();
 	}
 
-	public static void request(OutputStream out,
+	public static void window(FrameWriter w, int increment) {
+		send(w, 0L, TYPE_WINDOW, 0, increment);
+	}
+
+	public static void request(FrameWriter w,
 			long streamId,
-			long requested,
-			byte[] wb) {
+			long requested) {
 		if (requested < 0 || requested == Long.MAX_VALUE) {
-			send(out, streamId, TYPE_REQUEST, 0, REQUEST_UNBOUNDED, wb);
+			send(w, streamId, TYPE_REQUEST, 0, Long.MAX_VALUE);
 		}
 		else if (requested <= 0xFFFFFF) {
-			send(out, streamId, TYPE_REQUEST, (int) requested & 0xFFFFFF, EMPTY, wb);
+			send(w, streamId, TYPE_REQUEST, (int) requested & 0xFFFFFF, EMPTY);
 		}
 		else {
-			send(out, streamId, TYPE_REQUEST, 0, requested, wb);
+			send(w, streamId, TYPE_REQUEST, 0, requested);
 		}
 	}
 
-	static void send(OutputStream out,
+	static void send(FrameWriter w,
 			long streamId,
 			int type,
 			int flags,
-			byte[] payload,
-			byte[] wb) {
+			byte[] payload) {
 		try {
-			int len = 16 + (payload != null ? payload.length : 0);
-
-			wb[0] = (byte) ((len >> 0) & 0xFF);
-			wb[1] = (byte) ((len >> 8) & 0xFF);
-			wb[2] = (byte) ((len >> 16) & 0xFF);
-			wb[3] = (byte) ((len >> 24) & 0xFF);
-
-			wb[4] = (byte) (type & 0xFF);
-
-			wb[5] = (byte) ((flags >> 0) & 0xFF);
-			wb[6] = (byte) ((flags >> 8) & 0xFF);
-			wb[7] = (byte) ((flags >> 16) & 0xFF);
-
-			wb[8] = (byte) ((int) (streamId >> 0) & 0xFF);
-			wb[9] = (byte) ((int) (streamId >> 8) & 0xFF);
-			wb[10] = (byte) ((int) (streamId >> 16) & 0xFF);
-			wb[11] = (byte) ((int) (streamId >> 24) & 0xFF);
-			wb[12] = (byte) ((int) (streamId >> 32) & 0xFF);
-			wb[13] = (byte) ((int) (streamId >> 40) & 0xFF);
-			wb[14] = (byte) ((int) (streamId >> 48) & 0xFF);
-			wb[15] = (byte) ((int) (streamId >> 56) & 0xFF);
-
-			out.write(wb, 0, 16);
+			w.frame(streamId, type, flags, payload);
+		}
+		catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
 
-			if (payload != null && payload.length != 0) {
-				out.write(payload);
-			}
+	static void send(FrameWriter w, long streamId, int type, int flags, String payload) {
+		try {
+			w.frame(streamId, type, flags, payload);
 		}
 		catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 
-	static void send(OutputStream out,
-			long streamId,
-			int type,
-			int flags,
-			long payload,
-			byte[] wb) {
+	static void send(FrameWriter w, long streamId, int type, int flags, int payload) {
 		try {
-			int len = 24;
-
-			wb[0] = (byte) ((len >> 0) & 0xFF);
-			wb[1] = (byte) ((len >> 8) & 0xFF);
-			wb[2] = (byte) ((len >> 16) & 0xFF);
-			wb[3] = (byte) ((len >> 24) & 0xFF);
-
-			wb[4] = (byte) (type & 0xFF);
-
-			wb[5] = (byte) ((flags >> 0) & 0xFF);
-			wb[6] = (byte) ((flags >> 8) & 0xFF);
-			wb[7] = (byte) ((flags >> 16) & 0xFF);
-
-			wb[8] = (byte) ((int) (streamId >> 0) & 0xFF);
-			wb[9] = (byte) ((int) (streamId >> 8) & 0xFF);
-			wb[10] = (byte) ((int) (streamId >> 16) & 0xFF);
-			wb[11] = (byte) ((int) (streamId >> 24) & 0xFF);
-			wb[12] = (byte) ((int) (streamId >> 32) & 0xFF);
-			wb[13] = (byte) ((int) (streamId >> 40) & 0xFF);
-			wb[14] = (byte) ((int) (streamId >> 48) & 0xFF);
-			wb[15] = (byte) ((int) (streamId >> 56) & 0xFF);
-
-			wb[16] = (byte) ((payload >> 0) & 0xFF);
-			wb[17] = (byte) ((payload >> 8) & 0xFF);
-			wb[18] = (byte) ((payload >> 16) & 0xFF);
-			wb[19] = (byte) ((payload >> 24) & 0xFF);
-			wb[20] = (byte) ((payload >> 32) & 0xFF);
-			wb[21] = (byte) ((payload >> 40) & 0xFF);
-			wb[22] = (byte) ((payload >> 48) & 0xFF);
-			wb[23] = (byte) ((payload >> 56) & 0xFF);
-
-			out.write(wb, 0, len);
+			w.frame(streamId, type, flags, payload);
 		}
 		catch (IOException ex) {
 			throw new RuntimeException(ex);
 		}
 	}
 
-	static byte[] utf8(String s) {
-		if (s == null || s.isEmpty()) {
-			return EMPTY;
+	static void send(FrameWriter w, long streamId, int type, int flags, long payload) {
+		try {
+			w.frame(streamId, type, flags, payload);
+		}
+		catch (IOException ex) {
+			throw new RuntimeException(ex);
 		}
-		return s.getBytes(StandardCharsets.UTF_8);
 	}
 
 	private ByteArrayStreamProtocol() {
 	}
 
 	static final byte[] EMPTY             = new byte[0];
-	static final byte[] REQUEST_UNBOUNDED =
-			{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
-					(byte) 0xFF, (byte) 0x7F};
 
 }
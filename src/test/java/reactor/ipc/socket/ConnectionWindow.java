@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import reactor.core.publisher.Operators;
+
+/**
+ * Connection-level flow control of the {@link ByteArrayStreamProtocol#TYPE_NEXT}
+ * payload bytes, on top of the per-stream demand which only bounds value counts.
+ * <p>
+ * Each peer advertises an initial window in its {@link Handshake}. A sender stops
+ * writing values once it sent as many payload bytes as the remote granted, the frame
+ * exhausting the window may overdraw it. A receiver credits the payload bytes of every
+ * value once dispatched to its stream, and grants them back with a
+ * {@link ByteArrayStreamProtocol#TYPE_WINDOW} update once they reach half its window.
+ * The bytes in flight are thus bounded by the window plus one frame, whatever the
+ * value sizes and stream counts.
+ */
+final class ConnectionWindow {
+
+	/**
+	 * The local initial window, 0 if the received bytes are not limited.
+	 */
+	final int size;
+
+	/**
+	 * The payload bytes the remote allows to be sent: its initial window plus the
+	 * updates it sent, updated from the read thread.
+	 */
+	final AtomicLong granted;
+
+	/**
+	 * The payload bytes received but not yet granted back, credited from the read
+	 * thread or the {@link DecodeLanes} delivering the values.
+	 */
+	final AtomicLong consumed;
+
+	ConnectionWindow(int size) {
+		this.size = size;
+		this.granted = new AtomicLong();
+		this.consumed = new AtomicLong();
+	}
+
+	/**
+	 * Set the initial window of the remote, from the read thread before any frame is
+	 * written.
+	 *
+	 * @param window the remote initial window, 0 if unlimited
+	 */
+	void start(int window) {
+		granted.set(window == 0 ? Long.MAX_VALUE : window);
+	}
+
+	/**
+	 * @param sent the payload bytes sent so far
+	 *
+	 * @return true if more values can be sent
+	 */
+	boolean open(long sent) {
+		return sent < granted.get();
+	}
+
+	/**
+	 * @param increment the payload bytes the remote granted back
+	 */
+	void grant(int increment) {
+		granted.getAndAccumulate(increment, Operators::addCap);
+	}
+
+	/**
+	 * @param n the payload bytes of a value dispatched to its stream
+	 *
+	 * @return the window increment to send back, 0 if none yet
+	 */
+	int consumed(int n) {
+		if (size == 0) {
+			return 0;
+		}
+		if (consumed.addAndGet(n) < size / 2) {
+			return 0;
+		}
+		// a concurrent credit may take the bytes first, leaving none to this one
+		long c = consumed.getAndSet(0L);
+		return (int) Math.min(c, Integer.MAX_VALUE);
+	}
+}
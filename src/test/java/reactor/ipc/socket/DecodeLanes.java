@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.ipc.stream.StreamOperations;
+
+/**
+ * Decodes the costly value payloads of a connection off its read thread, so the
+ * values of different streams are deserialized on several cores while the read thread
+ * only frames and routes them.
+ * <p>
+ * Streams are hashed to lanes, each running its tasks in order on a single worker, so
+ * the values of a stream are delivered in the order received. Every other event of a
+ * stream whose lane has tasks pending is queued behind them; while the lane is idle
+ * they are delivered from the read thread as before. Only
+ * {@link ByteArrayStreamProtocol#PAYLOAD_OBJECT} values and long texts are
+ * offloaded, {@link ByteArrayStreamProtocol#PAYLOAD_OBJECT_STREAM} values depend on
+ * the previous values of the connection and are always decoded in frame order.
+ */
+final class DecodeLanes {
+
+	/**
+	 * The shortest UTF-8 payload decoded in a lane.
+	 */
+	static final int MIN_TEXT_LENGTH = 4096;
+
+	final Scheduler workers;
+
+	final Lane[] lanes;
+
+	final BufferPool pool;
+
+	/**
+	 * @param name the prefix of the worker threads
+	 * @param parallelism the number of lanes
+	 * @param pool the pool offloaded payloads are copied to
+	 */
+	DecodeLanes(String name, int parallelism, BufferPool pool) {
+		this.workers = Schedulers.newParallel(name, parallelism, true);
+		this.lanes = new Lane[parallelism];
+		for (int i = 0; i < parallelism; i++) {
+			lanes[i] = new Lane(workers.createWorker());
+		}
+		this.pool = pool;
+	}
+
+	/**
+	 * @param flags the payload kind
+	 * @param len the payload length
+	 *
+	 * @return true if such a payload is decoded in a lane
+	 */
+	static boolean accepts(int flags, int len) {
+		return flags == ByteArrayStreamProtocol.PAYLOAD_OBJECT
+				|| flags == ByteArrayStreamProtocol.PAYLOAD_STRING && len >= MIN_TEXT_LENGTH;
+	}
+
+	Lane lane(long streamId) {
+		int h = (int) (streamId ^ (streamId >>> 32));
+		return lanes[((h ^ (h >>> 16)) & 0x7FFFFFFF) % lanes.length];
+	}
+
+	/**
+	 * Decode a value payload in the lane of its stream and deliver it from there.
+	 *
+	 * @param streamId the stream identifier
+	 * @param flags the payload kind
+	 * @param payload the payload, copied as it is reused once this returns
+	 * @param len the payload length
+	 * @param endpoint the frame handler
+	 */
+	void decode(long streamId,
+			int flags,
+			byte[] payload,
+			int len,
+			StreamOperations endpoint) {
+		byte[] copy = pool.acquire(len);
+		System.arraycopy(payload, 0, copy, 0, len);
+		lane(streamId).offer(new DecodeTask(this, streamId, flags, copy, len, null, endpoint));
+	}
+
+	/**
+	 * Deliver a value already decoded from the read thread in the lane of its stream,
+	 * behind the values pending there.
+	 *
+	 * @param streamId the stream identifier
+	 * @param o the decoded value
+	 * @param endpoint the frame handler
+	 */
+	void deliver(long streamId, Object o, StreamOperations endpoint) {
+		lane(streamId).offer(new DecodeTask(this, streamId, 0, null, 0, o, endpoint));
+	}
+
+	/**
+	 * Run a stream event from the read thread if its lane is idle, behind the lane
+	 * tasks pending otherwise.
+	 *
+	 * @param streamId the stream identifier
+	 * @param event the event to deliver
+	 */
+	void execute(long streamId, Runnable event) {
+		Lane lane = lane(streamId);
+		if (lane.pending.get() == 0) {
+			event.run();
+		}
+		else {
+			lane.offer(event);
+		}
+	}
+
+	/**
+	 * @param streamId the stream identifier
+	 *
+	 * @return true if the events of the stream are queued in its lane
+	 */
+	boolean busy(long streamId) {
+		return lane(streamId).pending.get() != 0;
+	}
+
+	void dispose() {
+		workers.dispose();
+	}
+
+	/**
+	 * Tasks run in order on a single worker, counted until they have run. Only the read
+	 * thread offers tasks, so a lane seen idle from there stays idle.
+	 */
+	static final class Lane {
+
+		final Scheduler.Worker worker;
+
+		final AtomicInteger pending;
+
+		Lane(Scheduler.Worker worker) {
+			this.worker = worker;
+			this.pending = new AtomicInteger();
+		}
+
+		void offer(Runnable task) {
+			pending.getAndIncrement();
+			worker.schedule(() -> {
+				try {
+					task.run();
+				}
+				finally {
+					pending.getAndDecrement();
+				}
+			});
+		}
+	}
+
+	/**
+	 * A value delivered from a lane, decoded there unless already decoded from the read
+	 * thread.
+	 */
+	static final class DecodeTask implements Runnable {
+
+		final DecodeLanes      lanes;
+		final long             streamId;
+		final int              flags;
+		final byte[]           payload;
+		final int              len;
+		final Object           value;
+		final StreamOperations endpoint;
+
+		/**
+		 * @param payload the pooled payload to decode, null if already decoded
+		 * @param value the decoded value if there is no payload
+		 */
+		DecodeTask(DecodeLanes lanes,
+				long streamId,
+				int flags,
+				byte[] payload,
+				int len,
+				Object value,
+				StreamOperations endpoint) {
+			this.lanes = lanes;
+			this.streamId = streamId;
+			this.flags = flags;
+			this.payload = payload;
+			this.len = len;
+			this.value = value;
+			this.endpoint = endpoint;
+		}
+
+		@Override
+		public void run() {
+			Object o = value;
+			if (payload != null) {
+				try {
+					o = ByteArrayStreamProtocol.decode(flags, payload, len, null, null);
+				}
+				catch (IOException | ClassNotFoundException ex) {
+					endpoint.sendCancel(streamId, ex.toString());
+					endpoint.onError(streamId, ex);
+					return;
+				}
+				finally {
+					lanes.pool.release(payload);
+				}
+			}
+
+			try {
+				endpoint.onNext(streamId, o);
+			}
+			catch (Throwable ex) {
+				endpoint.sendCancel(streamId, ex.toString());
+				endpoint.onError(streamId, ex);
+			}
+		}
+	}
+}
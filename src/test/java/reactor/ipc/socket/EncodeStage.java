@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Encodes the costly values sent on a connection on a pool of threads, so a stream
+ * whose values are produced from a single thread is not bound by the serialization
+ * speed of one core.
+ * <p>
+ * Objects are serialized standalone as {@link ByteArrayStreamProtocol#PAYLOAD_OBJECT}
+ * values, the connection {@link ObjectCodec} tables depending on the frame order, and
+ * texts of at least {@link #MIN_TEXT_LENGTH} characters are encoded to UTF-8. Each
+ * value takes a slot in the {@link Sequence} of its stream when sent; the slots are
+ * handed to the connection in that order once encoded, the frames sent on the stream
+ * meanwhile waiting behind them.
+ */
+final class EncodeStage {
+
+	/**
+	 * The shortest text encoded by the stage.
+	 */
+	static final int MIN_TEXT_LENGTH = 4096;
+
+	final SimpleConnection connection;
+
+	final Scheduler workers;
+
+	/**
+	 * @param connection the connection the values are sent on
+	 * @param name the prefix of the worker threads
+	 * @param parallelism the number of worker threads
+	 */
+	EncodeStage(SimpleConnection connection, String name, int parallelism) {
+		this.connection = connection;
+		this.workers = Schedulers.newParallel(name, parallelism, true);
+	}
+
+	/**
+	 * @param o a value to send
+	 *
+	 * @return true if the value is encoded by the stage
+	 */
+	static boolean accepts(Object o) {
+		if (o instanceof String) {
+			return ((String) o).length() >= MIN_TEXT_LENGTH;
+		}
+		return !(o instanceof Integer || o instanceof Long || o instanceof byte[]
+				|| o instanceof ByteBuffer || o instanceof SimpleConnection.EncodedValue);
+	}
+
+	/**
+	 * Encode a value on the pool and send it once the values sent before on its stream
+	 * are.
+	 *
+	 * @param pending the pending values of the stream, with its sequence
+	 * @param streamId the stream identifier
+	 * @param o the value to send
+	 */
+	void submit(SimpleConnection.PendingValues pending, long streamId, Object o) {
+		Sequence sequence = pending.sequence;
+		Slot slot = sequence.claim();
+		workers.schedule(() -> sequence.complete(slot, encode(pending, streamId, o)));
+	}
+
+	SimpleConnection.OutboundFrame encode(SimpleConnection.PendingValues pending,
+			long streamId,
+			Object o) {
+		SimpleConnection c = connection;
+		SimpleConnection.EncodedValue encoded = new SimpleConnection.EncodedValue();
+		try {
+			if (o instanceof String) {
+				String text = (String) o;
+				encoded.flags = ByteArrayStreamProtocol.PAYLOAD_STRING;
+				encoded.payload = c.pool.acquire(Utf8.encodedLength(text));
+				encoded.pool = c.pool;
+				encoded.length = Utf8.encode(text, encoded.payload, 0);
+			}
+			else {
+				if (!(o instanceof Serializable)) {
+					throw new NotSerializableException(o.getClass()
+					                                    .getName());
+				}
+				encoded.flags = ByteArrayStreamProtocol.PAYLOAD_OBJECT;
+				encoded.payload = SimpleConnection.serialize(o);
+				encoded.length = encoded.payload.length;
+			}
+		}
+		catch (IOException | RuntimeException ex) {
+			if (!c.fail(pending, streamId, ex)) {
+				// the stream already failed, the slot is only kept for the order
+				return new SimpleConnection.SignalFrame(c,
+						pending,
+						streamId,
+						ByteArrayStreamProtocol.TYPE_ERROR,
+						ex,
+						0);
+			}
+			return new SimpleConnection.SignalFrame(c,
+					streamId,
+					ByteArrayStreamProtocol.TYPE_ERROR,
+					ex,
+					0);
+		}
+		return new SimpleConnection.OnNextTask(streamId, c, pending, encoded);
+	}
+
+	void dispose() {
+		workers.dispose();
+	}
+
+	/**
+	 * The frames of a stream waiting for the values sent before them to be encoded.
+	 * Slots are claimed and offered by the stream producer, and completed from the
+	 * pool in any order; the first completed slots are handed to the connection by
+	 * whoever completes the head.
+	 */
+	static final class Sequence {
+
+		final SimpleConnection connection;
+
+		final Queue<Slot> slots;
+
+		final AtomicInteger wip;
+
+		Sequence(SimpleConnection connection) {
+			this.connection = connection;
+			this.slots = new ConcurrentLinkedQueue<>();
+			this.wip = new AtomicInteger();
+		}
+
+		Slot claim() {
+			Slot slot = new Slot();
+			slots.offer(slot);
+			return slot;
+		}
+
+		/**
+		 * Send a frame already encoded, right away unless values sent before are still
+		 * being encoded.
+		 */
+		void offer(SimpleConnection.OutboundFrame frame) {
+			// slots are only removed once handed over, an empty sequence sent them all
+			if (slots.isEmpty()) {
+				connection.schedule(frame);
+				return;
+			}
+			Slot slot = claim();
+			complete(slot, frame);
+		}
+
+		void complete(Slot slot, SimpleConnection.OutboundFrame frame) {
+			slot.frame = frame;
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			for (; ; ) {
+				Slot s;
+				while ((s = slots.peek()) != null && s.frame != null) {
+					connection.schedule(s.frame);
+					slots.poll();
+				}
+				missed = wip.addAndGet(-missed);
+				if (missed == 0) {
+					break;
+				}
+			}
+		}
+	}
+
+	static final class Slot {
+
+		volatile SimpleConnection.OutboundFrame frame;
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reassembles the values received as several {@link ByteArrayStreamProtocol#TYPE_NEXT}
+ * fragments, only used from the read thread.
+ * <p>
+ * The first fragment of a value starts with the length of the whole payload (4 bytes
+ * little endian), so it is read into a single array as the fragments arrive. Fragments
+ * of different streams may be interleaved, those of a stream are sent in order.
+ */
+final class FrameAssembler {
+
+	/**
+	 * The largest payload accepted once reassembled.
+	 */
+	static final int MAX_LENGTH = 1 << 30;
+
+	final BufferPool pool;
+
+	final Map<Long, Partial> partials;
+
+	FrameAssembler(BufferPool pool) {
+		this.pool = pool;
+		this.partials = new HashMap<>();
+	}
+
+	/**
+	 * @param streamId the stream identifier
+	 *
+	 * @return true if the stream is receiving the fragments of a value
+	 */
+	boolean receiving(long streamId) {
+		return !partials.isEmpty() && partials.containsKey(streamId);
+	}
+
+	/**
+	 * Read a fragment payload.
+	 *
+	 * @param in the input to read from
+	 * @param streamId the stream identifier
+	 * @param flags the frame flags
+	 * @param len the fragment payload length
+	 * @param rb the read buffer
+	 *
+	 * @return the reassembled value after its last fragment, to be given back with
+	 * {@link #release(Partial)} once delivered, null otherwise
+	 *
+	 * @throws IOException if the input cannot be read or the fragments are malformed
+	 */
+	Partial read(InputStream in, long streamId, int flags, int len, byte[] rb)
+			throws IOException {
+		Partial p = partials.get(streamId);
+		if (p == null) {
+			if (len < 4) {
+				throw new IOException("Malformed first fragment");
+			}
+			if (ByteArrayStreamProtocol.readFully(in, rb, 4) < 4) {
+				throw new EOFException();
+			}
+			int total = (rb[0] & 0xFF) | ((rb[1] & 0xFF) << 8) | ((rb[2] & 0xFF) << 16) | ((rb[3] & 0xFF) << 24);
+			if (total < 0 || total > MAX_LENGTH) {
+				throw new IOException("Fragmented payload too large: " + total);
+			}
+			len -= 4;
+			int kind = flags & ~ByteArrayStreamProtocol.FLAG_NEXT_MORE;
+			boolean pooled = kind != ByteArrayStreamProtocol.PAYLOAD_BYTES && kind != ByteArrayStreamProtocol.PAYLOAD_BUFFER;
+			p = new Partial(kind, pooled ? pool.acquire(total) : new byte[total], total, pooled);
+			partials.put(streamId, p);
+		}
+
+		if (len > p.length - p.count) {
+			discard(streamId);
+			throw new IOException("Fragment exceeds the payload length: " + p.length);
+		}
+		int r = ByteArrayStreamProtocol.readFully(in, p.data, p.count, len);
+		p.count += r;
+		if (r < len) {
+			discard(streamId);
+			throw new EOFException();
+		}
+
+		if ((flags & ByteArrayStreamProtocol.FLAG_NEXT_MORE) != 0) {
+			return null;
+		}
+		partials.remove(streamId);
+		if (p.count != p.length) {
+			release(p);
+			throw new IOException("Partial fragmented payload received: expected = " + p.length + ", actual = " + p.count);
+		}
+		return p;
+	}
+
+	/**
+	 * Drop the value the stream is receiving, if any.
+	 *
+	 * @param streamId the stream identifier
+	 */
+	void discard(long streamId) {
+		if (!partials.isEmpty()) {
+			Partial p = partials.remove(streamId);
+			if (p != null) {
+				release(p);
+			}
+		}
+	}
+
+	void release(Partial p) {
+		if (p.pooled) {
+			p.pooled = false;
+			pool.release(p.data);
+		}
+	}
+
+	void dispose() {
+		for (Partial p : partials.values()) {
+			release(p);
+		}
+		partials.clear();
+	}
+
+	static final class Partial {
+
+		final int    flags;
+		final byte[] data;
+		final int    length;
+
+		int     count;
+		boolean pooled;
+
+		Partial(int flags, byte[] data, int length, boolean pooled) {
+			this.flags = flags;
+			this.data = data;
+			this.length = length;
+			this.pooled = pooled;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * How value payloads are compressed before being sent, and the compression metrics of
+ * every connection using it.
+ * <p>
+ * Payloads shorter than the threshold are sent as is, so are payloads that do not
+ * shrink. Every peer can decompress both codecs whatever its own setting, payloads are
+ * only compressed with a codec the remote advertised in its {@link Handshake}.
+ * <p>
+ * {@link #deflateStream(int, byte[])} compresses the whole outbound stream of a
+ * connection instead, which pays off for many small similar frames.
+ */
+public final class FrameCompression {
+
+	static final int NONE    = 0;
+	static final int DEFLATE = 1;
+	static final int LZ4     = 2;
+	static final int STREAM  = 3;
+
+	/**
+	 * @return a setting sending every payload uncompressed
+	 */
+	public static FrameCompression none() {
+		return new FrameCompression(NONE, 0, Integer.MAX_VALUE, null);
+	}
+
+	/**
+	 * @param level the {@link Deflater} level, 1 to 9
+	 * @param threshold the minimum payload length to compress
+	 *
+	 * @return a setting compressing payloads with {@link Deflater}
+	 */
+	public static FrameCompression deflate(int level, int threshold) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("level must be between 1 and 9: " + level);
+		}
+		return new FrameCompression(DEFLATE, level, threshold, null);
+	}
+
+	/**
+	 * @param threshold the minimum payload length to compress
+	 *
+	 * @return a setting compressing payloads with the LZ4 block format
+	 */
+	public static FrameCompression lz4(int threshold) {
+		return new FrameCompression(LZ4, 0, threshold, null);
+	}
+
+	/**
+	 * Compress everything a connection sends through a single deflate stream, flushed
+	 * after each batch of frames.
+	 * <p>
+	 * The optional preset dictionary is a sample of typical payloads, the most common
+	 * content last; only its last 32 KiB are used. The remote must be configured with
+	 * the same dictionary.
+	 *
+	 * @param level the {@link Deflater} level, 1 to 9
+	 * @param dictionary the preset dictionary or null
+	 *
+	 * @return a setting compressing the connection outbound stream
+	 */
+	public static FrameCompression deflateStream(int level, byte[] dictionary) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("level must be between 1 and 9: " + level);
+		}
+		return new FrameCompression(STREAM,
+				level,
+				Integer.MAX_VALUE,
+				dictionary != null ? dictionary.clone() : null);
+	}
+
+	final int codec;
+	final int level;
+	final int threshold;
+	final byte[] dictionary;
+
+	final LongAdder compressedFrames;
+	final LongAdder uncompressedBytes;
+	final LongAdder compressedBytes;
+	final LongAdder compressNanos;
+	final LongAdder decompressNanos;
+
+	FrameCompression(int codec, int level, int threshold, byte[] dictionary) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold must be positive: " + threshold);
+		}
+		this.codec = codec;
+		this.level = level;
+		this.threshold = threshold;
+		this.dictionary = dictionary;
+		this.compressedFrames = new LongAdder();
+		this.uncompressedBytes = new LongAdder();
+		this.compressedBytes = new LongAdder();
+		this.compressNanos = new LongAdder();
+		this.decompressNanos = new LongAdder();
+	}
+
+	/**
+	 * @return the number of payloads sent compressed, not counted with
+	 * {@link #deflateStream(int, byte[])}
+	 */
+	public long compressedFrames() {
+		return compressedFrames.sum();
+	}
+
+	/**
+	 * @return the compressed to original size ratio of the payloads, or the flushed
+	 * stream, sent compressed; 1 if none
+	 */
+	public double ratio() {
+		long original = uncompressedBytes.sum();
+		return original == 0L ? 1d : (double) compressedBytes.sum() / original;
+	}
+
+	/**
+	 * @return the time spent compressing, including payloads that did not shrink
+	 */
+	public long compressNanos() {
+		return compressNanos.sum();
+	}
+
+	/**
+	 * @return the time spent decompressing received payloads
+	 */
+	public long decompressNanos() {
+		return decompressNanos.sum();
+	}
+
+	@Override
+	public String toString() {
+		String mode;
+		switch (codec) {
+			case DEFLATE:
+				mode = "deflate/" + level + ", threshold=" + threshold;
+				break;
+			case LZ4:
+				mode = "lz4, threshold=" + threshold;
+				break;
+			case STREAM:
+				mode = "deflateStream/" + level + (dictionary != null ? ", dictionary=" + dictionary.length : "");
+				break;
+			default:
+				mode = "none";
+		}
+		return "FrameCompression{" + mode + ", frames=" + compressedFrames() + ", ratio=" + ratio() + "}";
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compressor and decompressor of a connection, created once and reused for every
+ * frame. Compression is only used from the write thread and decompression from the
+ * read thread.
+ * <p>
+ * A compressed payload starts with its original length (4 bytes little endian).
+ */
+final class FrameCompressor {
+
+	/**
+	 * The largest payload accepted once decompressed.
+	 */
+	static final int MAX_DECOMPRESSED_LENGTH = 1 << 26;
+
+	final FrameCompression settings;
+
+	final BufferPool pool;
+
+	final Lz4Block lz4;
+
+	Deflater deflater;
+
+	Inflater inflater;
+
+	/**
+	 * The pooled array holding the last compressed payload.
+	 */
+	byte[] compressed;
+
+	/**
+	 * The {@link Handshake#SETTING_CODECS codecs} the remote can decompress, none until
+	 * the connection is set up.
+	 */
+	int codecs;
+
+	FrameCompressor(FrameCompression settings, BufferPool pool) {
+		this.settings = settings;
+		this.pool = pool;
+		this.lz4 = settings.codec == FrameCompression.LZ4 ? new Lz4Block() : null;
+	}
+
+	/**
+	 * @param length a payload length
+	 *
+	 * @return true if payloads of that length are compressed
+	 */
+	boolean accepts(int length) {
+		return accepts(codecs, length);
+	}
+
+	/**
+	 * @param codecs the codecs the remote can decompress
+	 * @param length a payload length
+	 *
+	 * @return true if payloads of that length are compressed for that remote
+	 */
+	boolean accepts(int codecs, int length) {
+		int codec = settings.codec;
+		return (codec == FrameCompression.DEFLATE && (codecs & Handshake.CODEC_DEFLATE) != 0
+				|| codec == FrameCompression.LZ4 && (codecs & Handshake.CODEC_LZ4) != 0)
+				&& length >= settings.threshold;
+	}
+
+	/**
+	 * Compress a payload into {@link #compressed}, to be {@link #detach() detached}
+	 * and released once written.
+	 *
+	 * @param src the payload
+	 * @param len the payload length
+	 *
+	 * @return the compressed length, -1 if the payload is sent as is
+	 */
+	int compress(byte[] src, int len) {
+		if (!accepts(len)) {
+			return -1;
+		}
+		FrameCompression s = settings;
+
+		long start = System.nanoTime();
+		byte[] dst;
+		int n;
+		if (s.codec == FrameCompression.LZ4) {
+			dst = pool.acquire(4 + Lz4Block.maxCompressedLength(len));
+			n = lz4.compress(src, 0, len, dst, 4);
+		}
+		else {
+			Deflater d = deflater;
+			if (d == null) {
+				d = new Deflater(s.level, true);
+				deflater = d;
+			}
+			else {
+				d.reset();
+			}
+			dst = pool.acquire(len);
+			d.setInput(src, 0, len);
+			d.finish();
+			n = d.deflate(dst, 4, dst.length - 4);
+			if (!d.finished()) {
+				n = Integer.MAX_VALUE - 4;
+			}
+		}
+		s.compressNanos.add(System.nanoTime() - start);
+
+		if (n + 4 >= len) {
+			pool.release(dst);
+			return -1;
+		}
+
+		dst[0] = (byte) len;
+		dst[1] = (byte) (len >> 8);
+		dst[2] = (byte) (len >> 16);
+		dst[3] = (byte) (len >> 24);
+
+		s.compressedFrames.increment();
+		s.uncompressedBytes.add(len);
+		s.compressedBytes.add(n + 4);
+
+		compressed = dst;
+		return n + 4;
+	}
+
+	/**
+	 * @return the frame flag of the codec in use
+	 */
+	int flag() {
+		return settings.codec == FrameCompression.DEFLATE ?
+				ByteArrayStreamProtocol.FLAG_NEXT_DEFLATE :
+				ByteArrayStreamProtocol.FLAG_NEXT_LZ4;
+	}
+
+	/**
+	 * @return the pooled array holding the last compressed payload, to be released to
+	 * the connection pool by the caller once written
+	 */
+	byte[] detach() {
+		byte[] b = compressed;
+		compressed = null;
+		return b;
+	}
+
+	/**
+	 * @param payload a compressed payload
+	 * @param len the compressed payload length
+	 *
+	 * @return the decompressed length
+	 *
+	 * @throws IOException if the length is invalid
+	 */
+	static int decompressedLength(byte[] payload, int len) throws IOException {
+		if (len < 4) {
+			throw new IOException("Malformed compressed payload");
+		}
+		int n = (payload[0] & 0xFF) | ((payload[1] & 0xFF) << 8) | ((payload[2] & 0xFF) << 16) | ((payload[3] & 0xFF) << 24);
+		if (n < 0 || n > MAX_DECOMPRESSED_LENGTH) {
+			throw new IOException("Decompressed payload too large: " + n);
+		}
+		return n;
+	}
+
+	/**
+	 * @param flags the frame flags
+	 * @param payload the compressed payload
+	 * @param len the compressed payload length
+	 * @param dst the array to decompress to, of at least {@link #decompressedLength}
+	 * bytes
+	 * @param n the decompressed length
+	 *
+	 * @throws IOException if the payload is malformed
+	 */
+	void decompress(int flags, byte[] payload, int len, byte[] dst, int n)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			if ((flags & ByteArrayStreamProtocol.FLAG_NEXT_LZ4) != 0) {
+				Lz4Block.decompress(payload, 4, len - 4, dst, 0, n);
+				return;
+			}
+			Inflater i = inflater;
+			if (i == null) {
+				i = new Inflater(true);
+				inflater = i;
+			}
+			else {
+				i.reset();
+			}
+			i.setInput(payload, 4, len - 4);
+			int r = 0;
+			while (r < n) {
+				int a = i.inflate(dst, r, n - r);
+				if (a == 0 && (i.finished() || i.needsInput() || i.needsDictionary())) {
+					break;
+				}
+				r += a;
+			}
+			if (r != n) {
+				throw new IOException("Malformed deflate payload: expected = " + n + ", actual = " + r);
+			}
+		}
+		catch (DataFormatException ex) {
+			throw new IOException(ex);
+		}
+		finally {
+			settings.decompressNanos.add(System.nanoTime() - start);
+		}
+	}
+
+	void dispose() {
+		if (deflater != null) {
+			deflater.end();
+		}
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Frame header encodings, the peers settle on the most compact one they both support
+ * when the connection starts. Decoded headers are always exposed in the {@link #FIXED}
+ * layout so the frames are processed the same way whatever the encoding.
+ */
+enum FrameHeader {
+
+	/**
+	 * <pre>
+	 * 00-03: payload length including the header (4 bytes little endian)
+	 * 04-04: entry type (1 bytes)
+	 * 05-07: entry flags (3 bytes little endian)
+	 * 08-0F: stream identifier (8 bytes little endian)
+	 * </pre>
+	 */
+	FIXED(0b01) {
+		@Override
+		void write(ByteBuffer b, int type, int flags, long streamId, int payloadLength) {
+			b.putInt(16 + payloadLength)
+			 .putInt((type & 0xFF) | (flags << 8))
+			 .putLong(streamId);
+		}
+
+		@Override
+		int length(int flags, long streamId, int payloadLength) {
+			return 16;
+		}
+
+		@Override
+		int decode(byte[] b, int offset, int available, int maxPayload, byte[] rb)
+				throws IOException {
+			if (available < 16) {
+				return 0;
+			}
+			int length = (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8) | ((b[offset + 2] & 0xFF) << 16) | ((b[offset + 3] & 0xFF) << 24);
+			checkLength(length - 16L, maxPayload);
+			System.arraycopy(b, offset, rb, 0, 16);
+			return 16;
+		}
+	},
+
+	/**
+	 * <pre>
+	 * bits 0-2: entry type
+	 * bit 3:    set if the entry flags follow as a varint
+	 * bits 4-7: entry flags otherwise
+	 * varint:   entry flags if bit 3 is set
+	 * varint:   stream identifier
+	 * varint:   payload length excluding the header
+	 * </pre>
+	 * Varints are little endian groups of 7 bits, the high bit of each byte is set if
+	 * another byte follows.
+	 */
+	COMPACT(0b10) {
+		@Override
+		void write(ByteBuffer b, int type, int flags, long streamId, int payloadLength) {
+			if ((flags & ~0xF) == 0) {
+				b.put((byte) (type | (flags << 4)));
+			}
+			else {
+				b.put((byte) (type | EXTENDED_FLAGS));
+				writeVarint(b, flags);
+			}
+			writeVarint(b, streamId);
+			writeVarint(b, payloadLength);
+		}
+
+		@Override
+		int length(int flags, long streamId, int payloadLength) {
+			return 1 + ((flags & ~0xF) == 0 ? 0 : varintLength(flags))
+					+ varintLength(streamId) + varintLength(payloadLength);
+		}
+
+		@Override
+		int decode(byte[] b, int offset, int available, int maxPayload, byte[] rb)
+				throws IOException {
+			if (available == 0) {
+				return 0;
+			}
+			int end = offset + available;
+			int first = b[offset] & 0xFF;
+			int flagsEnd = offset + 1;
+			if ((first & EXTENDED_FLAGS) != 0) {
+				flagsEnd = varintEnd(b, offset + 1, end);
+				if (flagsEnd < 0) {
+					return 0;
+				}
+			}
+			int streamIdEnd = varintEnd(b, flagsEnd, end);
+			if (streamIdEnd < 0) {
+				return 0;
+			}
+			int lengthEnd = varintEnd(b, streamIdEnd, end);
+			if (lengthEnd < 0) {
+				return 0;
+			}
+			int flags = first >> 4;
+			if ((first & EXTENDED_FLAGS) != 0) {
+				long extended = varint(b, offset + 1);
+				if ((extended & ~0xFF_FFFFL) != 0L) {
+					throw new IOException("Malformed frame flags: " + extended);
+				}
+				flags = (int) extended;
+			}
+			fixed(rb,
+					first & TYPE_MASK,
+					flags,
+					varint(b, flagsEnd),
+					checkLength(varint(b, streamIdEnd), maxPayload));
+			return lengthEnd - offset;
+		}
+	};
+
+	/**
+	 * The maximum encoded length of a header.
+	 */
+	static final int MAX_LENGTH = 20;
+
+	static final int TYPE_MASK      = 0b0111;
+	static final int EXTENDED_FLAGS = 0b1000;
+
+	/**
+	 * The formats this peer can read, as advertised in its preamble.
+	 */
+	static final int SUPPORTED = FIXED.mask | COMPACT.mask;
+
+	final int mask;
+
+	FrameHeader(int mask) {
+		this.mask = mask;
+	}
+
+	/**
+	 * Encode a header at the position of a little endian buffer.
+	 *
+	 * @param b the buffer to write to, with at least {@link #MAX_LENGTH} bytes remaining
+	 * @param type the entry type
+	 * @param flags the 3 bytes entry flags
+	 * @param streamId the stream identifier
+	 * @param payloadLength the length of the payload following the header
+	 */
+	abstract void write(ByteBuffer b,
+			int type,
+			int flags,
+			long streamId,
+			int payloadLength);
+
+	/**
+	 * @param flags the 3 bytes entry flags
+	 * @param streamId the stream identifier
+	 * @param payloadLength the length of the payload following the header
+	 *
+	 * @return the exact length {@link #write} encodes the header in
+	 */
+	abstract int length(int flags, long streamId, int payloadLength);
+
+	/**
+	 * Decode the header at the given offset into the first 16 bytes of the read buffer,
+	 * in the {@link #FIXED} layout.
+	 *
+	 * @param b the received bytes
+	 * @param offset the offset of the header
+	 * @param available the bytes received from the offset
+	 * @param maxPayload the longest payload accepted
+	 * @param rb the buffer to decode to
+	 *
+	 * @return the encoded header length, 0 if the header is not entirely received
+	 *
+	 * @throws IOException if the header is malformed or its payload too long
+	 */
+	abstract int decode(byte[] b, int offset, int available, int maxPayload, byte[] rb)
+			throws IOException;
+
+	/**
+	 * @param local the formats this peer can read
+	 * @param remote the formats the remote can read
+	 *
+	 * @return the most compact format both peers can read
+	 */
+	static FrameHeader negotiate(int local, int remote) {
+		if ((local & remote & COMPACT.mask) != 0) {
+			return COMPACT;
+		}
+		return FIXED;
+	}
+
+	static void fixed(byte[] b, int type, int flags, long streamId, int payloadLength) {
+		FIXED.write(ByteBuffer.wrap(b)
+		                      .order(ByteOrder.LITTLE_ENDIAN),
+				type,
+				flags,
+				streamId,
+				payloadLength);
+	}
+
+	/**
+	 * @param payloadLength a decoded payload length, unsigned for a varint
+	 * @param maxPayload the longest payload accepted
+	 *
+	 * @return the payload length
+	 *
+	 * @throws IOException if the length is negative or longer than accepted
+	 */
+	static int checkLength(long payloadLength, int maxPayload) throws IOException {
+		if (payloadLength < 0L || payloadLength > maxPayload) {
+			throw new IOException("Invalid frame payload length: " + Long.toUnsignedString(payloadLength));
+		}
+		return (int) payloadLength;
+	}
+
+	static void writeVarint(ByteBuffer b, long value) {
+		while ((value & ~0x7FL) != 0L) {
+			b.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		b.put((byte) value);
+	}
+
+	static int varintLength(long value) {
+		int n = 1;
+		while ((value & ~0x7FL) != 0L) {
+			value >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @param b the received bytes
+	 * @param offset the offset of the varint
+	 * @param end the end of the received bytes
+	 *
+	 * @return the offset following the varint, -1 if it is not entirely received
+	 *
+	 * @throws IOException if the varint is longer than 64 bits
+	 */
+	static int varintEnd(byte[] b, int offset, int end) throws IOException {
+		for (int i = offset; i < end; i++) {
+			if ((b[i] & 0x80) == 0) {
+				return i + 1;
+			}
+			if (i - offset == 9) {
+				throw new IOException("Malformed varint");
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param b the received bytes
+	 * @param offset the offset of a varint entirely received
+	 *
+	 * @return the decoded unsigned varint
+	 */
+	static long varint(byte[] b, int offset) {
+		long value = 0L;
+		for (int shift = 0; ; shift += 7) {
+			int v = b[offset++];
+			value |= (long) (v & 0x7F) << shift;
+			if ((v & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+}
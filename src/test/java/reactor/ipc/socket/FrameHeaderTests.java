@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameHeaderTests {
+
+	static final int MAX_PAYLOAD = Handshake.MIN_FRAME + 4;
+
+	static final long[] STREAM_IDS =
+			{0L, 1L, 127L, 128L, 1L << 31, (1L << 31) + 1, 1L << 32, Long.MAX_VALUE, -1L};
+
+	static final int[] FLAGS = {0, 1, 0xF, 0x10, 0x3F_FFFF, 0x80_0000, 0xFF_FFFF};
+
+	static final int[] LENGTHS = {0, 1, 127, 128, MAX_PAYLOAD};
+
+	@Test
+	public void compactRoundTrip() throws IOException {
+		roundTrip(FrameHeader.COMPACT);
+	}
+
+	@Test
+	public void fixedRoundTrip() throws IOException {
+		roundTrip(FrameHeader.FIXED);
+	}
+
+	@Test
+	public void compactExtendedFlags() throws IOException {
+		ByteBuffer b = encode(FrameHeader.COMPACT, ByteArrayStreamProtocol.TYPE_NEXT, 0xF, 3L, 4);
+		assertEquals("flags inlined", 0, b.get(0) & FrameHeader.EXTENDED_FLAGS);
+		assertEquals(3, b.limit());
+
+		b = encode(FrameHeader.COMPACT, ByteArrayStreamProtocol.TYPE_NEXT, 0x10, 3L, 4);
+		assertTrue("flags extended", (b.get(0) & FrameHeader.EXTENDED_FLAGS) != 0);
+		assertEquals(4, b.limit());
+	}
+
+	@Test
+	public void compactRejectsLongPayloads() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(FrameHeader.MAX_LENGTH);
+		b.put((byte) ByteArrayStreamProtocol.TYPE_NEXT);
+		FrameHeader.writeVarint(b, 1L);
+		FrameHeader.writeVarint(b, MAX_PAYLOAD + 1L);
+		rejected(FrameHeader.COMPACT, b);
+
+		// cast to an int, the length would be negative
+		b.clear();
+		b.put((byte) ByteArrayStreamProtocol.TYPE_NEXT);
+		FrameHeader.writeVarint(b, 1L);
+		FrameHeader.writeVarint(b, 0xFFFF_FFFFL);
+		rejected(FrameHeader.COMPACT, b);
+	}
+
+	@Test
+	public void compactRejectsWideFlags() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(FrameHeader.MAX_LENGTH);
+		b.put((byte) (ByteArrayStreamProtocol.TYPE_NEXT | FrameHeader.EXTENDED_FLAGS));
+		FrameHeader.writeVarint(b, 0x100_0000L);
+		FrameHeader.writeVarint(b, 1L);
+		FrameHeader.writeVarint(b, 0L);
+		rejected(FrameHeader.COMPACT, b);
+	}
+
+	@Test
+	public void fixedRejectsInvalidLengths() throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(16)
+		                         .order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(15)
+		 .putInt(ByteArrayStreamProtocol.TYPE_NEXT)
+		 .putLong(1L);
+		rejected(FrameHeader.FIXED, b);
+
+		b.clear();
+		b.putInt(16 + MAX_PAYLOAD + 1)
+		 .putInt(ByteArrayStreamProtocol.TYPE_NEXT)
+		 .putLong(1L);
+		rejected(FrameHeader.FIXED, b);
+	}
+
+	@Test
+	public void truncatedText() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameWriter w = new FrameWriter(out, ByteBuffer.allocate(1024));
+		w.header = FrameHeader.COMPACT;
+		w.maxPayload = Handshake.MIN_FRAME;
+
+		char[] text = new char[100_000];
+		Arrays.fill(text, '€');
+		// the pair straddles the cut, it is dropped whole
+		text[Handshake.MIN_FRAME / 3 - 1] = '\uD83D';
+		text[Handshake.MIN_FRAME / 3] = '\uDE00';
+		ByteArrayStreamProtocol.error(w, 1L, new String(text));
+		w.flush();
+
+		byte[] b = out.toByteArray();
+		byte[] rb = new byte[16];
+		int n = FrameHeader.COMPACT.decode(b, 0, b.length, Handshake.MIN_FRAME, rb);
+		int length = ByteBuffer.wrap(rb)
+		                       .order(ByteOrder.LITTLE_ENDIAN)
+		                       .getInt(0) - 16;
+		assertEquals(b.length - n, length);
+		assertEquals((Handshake.MIN_FRAME / 3 - 1) * 3, length);
+	}
+
+	static void roundTrip(FrameHeader h) throws IOException {
+		byte[] rb = new byte[16];
+		for (long streamId : STREAM_IDS) {
+			for (int flags : FLAGS) {
+				for (int length : LENGTHS) {
+					ByteBuffer b = encode(h, ByteArrayStreamProtocol.TYPE_NEXT, flags, streamId, length);
+					assertEquals(h.length(flags, streamId, length), b.limit());
+					byte[] encoded = Arrays.copyOf(b.array(), b.limit());
+					// a header split across reads is not decoded until complete
+					for (int available = 0; available < encoded.length; available++) {
+						assertEquals(0, h.decode(encoded, 0, available, MAX_PAYLOAD, rb));
+					}
+					assertEquals(encoded.length,
+							h.decode(encoded, 0, encoded.length, MAX_PAYLOAD, rb));
+
+					ByteBuffer d = ByteBuffer.wrap(rb)
+					                         .order(ByteOrder.LITTLE_ENDIAN);
+					String header = h + " " + streamId + " " + flags + " " + length;
+					assertEquals(header, 16 + length, d.getInt(0));
+					assertEquals(header, ByteArrayStreamProtocol.TYPE_NEXT, d.getInt(4) & 0xFF);
+					assertEquals(header, flags, d.getInt(4) >>> 8);
+					assertEquals(header, streamId, d.getLong(8));
+				}
+			}
+		}
+	}
+
+	static ByteBuffer encode(FrameHeader h, int type, int flags, long streamId, int length) {
+		ByteBuffer b = ByteBuffer.allocate(FrameHeader.MAX_LENGTH)
+		                         .order(ByteOrder.LITTLE_ENDIAN);
+		h.write(b, type, flags, streamId, length);
+		b.flip();
+		return b;
+	}
+
+	static void rejected(FrameHeader h, ByteBuffer b) {
+		try {
+			h.decode(b.array(), 0, b.position(), MAX_PAYLOAD, new byte[16]);
+			fail("Expected the " + h + " header to be rejected");
+		}
+		catch (IOException expected) {
+			// malformed
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the inbound in bulk into a buffer holding many frames, so consecutive frames
+ * are parsed from memory instead of reading each header and payload from the input.
+ * <p>
+ * Headers entirely received are decoded in place. A frame split between two reads
+ * keeps its received part, moved to the start of the buffer, until the next read
+ * completes it. Payload reads larger than the buffer bypass it. Unlike a
+ * {@link java.io.BufferedInputStream} it does not synchronize, it is only used from the
+ * read thread.
+ */
+final class FrameReader extends InputStream {
+
+	/**
+	 * The most times the input is polled by a {@link WaitStrategy} before blocking.
+	 */
+	static final int MAX_POLLS = 1 << 16;
+
+	final InputStream in;
+
+	final byte[] buffer;
+
+	/**
+	 * How the input is polled before blocking in a read, null to block right away.
+	 */
+	final WaitStrategy wait;
+
+	int position;
+
+	int limit;
+
+	FrameReader(InputStream in, int capacity, WaitStrategy wait) {
+		if (capacity < FrameHeader.MAX_LENGTH) {
+			throw new IllegalArgumentException(
+					"FrameReader requires a buffer of at least " + FrameHeader.MAX_LENGTH + " bytes");
+		}
+		this.in = in;
+		this.buffer = new byte[capacity];
+		this.wait = wait;
+	}
+
+	/**
+	 * Decode the next header into the first 16 bytes of the read buffer, in the
+	 * {@link FrameHeader#FIXED} layout.
+	 *
+	 * @param h the header encoding
+	 * @param maxPayload the longest payload accepted
+	 * @param rb the buffer to decode to
+	 *
+	 * @return false if the input ended before a complete header
+	 *
+	 * @throws IOException if the input cannot be read or the header is malformed
+	 */
+	boolean header(FrameHeader h, int maxPayload, byte[] rb) throws IOException {
+		for (; ; ) {
+			int n = h.decode(buffer, position, limit - position, maxPayload, rb);
+			if (n != 0) {
+				position += n;
+				return true;
+			}
+			if (!fill()) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Read more bytes after the buffered ones, moved to the start of the buffer first.
+	 *
+	 * @return false if the input ended
+	 */
+	boolean fill() throws IOException {
+		int remaining = limit - position;
+		if (position != 0) {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+			position = 0;
+			limit = remaining;
+		}
+		if (wait != null) {
+			poll();
+		}
+		int r = in.read(buffer, limit, buffer.length - limit);
+		if (r < 0) {
+			return false;
+		}
+		limit += r;
+		return true;
+	}
+
+	/**
+	 * Wait for received bytes following the {@link #wait} strategy, the next read then
+	 * finds them without the thread being woken up.
+	 */
+	void poll() {
+		int round = 0;
+		try {
+			while (round < MAX_POLLS && in.available() == 0 && wait.idle(round)) {
+				round++;
+			}
+		}
+		catch (IOException ex) {
+			// the read reports it
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int available = limit - position;
+		if (available == 0) {
+			if (len >= buffer.length) {
+				return in.read(b, off, len);
+			}
+			if (!fill()) {
+				return -1;
+			}
+			available = limit - position;
+		}
+		int n = Math.min(available, len);
+		System.arraycopy(buffer, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return limit - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameReaderTests {
+
+	static final int[] PAYLOADS = {0, 1, 7, 40, 100, 1000};
+
+	@Test
+	public void splitFrames() throws IOException {
+		for (FrameHeader h : FrameHeader.values()) {
+			byte[] frames = frames(h);
+			// one byte per read, a few bytes, and reads ending mid-header or mid-payload
+			for (int chunk : new int[]{1, 3, 17, 64, frames.length}) {
+				FrameReader reader =
+						new FrameReader(new ChunkedInputStream(frames, chunk), FrameHeader.MAX_LENGTH + 12, null);
+				assertFrames(h + " by " + chunk, h, reader);
+			}
+		}
+	}
+
+	static void assertFrames(String message, FrameHeader h, FrameReader reader)
+			throws IOException {
+		byte[] rb = new byte[16];
+		for (int i = 0; i < PAYLOADS.length; i++) {
+			assertTrue(message, reader.header(h, 1000, rb));
+			ByteBuffer header = ByteBuffer.wrap(rb)
+			                              .order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(message, 16 + PAYLOADS[i], header.getInt(0));
+			assertEquals(message, ByteArrayStreamProtocol.TYPE_NEXT, header.get(4));
+			assertEquals(message, 1L << (8 * i), header.getLong(8));
+
+			byte[] payload = new byte[PAYLOADS[i]];
+			assertEquals(message,
+					payload.length,
+					ByteArrayStreamProtocol.readFully(reader, payload, payload.length));
+			assertArrayEquals(message, payload(i, PAYLOADS[i]), payload);
+		}
+		assertFalse(message, reader.header(h, 1000, rb));
+	}
+
+	static byte[] frames(FrameHeader h) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		FrameWriter w = new FrameWriter(out, ByteBuffer.allocate(64));
+		w.header = h;
+		for (int i = 0; i < PAYLOADS.length; i++) {
+			w.frame(1L << (8 * i),
+					ByteArrayStreamProtocol.TYPE_NEXT,
+					ByteArrayStreamProtocol.PAYLOAD_BYTES,
+					payload(i, PAYLOADS[i]));
+		}
+		w.flush();
+		return out.toByteArray();
+	}
+
+	static byte[] payload(int frame, int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = (byte) (frame * 31 + i);
+		}
+		return b;
+	}
+
+	/**
+	 * Returns at most a given number of bytes per read, like a socket receiving them in
+	 * separate segments.
+	 */
+	static final class ChunkedInputStream extends ByteArrayInputStream {
+
+		final int chunk;
+
+		ChunkedInputStream(byte[] b, int chunk) {
+			super(b);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, chunk));
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import reactor.ipc.socket.SimpleConnection.OutboundFrame;
+import reactor.ipc.stream.StreamPriority;
+
+/**
+ * Orders the frames of a connection before they are written, only used from the
+ * {@link SimpleConnection#drain()} loop except for {@link #prioritize} and
+ * {@link #forget}.
+ * <p>
+ * Frames not ordered with the values of their stream, opening, requesting or
+ * cancelling it, jump ahead and are written in send order. The other frames are queued
+ * per stream: streams of the most urgent {@link StreamPriority priority} are served
+ * first and streams of the same priority in deficit round robin, each earning a
+ * quantum of bytes proportional to its weight per round. A stream may overdraw its
+ * deficit with a large frame, it then skips rounds until repaid. While the
+ * {@link ConnectionWindow} is exhausted only the frames jumping ahead are taken.
+ * <p>
+ * A stream priority is forgotten once either peer terminates or cancels the stream,
+ * values still sent afterwards are scheduled with the default priority.
+ */
+final class FrameScheduler {
+
+	/**
+	 * The bytes a stream earns per round and unit of weight.
+	 */
+	static final int QUANTUM = 1024;
+
+	static final int DEFAULT =
+			pack(StreamPriority.DEFAULT_PRIORITY, StreamPriority.DEFAULT_WEIGHT);
+
+	/**
+	 * The priority and weight of the streams not using the default ones.
+	 */
+	final ConcurrentMap<Long, Integer> priorities;
+
+	final Map<Long, StreamQueue> streams;
+
+	final ArrayDeque<StreamQueue>[] rounds;
+
+	final ArrayDeque<OutboundFrame> control;
+
+	/**
+	 * Bit set of the priorities with queued streams.
+	 */
+	int active;
+
+	@SuppressWarnings("unchecked")
+	FrameScheduler() {
+		this.priorities = new ConcurrentHashMap<>();
+		this.streams = new HashMap<>();
+		this.rounds = new ArrayDeque[StreamPriority.LOWEST + 1];
+		for (int i = 0; i < rounds.length; i++) {
+			rounds[i] = new ArrayDeque<>();
+		}
+		this.control = new ArrayDeque<>();
+	}
+
+	/**
+	 * Set the priority of the frames of a stream, before any is queued.
+	 *
+	 * @param streamId the stream identifier
+	 * @param priority the stream priority, out of range values are bounded
+	 * @param weight the stream weight, out of range values are bounded
+	 */
+	void prioritize(long streamId, int priority, int weight) {
+		int p = pack(Math.max(StreamPriority.HIGHEST, Math.min(StreamPriority.LOWEST, priority)),
+				Math.max(1, Math.min(StreamPriority.MAX_WEIGHT, weight)));
+		if (p == DEFAULT) {
+			priorities.remove(streamId);
+		}
+		else {
+			priorities.put(streamId, p);
+		}
+	}
+
+	void forget(long streamId) {
+		if (!priorities.isEmpty()) {
+			priorities.remove(streamId);
+		}
+	}
+
+	void offer(OutboundFrame frame) {
+		if (!frame.ordered) {
+			control.offer(frame);
+		}
+		else {
+			queue(frame.streamId).frames.offer(frame);
+		}
+	}
+
+	/**
+	 * Put a frame back at the head of its stream, typically the rest of a value being
+	 * written as fragments.
+	 *
+	 * @param frame the frame to write next on its stream
+	 */
+	void resume(OutboundFrame frame) {
+		queue(frame.streamId).frames.addFirst(frame);
+	}
+
+	/**
+	 * @param flowing false if the connection window is exhausted, only the frames not
+	 * ordered with values are then taken
+	 *
+	 * @return the next frame to write, null if none
+	 */
+	OutboundFrame poll(boolean flowing) {
+		OutboundFrame frame = control.poll();
+		if (frame != null || !flowing) {
+			return frame;
+		}
+		while (active != 0) {
+			int p = Integer.numberOfTrailingZeros(active);
+			ArrayDeque<StreamQueue> round = rounds[p];
+			StreamQueue q = round.peek();
+
+			// streams are removed lazily so a value resumed right after being polled
+			// keeps the deficit of its stream
+			if (q.frames.isEmpty()) {
+				round.poll();
+				streams.remove(q.streamId);
+				if (round.isEmpty()) {
+					active &= ~(1 << p);
+				}
+				continue;
+			}
+
+			if (q.deficit <= 0) {
+				q.deficit += q.quantum;
+				if (q.deficit <= 0) {
+					round.offer(round.poll());
+					continue;
+				}
+			}
+
+			frame = q.frames.poll();
+			q.deficit -= frame.cost();
+			if (q.deficit <= 0) {
+				round.offer(round.poll());
+			}
+			return frame;
+		}
+		return null;
+	}
+
+	/**
+	 * Discard every queued frame.
+	 */
+	void discard() {
+		OutboundFrame frame;
+		while ((frame = control.poll()) != null) {
+			frame.discard();
+		}
+		for (StreamQueue q : streams.values()) {
+			while ((frame = q.frames.poll()) != null) {
+				frame.discard();
+			}
+		}
+		streams.clear();
+		for (ArrayDeque<StreamQueue> round : rounds) {
+			round.clear();
+		}
+		active = 0;
+	}
+
+	StreamQueue queue(long streamId) {
+		StreamQueue q = streams.get(streamId);
+		if (q == null) {
+			int p = priorities.isEmpty() ? DEFAULT : priorities.getOrDefault(streamId, DEFAULT);
+			int priority = p >>> 16;
+			q = new StreamQueue(streamId, (p & 0xFFFF) * QUANTUM);
+			streams.put(streamId, q);
+			rounds[priority].offer(q);
+			active |= 1 << priority;
+		}
+		return q;
+	}
+
+	static int pack(int priority, int weight) {
+		return priority << 16 | weight;
+	}
+
+	static final class StreamQueue {
+
+		final long                      streamId;
+		final int                       quantum;
+		final ArrayDeque<OutboundFrame> frames;
+
+		int deficit;
+
+		StreamQueue(long streamId, int quantum) {
+			this.streamId = streamId;
+			this.quantum = quantum;
+			this.frames = new ArrayDeque<>();
+		}
+	}
+}
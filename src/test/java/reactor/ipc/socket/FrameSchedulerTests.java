@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import org.junit.Test;
+import reactor.ipc.socket.SimpleConnection.OutboundFrame;
+import reactor.ipc.stream.StreamPriority;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FrameSchedulerTests {
+
+	@Test
+	public void urgentStreamsFirst() {
+		FrameScheduler scheduler = new FrameScheduler();
+		scheduler.prioritize(1L, StreamPriority.LOWEST, 1);
+		scheduler.prioritize(3L, StreamPriority.HIGHEST, 1);
+		offer(scheduler, 1L, 10, 1024);
+		offer(scheduler, 5L, 10, 1024);
+		offer(scheduler, 3L, 2, 1024);
+
+		assertEquals(3L, scheduler.poll(true).streamId);
+		assertEquals(3L, scheduler.poll(true).streamId);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(5L, scheduler.poll(true).streamId);
+		}
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1L, scheduler.poll(true).streamId);
+		}
+		assertNull(scheduler.poll(true));
+	}
+
+	@Test
+	public void weightedShare() {
+		FrameScheduler scheduler = new FrameScheduler();
+		scheduler.prioritize(1L, StreamPriority.DEFAULT_PRIORITY, 1);
+		scheduler.prioritize(3L, StreamPriority.DEFAULT_PRIORITY, 3);
+		offer(scheduler, 1L, 100, FrameScheduler.QUANTUM);
+		offer(scheduler, 3L, 100, FrameScheduler.QUANTUM);
+
+		int light = 0;
+		for (int i = 0; i < 40; i++) {
+			if (scheduler.poll(true).streamId == 1L) {
+				light++;
+			}
+		}
+		assertEquals(10, light);
+	}
+
+	@Test
+	public void largeFramesRepaid() {
+		FrameScheduler scheduler = new FrameScheduler();
+		offer(scheduler, 1L, 10, 4 * StreamPriority.DEFAULT_WEIGHT * FrameScheduler.QUANTUM);
+		offer(scheduler, 3L, 100, FrameScheduler.QUANTUM);
+
+		// the large frame costs 4 rounds, taken by the small ones meanwhile
+		assertEquals(1L, scheduler.poll(true).streamId);
+		for (int i = 0; i < 4 * StreamPriority.DEFAULT_WEIGHT; i++) {
+			assertEquals(3L, scheduler.poll(true).streamId);
+		}
+		assertEquals(1L, scheduler.poll(true).streamId);
+	}
+
+	@Test
+	public void controlFramesJumpAhead() {
+		FrameScheduler scheduler = new FrameScheduler();
+		offer(scheduler, 1L, 2, 1024);
+		scheduler.offer(new TestFrame(3L, false, 16));
+
+		assertEquals(3L, scheduler.poll(false).streamId);
+		// values wait for the window
+		assertNull(scheduler.poll(false));
+		assertEquals(1L, scheduler.poll(true).streamId);
+	}
+
+	@Test
+	public void forgottenPriority() {
+		FrameScheduler scheduler = new FrameScheduler();
+		scheduler.prioritize(1L, StreamPriority.LOWEST, 1);
+		scheduler.forget(1L);
+		offer(scheduler, 1L, 1, 1024);
+		scheduler.prioritize(3L, StreamPriority.LOWEST, 1);
+		offer(scheduler, 3L, 1, 1024);
+
+		assertEquals(1L, scheduler.poll(true).streamId);
+	}
+
+	static void offer(FrameScheduler scheduler, long streamId, int count, int cost) {
+		for (int i = 0; i < count; i++) {
+			scheduler.offer(new TestFrame(streamId, true, cost));
+		}
+	}
+
+	static final class TestFrame extends OutboundFrame {
+
+		final int cost;
+
+		TestFrame(long streamId, boolean ordered, int cost) {
+			super(streamId, ordered);
+			this.cost = cost;
+		}
+
+		@Override
+		int cost() {
+			return cost;
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes frames in place into a little endian buffer, written to the output when full
+ * or flushed. Payloads larger than the buffer are written directly after their header.
+ * Frames already encoded in the {@link OutboundRing} are written from there, adjacent
+ * ones together.
+ */
+final class FrameWriter {
+
+	/**
+	 * The output frames are written to, wrapped by a {@link StreamCompression.Output}
+	 * once the connection settles on compressing its stream.
+	 */
+	OutputStream out;
+
+	final ByteBuffer buffer;
+
+	FrameHeader header;
+
+	/**
+	 * The longest payload the remote accepts, text payloads are cut short to fit.
+	 */
+	int maxPayload;
+
+	/**
+	 * The payload bytes written in {@link ByteArrayStreamProtocol#TYPE_NEXT} frames,
+	 * counted against the {@link ConnectionWindow}.
+	 */
+	long nextBytes;
+
+	/**
+	 * The ring of the pending {@link #region} frames, written before the buffer.
+	 */
+	OutboundRing ring;
+	long         regionStart;
+	long         regionEnd;
+	int          regionOffset;
+	int          regionLength;
+
+	FrameWriter(OutputStream out, ByteBuffer buffer) {
+		if (!buffer.hasArray() || buffer.capacity() < FrameHeader.MAX_LENGTH + 8) {
+			throw new IllegalArgumentException(
+					"FrameWriter requires a heap buffer of at least " + (FrameHeader.MAX_LENGTH + 8) + " bytes");
+		}
+		this.out = out;
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.header = FrameHeader.FIXED;
+		this.maxPayload = Integer.MAX_VALUE;
+	}
+
+	void frame(long streamId, int type, int flags, byte[] payload) throws IOException {
+		frame(streamId, type, flags, payload, payload.length);
+	}
+
+	void frame(long streamId, int type, int flags, byte[] payload, int len)
+			throws IOException {
+		frame(streamId, type, flags, payload, 0, len);
+	}
+
+	void frame(long streamId, int type, int flags, byte[] payload, int offset, int len)
+			throws IOException {
+		reserve(FrameHeader.MAX_LENGTH);
+		header(type, flags, streamId, len);
+		put(payload, offset, len);
+	}
+
+	/**
+	 * Write a frame whose payload is a 4 bytes little endian prefix followed by a slice
+	 * of an array.
+	 */
+	void frame(long streamId,
+			int type,
+			int flags,
+			int prefix,
+			byte[] payload,
+			int offset,
+			int len) throws IOException {
+		reserve(FrameHeader.MAX_LENGTH + 4);
+		header(type, flags, streamId, 4 + len);
+		buffer.putInt(prefix);
+		put(payload, offset, len);
+	}
+
+	/**
+	 * Write a frame with an UTF-8 payload, encoded straight into the buffer unless it
+	 * does not fit.
+	 */
+	void frame(long streamId, int type, int flags, CharSequence text)
+			throws IOException {
+		if (text == null) {
+			text = "";
+		}
+		int len = Utf8.encodedLength(text);
+		if (len > maxPayload) {
+			// at most 3 bytes per char, without splitting a surrogate pair
+			int end = maxPayload / 3;
+			if (Character.isHighSurrogate(text.charAt(end - 1))) {
+				end--;
+			}
+			text = text.subSequence(0, end);
+			len = Utf8.encodedLength(text);
+		}
+		if (FrameHeader.MAX_LENGTH + len > buffer.capacity()) {
+			frame(streamId, type, flags, Utf8.encode(text));
+			return;
+		}
+		reserve(FrameHeader.MAX_LENGTH + len);
+		header(type, flags, streamId, len);
+		int offset = buffer.arrayOffset();
+		buffer.position(Utf8.encode(text, buffer.array(), offset + buffer.position()) - offset);
+	}
+
+	void frame(long streamId, int type, int flags, int payload) throws IOException {
+		reserve(FrameHeader.MAX_LENGTH + 4);
+		header(type, flags, streamId, 4);
+		buffer.putInt(payload);
+	}
+
+	void frame(long streamId, int type, int flags, long payload) throws IOException {
+		reserve(FrameHeader.MAX_LENGTH + 8);
+		header(type, flags, streamId, 8);
+		buffer.putLong(payload);
+	}
+
+	void header(int type, int flags, long streamId, int payloadLength) {
+		header.write(buffer, type, flags, streamId, payloadLength);
+		if (type == ByteArrayStreamProtocol.TYPE_NEXT) {
+			nextBytes += payloadLength;
+		}
+	}
+
+	/**
+	 * Write a {@link ByteArrayStreamProtocol#TYPE_NEXT} frame encoded in a ring region,
+	 * released once written. The write is deferred so that the adjacent regions
+	 * following it are written at once.
+	 *
+	 * @param r the ring holding the frame
+	 * @param start the start of the region
+	 * @param end the end of the region
+	 * @param offset the frame offset in the ring
+	 * @param length the frame length
+	 * @param payloadLength the frame payload length
+	 */
+	void region(OutboundRing r,
+			long start,
+			long end,
+			int offset,
+			int length,
+			int payloadLength) throws IOException {
+		nextBytes += payloadLength;
+		if (regionLength != 0 && buffer.position() == 0 && ring == r && start == regionEnd
+				&& offset == regionOffset + regionLength) {
+			regionEnd = end;
+			regionLength += length;
+			return;
+		}
+		writeBuffer();
+		ring = r;
+		regionStart = start;
+		regionEnd = end;
+		regionOffset = offset;
+		regionLength = length;
+	}
+
+	void put(byte[] payload, int offset, int len) throws IOException {
+		if (len <= buffer.remaining()) {
+			buffer.put(payload, offset, len);
+		}
+		else {
+			writeBuffer();
+			out.write(payload, offset, len);
+		}
+	}
+
+	void reserve(int length) throws IOException {
+		if (buffer.remaining() < length) {
+			writeBuffer();
+		}
+	}
+
+	void writeBuffer() throws IOException {
+		if (regionLength != 0) {
+			int length = regionLength;
+			regionLength = 0;
+			try {
+				out.write(ring.buffer, regionOffset, length);
+			}
+			finally {
+				ring.release(regionStart, regionEnd);
+			}
+		}
+		if (buffer.position() != 0) {
+			out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+			buffer.clear();
+		}
+	}
+
+	void flush() throws IOException {
+		writeBuffer();
+		out.flush();
+	}
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The preamble both peers write before any frame, advertising what they support:
+ * <pre>
+ * 00-03: "RIPC"
+ * 04-04: highest protocol version the peer speaks (1 byte)
+ * 05-05: length of the settings that follow (1 byte)
+ * 06-..: settings, each an identifier (1 byte) followed by a varint value
+ * </pre>
+ * Settings a peer does not know are skipped and missing ones take their default, so
+ * new capabilities can be advertised without breaking older peers of the same version.
+ * <p>
+ * Each peer computes the {@link Settings} both support from the two preambles, which
+ * gives the same result on both sides, and only writes its first frame once it has
+ * read the remote one.
+ */
+final class Handshake {
+
+	static final int VERSION     = 4;
+	static final int MIN_VERSION = 4;
+
+	/**
+	 * {@link FrameHeader} formats the peer can read (bitmask), defaults to
+	 * {@link FrameHeader#FIXED}.
+	 */
+	static final int SETTING_HEADERS   = 1;
+	/**
+	 * Payload kinds the peer can decode (bitmask of {@code 1 << kind}), defaults to
+	 * {@link #REQUIRED_PAYLOADS}.
+	 */
+	static final int SETTING_PAYLOADS  = 2;
+	/**
+	 * Value payload codecs the peer can decompress (bitmask of {@link #CODEC_DEFLATE}
+	 * and {@link #CODEC_LZ4}), defaults to none.
+	 */
+	static final int SETTING_CODECS    = 3;
+	/**
+	 * Connection-level compression (bitmask of {@link #STREAM_DEFLATE} and
+	 * {@link #STREAM_INFLATE}), defaults to none.
+	 */
+	static final int SETTING_STREAM    = 4;
+	/**
+	 * The largest value payload, or fragment of one, the peer accepts in a single
+	 * frame, defaults to {@link #MIN_FRAME}.
+	 */
+	static final int SETTING_MAX_FRAME = 5;
+	/**
+	 * The initial connection window of the peer in bytes, 0 if it does not limit the
+	 * bytes in flight.
+	 */
+	static final int SETTING_WINDOW    = 6;
+	/**
+	 * The identifier of the {@link Session} the client opens or resumes, echoed by a
+	 * server accepting it. Absent if the connection is not resumable.
+	 */
+	static final int SETTING_SESSION   = 7;
+	/**
+	 * The bytes of the session the peer received, only present when resuming it.
+	 */
+	static final int SETTING_POSITION  = 8;
+
+	static final int CODEC_DEFLATE = 1;
+	static final int CODEC_LZ4     = 2;
+
+	/**
+	 * The peer compresses everything it writes after the preamble if the remote can
+	 * inflate it, see {@link StreamCompression}.
+	 */
+	static final int STREAM_DEFLATE = 1;
+	/**
+	 * The peer can inflate a compressed stream.
+	 */
+	static final int STREAM_INFLATE = 2;
+
+	/**
+	 * The payload kinds every peer decodes.
+	 */
+	static final int REQUIRED_PAYLOADS =
+			1 << ByteArrayStreamProtocol.PAYLOAD_OBJECT | 1 << ByteArrayStreamProtocol.PAYLOAD_INT | 1 << ByteArrayStreamProtocol.PAYLOAD_LONG | 1 << ByteArrayStreamProtocol.PAYLOAD_STRING | 1 << ByteArrayStreamProtocol.PAYLOAD_BYTES | 1 << ByteArrayStreamProtocol.PAYLOAD_BUFFER;
+
+	static final int PAYLOADS =
+			REQUIRED_PAYLOADS | 1 << ByteArrayStreamProtocol.PAYLOAD_OBJECT_STREAM;
+
+	static final int MIN_FRAME = 16 * 1024;
+
+	static final byte[] MAGIC = {'R', 'I', 'P', 'C'};
+
+	/**
+	 * @param compression the compression settings of the connection
+	 * @param maxFrame the largest value payload accepted in a single frame
+	 * @param window the initial connection window, 0 if none
+	 * @param session the session identifier, 0 if not resumable
+	 *
+	 * @return what this peer supports
+	 */
+	static Handshake local(FrameCompression compression,
+			int maxFrame,
+			int window,
+			long session) {
+		return new Handshake(VERSION,
+				FrameHeader.SUPPORTED,
+				PAYLOADS,
+				CODEC_DEFLATE | CODEC_LZ4,
+				compression.codec == FrameCompression.STREAM ? STREAM_DEFLATE | STREAM_INFLATE : STREAM_INFLATE,
+				maxFrame,
+				window,
+				session,
+				-1L);
+	}
+
+	/**
+	 * Read the remote preamble.
+	 *
+	 * @param in the input to read from
+	 * @param rb a buffer of at least 256 bytes
+	 *
+	 * @return what the remote supports, null if the input ended before
+	 *
+	 * @throws IOException if the input cannot be read or does not start with a valid
+	 * preamble
+	 */
+	static Handshake read(InputStream in, byte[] rb) throws IOException {
+		if (ByteArrayStreamProtocol.readFully(in, rb, 6) < 6) {
+			return null;
+		}
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (rb[i] != MAGIC[i]) {
+				throw new IOException("Invalid preamble");
+			}
+		}
+		int version = rb[4] & 0xFF;
+		if (version < MIN_VERSION) {
+			throw new IOException("Unsupported protocol version: " + version);
+		}
+		int length = rb[5] & 0xFF;
+		if (ByteArrayStreamProtocol.readFully(in, rb, length) < length) {
+			throw new EOFException();
+		}
+
+		int headers = FrameHeader.FIXED.mask;
+		int payloads = REQUIRED_PAYLOADS;
+		int codecs = 0;
+		int stream = 0;
+		int maxFrame = MIN_FRAME;
+		int window = 0;
+		long session = 0L;
+		long position = -1L;
+
+		int i = 0;
+		while (i < length) {
+			int id = rb[i++] & 0xFF;
+			long value = 0L;
+			for (int shift = 0; ; shift += 7) {
+				if (i == length || shift > 63) {
+					throw new IOException("Malformed preamble setting: " + id);
+				}
+				byte b = rb[i++];
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					break;
+				}
+			}
+			int v = (int) Math.max(0L, Math.min(value, Integer.MAX_VALUE));
+			switch (id) {
+				case SETTING_HEADERS:
+					headers = v;
+					break;
+				case SETTING_PAYLOADS:
+					payloads = v;
+					break;
+				case SETTING_CODECS:
+					codecs = v;
+					break;
+				case SETTING_STREAM:
+					stream = v;
+					break;
+				case SETTING_MAX_FRAME:
+					maxFrame = v;
+					break;
+				case SETTING_WINDOW:
+					window = v;
+					break;
+				case SETTING_SESSION:
+					session = value;
+					break;
+				case SETTING_POSITION:
+					position = value;
+					break;
+				default:
+					// advertised by a newer peer, ignored
+			}
+		}
+		return new Handshake(version,
+				headers,
+				payloads,
+				codecs,
+				stream,
+				maxFrame,
+				window,
+				session,
+				position);
+	}
+
+	final int version;
+	final int headers;
+	final int payloads;
+	final int codecs;
+	final int stream;
+	final int maxFrame;
+	final int window;
+	final long session;
+	final long position;
+
+	Handshake(int version,
+			int headers,
+			int payloads,
+			int codecs,
+			int stream,
+			int maxFrame,
+			int window,
+			long session,
+			long position) {
+		this.version = version;
+		this.headers = headers;
+		this.payloads = payloads;
+		this.codecs = codecs;
+		this.stream = stream;
+		this.maxFrame = maxFrame;
+		this.window = window;
+		this.session = session;
+		this.position = position;
+	}
+
+	/**
+	 * @param position the bytes of the session received
+	 *
+	 * @return this preamble resuming the session at the given position
+	 */
+	Handshake resume(long position) {
+		return new Handshake(version,
+				headers,
+				payloads,
+				codecs,
+				stream,
+				maxFrame,
+				window,
+				session,
+				position);
+	}
+
+	/**
+	 * Write this preamble and flush it.
+	 *
+	 * @param out the output to write to
+	 *
+	 * @throws IOException if the output cannot be written
+	 */
+	void write(OutputStream out) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(64);
+		b.put(MAGIC)
+		 .put((byte) version)
+		 .put((byte) 0);
+		setting(b, SETTING_HEADERS, headers);
+		setting(b, SETTING_PAYLOADS, payloads);
+		setting(b, SETTING_CODECS, codecs);
+		setting(b, SETTING_STREAM, stream);
+		setting(b, SETTING_MAX_FRAME, maxFrame);
+		setting(b, SETTING_WINDOW, window);
+		if (session != 0L) {
+			setting(b, SETTING_SESSION, session);
+		}
+		if (position >= 0L) {
+			setting(b, SETTING_POSITION, position);
+		}
+		b.put(5, (byte) (b.position() - 6));
+		out.write(b.array(), 0, b.position());
+		out.flush();
+	}
+
+	/**
+	 * @param remote what the remote supports
+	 *
+	 * @return the settings of the connection
+	 *
+	 * @throws IOException if the peers have no common protocol version, header format
+	 * or payload encoding
+	 */
+	Settings negotiate(Handshake remote) throws IOException {
+		int v = Math.min(version, remote.version);
+		if (v < MIN_VERSION) {
+			throw new IOException("Unsupported protocol version: " + remote.version);
+		}
+		if ((headers & remote.headers) == 0) {
+			throw new IOException("No common frame header format: " + remote.headers);
+		}
+		if ((remote.payloads & REQUIRED_PAYLOADS) != REQUIRED_PAYLOADS) {
+			throw new IOException("The remote does not decode the required payloads: " + remote.payloads);
+		}
+		if (remote.maxFrame < MIN_FRAME) {
+			throw new IOException("The remote maximum frame size is too small: " + remote.maxFrame);
+		}
+		return new Settings(v,
+				FrameHeader.negotiate(headers, remote.headers),
+				remote.payloads & PAYLOADS,
+				remote.codecs,
+				(stream & STREAM_DEFLATE) != 0 && (remote.stream & STREAM_INFLATE) != 0,
+				(remote.stream & STREAM_DEFLATE) != 0 && (stream & STREAM_INFLATE) != 0,
+				Math.min(maxFrame, remote.maxFrame),
+				remote.window,
+				session != 0L && session == remote.session ? session : 0L);
+	}
+
+	static void setting(ByteBuffer b, int id, long value) {
+		b.put((byte) id);
+		FrameHeader.writeVarint(b, value);
+	}
+
+	@Override
+	public String toString() {
+		return "Handshake{version=" + version + ", headers=" + headers + ", payloads=" + payloads + ", codecs=" + codecs + ", stream=" + stream + ", maxFrame=" + maxFrame + ", window=" + window + ", session=" + session + ", position=" + position + "}";
+	}
+
+	/**
+	 * The features both peers of a connection settled on.
+	 */
+	static final class Settings {
+
+		final int         version;
+		final FrameHeader header;
+		/**
+		 * The payload kinds the remote decodes.
+		 */
+		final int         payloads;
+		/**
+		 * The value payload codecs the remote decompresses.
+		 */
+		final int         codecs;
+		/**
+		 * True if the outbound stream is compressed.
+		 */
+		final boolean     deflate;
+		/**
+		 * True if the inbound stream is compressed.
+		 */
+		final boolean     inflate;
+		/**
+		 * The largest value payload sent in a single frame, larger ones are fragmented.
+		 */
+		final int         maxFrame;
+		/**
+		 * The initial connection window of the remote, 0 if none.
+		 */
+		final int         window;
+		/**
+		 * The resumable session identifier, 0 if none.
+		 */
+		final long        session;
+
+		Settings(int version,
+				FrameHeader header,
+				int payloads,
+				int codecs,
+				boolean deflate,
+				boolean inflate,
+				int maxFrame,
+				int window,
+				long session) {
+			this.version = version;
+			this.header = header;
+			this.payloads = payloads;
+			this.codecs = codecs;
+			this.deflate = deflate;
+			this.inflate = inflate;
+			this.maxFrame = maxFrame;
+			this.window = window;
+			this.session = session;
+		}
+
+		@Override
+		public String toString() {
+			return "Settings{version=" + version + ", header=" + header.mask + ", payloads=" + payloads + ", codecs=" + codecs + ", deflate=" + deflate + ", inflate=" + inflate + ", maxFrame=" + maxFrame + ", window=" + window + ", session=" + session + "}";
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java compressor for the LZ4 block format: greedy matching over a single hash
+ * table, trading ratio for speed. Not thread-safe, the table is reused between calls.
+ */
+final class Lz4Block {
+
+	static final int MIN_MATCH     = 4;
+	static final int LAST_LITERALS = 5;
+	static final int MF_LIMIT      = 12;
+	static final int MAX_DISTANCE  = 0xFFFF;
+	static final int HASH_LOG      = 12;
+	static final int SKIP_TRIGGER  = 6;
+
+	/**
+	 * @param length the input length
+	 *
+	 * @return the largest compressed length of an input of that length
+	 */
+	static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	final int[] table = new int[1 << HASH_LOG];
+
+	/**
+	 * @param src the input
+	 * @param srcOff the input offset
+	 * @param srcLen the input length
+	 * @param dst the output, with room for {@link #maxCompressedLength(int)} bytes
+	 * @param dstOff the output offset
+	 *
+	 * @return the compressed length
+	 */
+	int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		int end = srcOff + srcLen;
+		int anchor = srcOff;
+		int op = dstOff;
+
+		if (srcLen > MF_LIMIT) {
+			int[] table = this.table;
+			Arrays.fill(table, 0);
+
+			int mfLimit = end - MF_LIMIT;
+			int matchLimit = end - LAST_LITERALS;
+			int ip = srcOff;
+			int searches = 1 << SKIP_TRIGGER;
+
+			while (ip < mfLimit) {
+				int seq = readInt(src, ip);
+				int h = hash(seq);
+				int ref = table[h] - 1 + srcOff;
+				table[h] = ip - srcOff + 1;
+
+				if (ref < srcOff || ip - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+					ip += searches++ >>> SKIP_TRIGGER;
+					continue;
+				}
+				searches = 1 << SKIP_TRIGGER;
+
+				while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+					ip--;
+					ref--;
+				}
+
+				int ml = MIN_MATCH;
+				while (ip + ml < matchLimit && src[ip + ml] == src[ref + ml]) {
+					ml++;
+				}
+
+				int literals = ip - anchor;
+				int token = op++;
+				op = writeLength(dst, op, literals);
+				System.arraycopy(src, anchor, dst, op, literals);
+				op += literals;
+
+				int offset = ip - ref;
+				dst[op++] = (byte) offset;
+				dst[op++] = (byte) (offset >>> 8);
+				op = writeLength(dst, op, ml - MIN_MATCH);
+
+				dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(ml - MIN_MATCH, 15));
+
+				ip += ml;
+				anchor = ip;
+
+				if (ip < mfLimit) {
+					table[hash(readInt(src, ip - 2))] = ip - 2 - srcOff + 1;
+				}
+			}
+		}
+
+		int literals = end - anchor;
+		dst[op++] = (byte) (Math.min(literals, 15) << 4);
+		op = writeLength(dst, op, literals);
+		System.arraycopy(src, anchor, dst, op, literals);
+		op += literals;
+
+		return op - dstOff;
+	}
+
+	/**
+	 * @param src the compressed input
+	 * @param srcOff the input offset
+	 * @param srcLen the input length
+	 * @param dst the output
+	 * @param dstOff the output offset
+	 * @param dstLen the exact decompressed length
+	 *
+	 * @throws IOException if the input is malformed or does not decompress to
+	 * {@code dstLen} bytes
+	 */
+	static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+			throws IOException {
+		int ip = srcOff;
+		int end = srcOff + srcLen;
+		int op = dstOff;
+		int oend = dstOff + dstLen;
+
+		while (ip < end) {
+			int token = src[ip++] & 0xFF;
+
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					if (ip == end) {
+						throw new IOException("Malformed LZ4 block");
+					}
+					b = src[ip++] & 0xFF;
+					literals += b;
+				}
+				while (b == 255);
+			}
+			if (literals > end - ip || literals > oend - op) {
+				throw new IOException("Malformed LZ4 block");
+			}
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+
+			if (ip == end) {
+				break;
+			}
+
+			if (end - ip < 2) {
+				throw new IOException("Malformed LZ4 block");
+			}
+			int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+			ip += 2;
+			int ref = op - offset;
+			if (offset == 0 || ref < dstOff) {
+				throw new IOException("Malformed LZ4 block");
+			}
+
+			int ml = token & 15;
+			if (ml == 15) {
+				int b;
+				do {
+					if (ip == end) {
+						throw new IOException("Malformed LZ4 block");
+					}
+					b = src[ip++] & 0xFF;
+					ml += b;
+				}
+				while (b == 255);
+			}
+			ml += MIN_MATCH;
+			if (ml > oend - op) {
+				throw new IOException("Malformed LZ4 block");
+			}
+
+			if (offset >= ml) {
+				System.arraycopy(dst, ref, dst, op, ml);
+				op += ml;
+			}
+			else {
+				for (int i = 0; i < ml; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+
+		if (op != oend) {
+			throw new IOException("Malformed LZ4 block");
+		}
+	}
+
+	static int writeLength(byte[] dst, int op, int length) {
+		if (length >= 15) {
+			length -= 15;
+			while (length >= 255) {
+				dst[op++] = (byte) 255;
+				length -= 255;
+			}
+			dst[op++] = (byte) length;
+		}
+		return op;
+	}
+
+	static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8) | ((b[i + 2] & 0xFF) << 16) | ((b[i + 3] & 0xFF) << 24);
+	}
+
+	static int hash(int seq) {
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+}
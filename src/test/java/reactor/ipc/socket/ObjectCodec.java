@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Connection-scoped Java serialization of {@link ByteArrayStreamProtocol#PAYLOAD_OBJECT_STREAM}
+ * values.
+ * <p>
+ * Every value of a connection is written to the same {@link ObjectOutputStream}, the
+ * first payload starts with the serialization stream header. Class descriptors and
+ * strings of at least {@link #MIN_STRING_LENGTH} characters are sent in full once and
+ * referenced by index afterwards. Both peers add entries to their tables in the same
+ * order and clear a table once it holds {@link #MAX_ENTRIES} entries, so they never
+ * need to be synchronized explicitly. Object handles are reset before every value so
+ * nothing else is retained between values.
+ * <p>
+ * If a value cannot be serialized the encoder is discarded; the next payload starts
+ * with a new stream header, telling the remote to discard its decoder as well.
+ */
+final class ObjectCodec {
+
+	static final int MAX_ENTRIES       = 1024;
+	static final int MIN_STRING_LENGTH = 16;
+
+	static final int NEW_ENTRY = -1;
+
+	/**
+	 * Stands for a string already sent on the connection.
+	 */
+	static final class StringRef implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final int index;
+
+		StringRef(int index) {
+			this.index = index;
+		}
+	}
+
+	/**
+	 * Serializes values on the write thread, in frame order.
+	 */
+	static final class Encoder {
+
+		final Sink sink;
+
+		Output output;
+
+		Encoder() {
+			this.sink = new Sink();
+		}
+
+		/**
+		 * Serialize a value, the result is valid until the next call.
+		 *
+		 * @param o the value
+		 *
+		 * @return the sink holding the serialized value
+		 *
+		 * @throws IOException if the value cannot be serialized, the next value then
+		 * starts a new stream
+		 */
+		Sink encode(Object o) throws IOException {
+			sink.reset();
+			try {
+				Output out = output;
+				if (out == null) {
+					out = new Output(sink);
+					output = out;
+				}
+				else {
+					out.reset();
+				}
+				out.writeObject(o);
+				out.flush();
+			}
+			catch (IOException | RuntimeException ex) {
+				output = null;
+				throw ex;
+			}
+			return sink;
+		}
+	}
+
+	static final class Output extends ObjectOutputStream {
+
+		final Map<ObjectStreamClass, Integer> classes;
+		final Map<String, Integer>            strings;
+
+		Output(OutputStream out) throws IOException {
+			super(out);
+			this.classes = new IdentityHashMap<>();
+			this.strings = new HashMap<>();
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+			Integer index = classes.get(desc);
+			if (index != null) {
+				writeInt(index);
+				return;
+			}
+			if (classes.size() == MAX_ENTRIES) {
+				classes.clear();
+			}
+			classes.put(desc, classes.size());
+			writeInt(NEW_ENTRY);
+			super.writeClassDescriptor(desc);
+		}
+
+		@Override
+		protected Object replaceObject(Object obj) {
+			if (obj instanceof String && ((String) obj).length() >= MIN_STRING_LENGTH) {
+				String s = (String) obj;
+				Integer index = strings.get(s);
+				if (index != null) {
+					return new StringRef(index);
+				}
+				if (strings.size() == MAX_ENTRIES) {
+					strings.clear();
+				}
+				strings.put(s, strings.size());
+			}
+			return obj;
+		}
+	}
+
+	/**
+	 * Deserializes values on the read thread, in frame order.
+	 */
+	static final class Decoder {
+
+		final Source source;
+
+		Input input;
+
+		Decoder() {
+			this.source = new Source();
+		}
+
+		/**
+		 * @param payload the array holding the value
+		 * @param len the payload length
+		 *
+		 * @return the deserialized value
+		 */
+		Object decode(byte[] payload, int len) throws IOException, ClassNotFoundException {
+			source.b = payload;
+			source.pos = 0;
+			source.end = len;
+			try {
+				if (len >= 2 && payload[0] == (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8) && payload[1] == (byte) ObjectStreamConstants.STREAM_MAGIC) {
+					input = new Input(source);
+				}
+				else if (input == null) {
+					throw new IOException("Object stream not started");
+				}
+				return input.readObject();
+			}
+			finally {
+				source.b = null;
+			}
+		}
+	}
+
+	static final class Input extends ObjectInputStream {
+
+		final List<ObjectStreamClass> classes;
+		final List<String>            strings;
+
+		Input(InputStream in) throws IOException {
+			super(in);
+			this.classes = new ArrayList<>();
+			this.strings = new ArrayList<>();
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected ObjectStreamClass readClassDescriptor()
+				throws IOException, ClassNotFoundException {
+			int index = readInt();
+			if (index != NEW_ENTRY) {
+				if (index < 0 || index >= classes.size()) {
+					throw new IOException("Unknown class descriptor: " + index);
+				}
+				return classes.get(index);
+			}
+			if (classes.size() == MAX_ENTRIES) {
+				classes.clear();
+			}
+			ObjectStreamClass desc = super.readClassDescriptor();
+			classes.add(desc);
+			return desc;
+		}
+
+		@Override
+		protected Object resolveObject(Object obj) throws IOException {
+			if (obj instanceof StringRef) {
+				int index = ((StringRef) obj).index;
+				if (index < 0 || index >= strings.size()) {
+					throw new IOException("Unknown string: " + index);
+				}
+				return strings.get(index);
+			}
+			if (obj instanceof String && ((String) obj).length() >= MIN_STRING_LENGTH) {
+				if (strings.size() == MAX_ENTRIES) {
+					strings.clear();
+				}
+				strings.add((String) obj);
+			}
+			return obj;
+		}
+	}
+
+	/**
+	 * A growable array the {@link Output} writes to, shrunk back after large values.
+	 */
+	static final class Sink extends OutputStream {
+
+		static final int INITIAL_SIZE = 256;
+		static final int MAX_RETAINED = 64 * 1024;
+
+		byte[] buffer = new byte[INITIAL_SIZE];
+		int    count;
+
+		@Override
+		public void write(int b) {
+			ensure(count + 1);
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(count + len);
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		void ensure(int size) {
+			if (size > buffer.length) {
+				byte[] b = new byte[Math.max(size, buffer.length << 1)];
+				System.arraycopy(buffer, 0, b, 0, count);
+				buffer = b;
+			}
+		}
+
+		void reset() {
+			count = 0;
+			if (buffer.length > MAX_RETAINED) {
+				buffer = new byte[INITIAL_SIZE];
+			}
+		}
+	}
+
+	/**
+	 * The payload currently decoded.
+	 */
+	static final class Source extends InputStream {
+
+		byte[] b;
+		int    pos;
+		int    end;
+
+		@Override
+		public int read() {
+			return pos < end ? b[pos++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] dst, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			int n = Math.min(len, end - pos);
+			if (n <= 0) {
+				return -1;
+			}
+			System.arraycopy(b, pos, dst, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return end - pos;
+		}
+	}
+
+	private ObjectCodec() {
+	}
+}
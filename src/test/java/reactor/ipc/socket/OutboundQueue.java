@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import reactor.ipc.socket.SimpleConnection.OutboundFrame;
+
+/**
+ * Intrusive multi-producer single-consumer queue of the frames sent on a connection,
+ * linked through {@link OutboundFrame#next} so offering a frame allocates nothing.
+ * <p>
+ * Producers swap the tail then link the previous one, the consumer, only the
+ * {@link SimpleConnection#drain()} loop, follows the links from the head. A producer
+ * preempted between both steps hides the frames offered after its own until it links
+ * it; {@link #poll()} then returns null and the producer, having incremented the drain
+ * counter after linking, makes the loop try again. A frame can only be queued once.
+ */
+final class OutboundQueue {
+
+	static final AtomicReferenceFieldUpdater<OutboundQueue, OutboundFrame> TAIL =
+			AtomicReferenceFieldUpdater.newUpdater(OutboundQueue.class,
+					OutboundFrame.class,
+					"tail");
+
+	static final AtomicReferenceFieldUpdater<OutboundFrame, OutboundFrame> NEXT =
+			AtomicReferenceFieldUpdater.newUpdater(OutboundFrame.class,
+					OutboundFrame.class,
+					"next");
+
+	/**
+	 * Stands for the head once every frame has been polled.
+	 */
+	final OutboundFrame stub;
+
+	OutboundFrame head;
+
+	volatile OutboundFrame tail;
+
+	OutboundQueue() {
+		this.stub = new Stub();
+		this.head = stub;
+		this.tail = stub;
+	}
+
+	void offer(OutboundFrame frame) {
+		NEXT.lazySet(frame, null);
+		OutboundFrame previous = TAIL.getAndSet(this, frame);
+		previous.next = frame;
+	}
+
+	/**
+	 * @return the oldest linked frame, null if none
+	 */
+	OutboundFrame poll() {
+		OutboundFrame h = head;
+		OutboundFrame next = h.next;
+		if (h == stub) {
+			if (next == null) {
+				return null;
+			}
+			head = next;
+			h = next;
+			next = next.next;
+		}
+		if (next != null) {
+			head = next;
+			return h;
+		}
+		if (h != tail) {
+			// a producer swapped the tail but did not link it yet
+			return null;
+		}
+		offer(stub);
+		next = h.next;
+		if (next != null) {
+			head = next;
+			return h;
+		}
+		return null;
+	}
+
+	static final class Stub extends OutboundFrame {
+
+		Stub() {
+			super(0L, false);
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+}
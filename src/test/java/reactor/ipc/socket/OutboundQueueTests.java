@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import reactor.ipc.socket.SimpleConnection.OutboundFrame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTests {
+
+	@Test
+	public void fifo() {
+		OutboundQueue queue = new OutboundQueue();
+		assertNull(queue.poll());
+
+		// emptied in between, the stub is linked again behind the last frame
+		for (int round = 0; round < 3; round++) {
+			OutboundFrame[] frames = new OutboundFrame[round + 1];
+			for (int i = 0; i < frames.length; i++) {
+				frames[i] = new TestFrame(round, i);
+				queue.offer(frames[i]);
+			}
+			for (OutboundFrame frame : frames) {
+				assertSame(frame, queue.poll());
+			}
+			assertNull(queue.poll());
+		}
+	}
+
+	@Test
+	public void concurrentProducers() throws Exception {
+		int producers = 4;
+		int count = 100_000;
+		OutboundQueue queue = new OutboundQueue();
+		CountDownLatch start = new CountDownLatch(1);
+		for (int p = 0; p < producers; p++) {
+			long producer = p;
+			Thread t = new Thread(() -> {
+				try {
+					start.await();
+				}
+				catch (InterruptedException ex) {
+					return;
+				}
+				for (int i = 0; i < count; i++) {
+					queue.offer(new TestFrame(producer, i));
+				}
+			}, "outbound-queue-producer-" + p);
+			t.setDaemon(true);
+			t.start();
+		}
+		start.countDown();
+
+		// each producer's frames are polled in the order it offered them
+		int[] next = new int[producers];
+		int received = 0;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (received < producers * count) {
+			TestFrame frame = (TestFrame) queue.poll();
+			if (frame == null) {
+				assertTrue("Frames lost: " + received, System.nanoTime() < deadline);
+				Thread.yield();
+				continue;
+			}
+			assertEquals(next[(int) frame.streamId]++, frame.sequence);
+			received++;
+		}
+		assertNull(queue.poll());
+	}
+
+	static final class TestFrame extends OutboundFrame {
+
+		final int sequence;
+
+		TestFrame(long streamId, int sequence) {
+			super(streamId, true);
+			this.sequence = sequence;
+		}
+
+		@Override
+		public void run() {
+		}
+	}
+}
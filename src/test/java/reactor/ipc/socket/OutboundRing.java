@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-allocated byte ring the sending threads encode value frames into, header
+ * included, so the {@link FrameWriter} hands them to the output without copying them
+ * again.
+ * <p>
+ * Regions are positioned by a sequence increasing forever, their offset in the array
+ * being the sequence modulo its length. A producer claims a region by advancing the
+ * claim cursor, skipping the end of the array if the region would wrap, encodes its
+ * frame in place and commits it by queuing a frame referring to it: the
+ * {@link OutboundQueue} publishes the bytes to the write thread. Regions are released
+ * once written or discarded, possibly out of order as the {@link FrameScheduler}
+ * interleaves the streams, but are only reused once every region claimed before them
+ * is released. Producers never wait, a claim failing for lack of space falls back to
+ * writing the value from the write thread.
+ */
+final class OutboundRing {
+
+	final byte[] buffer;
+
+	/**
+	 * The end of the last claimed region.
+	 */
+	final AtomicLong claimed;
+
+	/**
+	 * The end of the released regions, every region before is free.
+	 */
+	volatile long released;
+
+	/**
+	 * The regions released ahead of {@link #released}: their end by their start,
+	 * guarded by this ring.
+	 */
+	final Map<Long, Long> ahead;
+
+	OutboundRing(int capacity) {
+		this.buffer = new byte[capacity];
+		this.claimed = new AtomicLong();
+		this.ahead = new HashMap<>();
+	}
+
+	/**
+	 * @param length the region length
+	 *
+	 * @return the start of the claimed region, -1 if the ring has not enough space
+	 */
+	long claim(int length) {
+		int capacity = buffer.length;
+		if (length > capacity) {
+			return -1L;
+		}
+		for (; ; ) {
+			long c = claimed.get();
+			long end = end(c, length);
+			if (end - released > capacity) {
+				return -1L;
+			}
+			if (claimed.compareAndSet(c, end)) {
+				return c;
+			}
+		}
+	}
+
+	/**
+	 * @param start the start of a region returned by {@link #claim(int)}
+	 * @param length the region length
+	 *
+	 * @return the offset of the region in the {@link #buffer}
+	 */
+	int offset(long start, int length) {
+		int capacity = buffer.length;
+		int index = (int) (start % capacity);
+		return index + length > capacity ? 0 : index;
+	}
+
+	/**
+	 * @param start the start of a claimed region
+	 * @param length the region length
+	 *
+	 * @return the end of the region, including the skipped end of the array if any
+	 */
+	long end(long start, int length) {
+		int capacity = buffer.length;
+		int index = (int) (start % capacity);
+		return index + length > capacity ? start + capacity - index + length : start + length;
+	}
+
+	/**
+	 * Free a region, or several adjacent ones, once written or discarded.
+	 *
+	 * @param start the start of the first region
+	 * @param end the end of the last region
+	 */
+	synchronized void release(long start, long end) {
+		if (start != released) {
+			ahead.put(start, end);
+			return;
+		}
+		Long next;
+		while ((next = ahead.remove(end)) != null) {
+			end = next;
+		}
+		released = end;
+	}
+}
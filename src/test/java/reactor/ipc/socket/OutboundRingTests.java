@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutboundRingTests {
+
+	@Test
+	public void wrapAround() {
+		OutboundRing ring = new OutboundRing(100);
+		long a = ring.claim(60);
+		assertEquals(0L, a);
+		assertEquals(0, ring.offset(a, 60));
+		ring.release(a, ring.end(a, 60));
+
+		// the last 40 bytes of the array are skipped
+		long b = ring.claim(60);
+		assertEquals(60L, b);
+		assertEquals(0, ring.offset(b, 60));
+		assertEquals(160L, ring.end(b, 60));
+
+		// the skipped bytes are only free once the region is released
+		assertEquals(-1L, ring.claim(30));
+		ring.release(b, 160L);
+
+		// the next region follows in the array
+		long c = ring.claim(30);
+		assertEquals(160L, c);
+		assertEquals(60, ring.offset(c, 30));
+		ring.release(c, ring.end(c, 30));
+		assertEquals(190L, ring.released);
+	}
+
+	@Test
+	public void full() {
+		OutboundRing ring = new OutboundRing(100);
+		assertEquals(-1L, ring.claim(101));
+		long a = ring.claim(60);
+		// would wrap over the region still claimed
+		assertEquals(-1L, ring.claim(50));
+		long b = ring.claim(40);
+		assertEquals(60L, b);
+		assertEquals(-1L, ring.claim(1));
+
+		ring.release(a, 60L);
+		assertEquals(100L, ring.claim(60));
+	}
+
+	@Test
+	public void releasedOutOfOrder() {
+		OutboundRing ring = new OutboundRing(100);
+		long a = ring.claim(30);
+		long b = ring.claim(30);
+		long c = ring.claim(30);
+		ring.release(c, 90L);
+		ring.release(b, 60L);
+		// free only once every region before is
+		assertEquals(0L, ring.released);
+		assertEquals(-1L, ring.claim(20));
+
+		ring.release(a, 30L);
+		assertEquals(90L, ring.released);
+		assertEquals(90L, ring.claim(20));
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+/**
+ * A resumable connection, outliving the sockets carrying it.
+ * <p>
+ * The session sits below the frame writer and the stream compression, so the bytes it
+ * carries are positioned from the end of the {@link Handshake}. It counts the bytes
+ * received and keeps the last bytes sent in a fixed size replay ring. When the socket
+ * fails, reads block and writes are only recorded until the client reconnects with a
+ * handshake giving the session identifier and the position it received up to, the
+ * server answers with its own position and each peer replays what the other missed.
+ * Frames, even partially received, thus continue where they stopped and the streams
+ * never notice.
+ * <p>
+ * A session expires if it is not resumed within its timeout, or if the remote missed
+ * more bytes than the replay ring holds; reads then fail and the connection terminates
+ * as if not resumable.
+ */
+final class Session {
+
+	static final Logger log = Loggers.getLogger(Session.class);
+
+	static final SecureRandom RANDOM = new SecureRandom();
+
+	static final int ACTIVE    = 0;
+	static final int SUSPENDED = 1;
+	static final int RESUMING  = 2;
+	static final int CLOSED    = 3;
+
+	/**
+	 * @return a new session identifier, never zero
+	 */
+	static long newId() {
+		long id;
+		do {
+			id = RANDOM.nextLong();
+		}
+		while (id == 0L);
+		return id;
+	}
+
+	final long id;
+
+	final long timeout;
+
+	final byte[] ring;
+
+	/**
+	 * Opens a new socket to the server, null on the server side.
+	 */
+	final Callable<Socket> connector;
+
+	final Scheduler reconnectScheduler;
+
+	final Input input;
+
+	final Output output;
+
+	/**
+	 * The local preamble, sent again with the received position to resume.
+	 */
+	Handshake handshake;
+
+	/**
+	 * Called once the session is closed or expired.
+	 */
+	Runnable onClose;
+
+	Socket       socket;
+	InputStream  rawIn;
+	OutputStream rawOut;
+
+	int  state;
+	long deadline;
+	long received;
+	long written;
+
+	boolean     reconnecting;
+	IOException failure;
+
+	/**
+	 * @param id the session identifier
+	 * @param socket the first socket of the session
+	 * @param timeout how long the session can be suspended in milliseconds
+	 * @param replaySize the number of bytes kept to be replayed
+	 * @param connector opens a new socket to the server, null on the server side
+	 * @param reconnectScheduler runs the reconnections, null on the server side
+	 */
+	Session(long id,
+			Socket socket,
+			long timeout,
+			int replaySize,
+			Callable<Socket> connector,
+			Scheduler reconnectScheduler) throws IOException {
+		this.id = id;
+		this.timeout = timeout;
+		this.ring = new byte[replaySize];
+		this.connector = connector;
+		this.reconnectScheduler = reconnectScheduler;
+		this.socket = socket;
+		this.rawIn = socket.getInputStream();
+		this.rawOut = socket.getOutputStream();
+		this.input = new Input();
+		this.output = new Output();
+	}
+
+	/**
+	 * Continue the session on a new socket, whose handshake has already been read.
+	 *
+	 * @param s the new socket
+	 * @param position the bytes the remote received up to
+	 * @param respond true to answer with the local handshake and position first
+	 *
+	 * @return false if the session cannot be resumed from the given position
+	 */
+	boolean resume(Socket s, long position, boolean respond) {
+		OutputStream o;
+		Handshake response;
+		try {
+			o = s.getOutputStream();
+			synchronized (this) {
+				if (state == CLOSED || position > written || position < written - ring.length) {
+					return false;
+				}
+				Socket previous = socket;
+				socket = s;
+				rawIn = s.getInputStream();
+				rawOut = o;
+				if (state == ACTIVE || state == RESUMING) {
+					// the remote gave up on the previous socket before it was noticed
+					SimpleConnection.tryClose(previous);
+				}
+				state = RESUMING;
+				response = respond ? handshake.resume(received) : null;
+				notifyAll();
+			}
+		}
+		catch (IOException ex) {
+			return false;
+		}
+
+		try {
+			if (response != null) {
+				response.write(o);
+			}
+			long from = position;
+			for (; ; ) {
+				byte[] b;
+				synchronized (this) {
+					if (socket != s) {
+						return true;
+					}
+					if (from == written) {
+						state = ACTIVE;
+						break;
+					}
+					if (from < written - ring.length) {
+						throw new IOException("Replay buffer exceeded while resuming");
+					}
+					b = new byte[(int) (written - from)];
+					copy(from, b);
+				}
+				o.write(b);
+				from += b.length;
+			}
+			o.flush();
+			log.debug("Session {} resumed at {}", id, position);
+		}
+		catch (IOException ex) {
+			suspend(s, ex);
+		}
+		return true;
+	}
+
+	/**
+	 * Suspend the session after a socket failure, unless the socket was already
+	 * replaced.
+	 */
+	void suspend(Socket s, IOException cause) {
+		SimpleConnection.tryClose(s);
+		boolean reconnect;
+		synchronized (this) {
+			if (s != socket || (state != ACTIVE && state != RESUMING)) {
+				return;
+			}
+			state = SUSPENDED;
+			failure = cause;
+			deadline = System.currentTimeMillis() + timeout;
+			reconnect = connector != null && !reconnecting;
+			reconnecting |= reconnect;
+		}
+		log.debug("Session {} suspended: {}", id, cause.toString());
+		if (reconnect) {
+			reconnectScheduler.schedule(this::reconnect);
+		}
+	}
+
+	/**
+	 * Open new sockets until the server resumes the session or it expires.
+	 */
+	void reconnect() {
+		long delay = 10L;
+		for (; ; ) {
+			Handshake h;
+			synchronized (this) {
+				if (state != SUSPENDED || System.currentTimeMillis() >= deadline) {
+					reconnecting = false;
+					return;
+				}
+				h = handshake.resume(received);
+			}
+			Socket s = null;
+			try {
+				s = connector.call();
+				h.write(s.getOutputStream());
+				Handshake remote = Handshake.read(s.getInputStream(), new byte[256]);
+				if (remote != null) {
+					if (remote.session != id || !resume(s, remote.position, false)) {
+						SimpleConnection.tryClose(s);
+						expire(new IOException("The remote did not resume the session"));
+					}
+					synchronized (this) {
+						if (state != SUSPENDED) {
+							reconnecting = false;
+							return;
+						}
+					}
+				}
+			}
+			catch (Exception ex) {
+				log.debug("Session {} reconnection failed: {}", id, ex.toString());
+			}
+			if (s != null) {
+				synchronized (this) {
+					if (socket != s) {
+						SimpleConnection.tryClose(s);
+					}
+				}
+			}
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException ex) {
+				synchronized (this) {
+					reconnecting = false;
+				}
+				return;
+			}
+			delay = Math.min(delay * 2, 1000L);
+		}
+	}
+
+	void expire(IOException cause) {
+		synchronized (this) {
+			if (state == CLOSED) {
+				return;
+			}
+			state = CLOSED;
+			failure = new IOException("Session expired", cause);
+			notifyAll();
+		}
+		log.debug("Session {} expired: {}", id, cause.toString());
+		terminate();
+	}
+
+	void close() {
+		synchronized (this) {
+			if (state == CLOSED) {
+				return;
+			}
+			state = CLOSED;
+			failure = null;
+			notifyAll();
+		}
+		terminate();
+	}
+
+	void terminate() {
+		Socket s;
+		synchronized (this) {
+			s = socket;
+		}
+		SimpleConnection.tryClose(s);
+		Runnable r = onClose;
+		if (r != null) {
+			r.run();
+		}
+	}
+
+	void record(byte[] b, int off, int len) {
+		int capacity = ring.length;
+		long position = written;
+		written += len;
+		if (len > capacity) {
+			off += len - capacity;
+			position += len - capacity;
+			len = capacity;
+		}
+		int start = (int) (position % capacity);
+		int n = Math.min(len, capacity - start);
+		System.arraycopy(b, off, ring, start, n);
+		System.arraycopy(b, off + n, ring, 0, len - n);
+	}
+
+	void copy(long from, byte[] b) {
+		int capacity = ring.length;
+		int start = (int) (from % capacity);
+		int n = Math.min(b.length, capacity - start);
+		System.arraycopy(ring, start, b, 0, n);
+		System.arraycopy(ring, 0, b, n, b.length - n);
+	}
+
+	/**
+	 * The session inbound, only used from the read thread.
+	 */
+	final class Input extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			for (; ; ) {
+				Socket s;
+				InputStream r;
+				synchronized (Session.this) {
+					while (state == SUSPENDED) {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0L) {
+							expire(failure);
+							break;
+						}
+						try {
+							Session.this.wait(wait);
+						}
+						catch (InterruptedException ex) {
+							throw new InterruptedIOException();
+						}
+					}
+					if (state == CLOSED) {
+						if (failure != null) {
+							throw failure;
+						}
+						return -1;
+					}
+					s = socket;
+					r = rawIn;
+				}
+				int n;
+				try {
+					n = r.read(b, off, len);
+				}
+				catch (IOException ex) {
+					suspend(s, ex);
+					continue;
+				}
+				if (n < 0) {
+					suspend(s, new EOFException("Connection lost"));
+					continue;
+				}
+				synchronized (Session.this) {
+					// bytes read from a replaced socket are replayed by the remote
+					if (s == socket) {
+						received += n;
+						return n;
+					}
+				}
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			InputStream r;
+			synchronized (Session.this) {
+				if (state != ACTIVE) {
+					return 0;
+				}
+				r = rawIn;
+			}
+			return r.available();
+		}
+
+		@Override
+		public void close() {
+			Session.this.close();
+		}
+	}
+
+	/**
+	 * The session outbound, only used from the write thread.
+	 */
+	final class Output extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			Socket s;
+			OutputStream o;
+			synchronized (Session.this) {
+				if (state == CLOSED) {
+					throw new IOException("Session closed");
+				}
+				record(b, off, len);
+				if (state != ACTIVE) {
+					return;
+				}
+				s = socket;
+				o = rawOut;
+			}
+			try {
+				o.write(b, off, len);
+			}
+			catch (IOException ex) {
+				suspend(s, ex);
+			}
+		}
+
+		@Override
+		public void flush() {
+			Socket s;
+			OutputStream o;
+			synchronized (Session.this) {
+				if (state != ACTIVE) {
+					return;
+				}
+				s = socket;
+				o = rawOut;
+			}
+			try {
+				o.flush();
+			}
+			catch (IOException ex) {
+				suspend(s, ex);
+			}
+		}
+
+		@Override
+		public void close() {
+			Session.this.close();
+		}
+	}
+}
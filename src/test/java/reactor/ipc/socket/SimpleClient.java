@@ -19,8 +19,10 @@ package reactor.ipc.socket;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.time.Duration;
 import java.util.Objects;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.BiFunction;
 
 import org.reactivestreams.Publisher;
@@ -46,15 +48,167 @@ public final class SimpleClient extends SimplePeer {
 
 	static public SimpleClient create(InetAddress bindAddress, int port) {
 		Objects.requireNonNull(bindAddress, "bindAddress");
-		return new SimpleClient(bindAddress, port);
+		return new SimpleClient(bindAddress, port, FrameCompression.none(), 0L, 0, 0, 0, null, null);
 	}
 
-	final int         port;
-	final InetAddress address;
+	final int              port;
+	final InetAddress      address;
+	final FrameCompression compression;
+	final long             resumeTimeout;
+	final int              replaySize;
+	final int              decodeLanes;
+	final int              encodeWorkers;
+	final WaitStrategy     wait;
+	final ThreadFactory    ioThreads;
 
-	SimpleClient(InetAddress address, int port) {
+	SimpleClient(InetAddress address,
+			int port,
+			FrameCompression compression,
+			long resumeTimeout,
+			int replaySize,
+			int decodeLanes,
+			int encodeWorkers,
+			WaitStrategy wait,
+			ThreadFactory ioThreads) {
 		this.port = port;
 		this.address = address;
+		this.compression = compression;
+		this.resumeTimeout = resumeTimeout;
+		this.replaySize = replaySize;
+		this.decodeLanes = decodeLanes;
+		this.encodeWorkers = encodeWorkers;
+		this.wait = wait;
+		this.ioThreads = ioThreads;
+	}
+
+	/**
+	 * @param compression how the values sent by the client are compressed
+	 *
+	 * @return a client compressing the values it sends
+	 */
+	public SimpleClient compression(FrameCompression compression) {
+		Objects.requireNonNull(compression, "compression");
+		return new SimpleClient(address,
+				port,
+				compression,
+				resumeTimeout,
+				replaySize,
+				decodeLanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Reconnect after a connection failure and resume it, with every stream continuing
+	 * where it stopped, if the server was configured to
+	 * {@link SimpleServer#resume(Duration, int) resume} connections.
+	 *
+	 * @param timeout how long the client tries to reconnect
+	 * @param replaySize the bytes kept to be sent again once resumed
+	 *
+	 * @return a client resuming its connections
+	 */
+	public SimpleClient resume(Duration timeout, int replaySize) {
+		Objects.requireNonNull(timeout, "timeout");
+		if (replaySize <= 0) {
+			throw new IllegalArgumentException("replaySize must be positive: " + replaySize);
+		}
+		return new SimpleClient(address,
+				port,
+				compression,
+				timeout.toMillis(),
+				replaySize,
+				decodeLanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Decode the serialized objects and long texts the client receives on several
+	 * threads, the values of each stream still being delivered in order.
+	 *
+	 * @param lanes the number of decoding threads of each connection
+	 *
+	 * @return a client decoding the values it receives in parallel
+	 */
+	public SimpleClient decodeParallelism(int lanes) {
+		if (lanes <= 0) {
+			throw new IllegalArgumentException("lanes must be positive: " + lanes);
+		}
+		return new SimpleClient(address,
+				port,
+				compression,
+				resumeTimeout,
+				replaySize,
+				lanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Encode the objects and long texts the client sends on several threads, even those
+	 * of a single stream, the values of each stream still being sent in order. Objects
+	 * are then serialized standalone rather than sharing the class descriptors already
+	 * sent on the connection.
+	 *
+	 * @param workers the number of encoding threads of each connection
+	 *
+	 * @return a client encoding the values it sends in parallel
+	 */
+	public SimpleClient encodeParallelism(int workers) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers must be positive: " + workers);
+		}
+		return new SimpleClient(address,
+				port,
+				compression,
+				resumeTimeout,
+				replaySize,
+				decodeLanes,
+				workers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Run the read and write loops of each connection on dedicated threads waiting
+	 * for work with the given strategy, rather than waking up a shared thread each time.
+	 *
+	 * @param wait how the loops wait for work
+	 *
+	 * @return a client with lower latency loops
+	 */
+	public SimpleClient waitStrategy(WaitStrategy wait) {
+		return waitStrategy(wait, null);
+	}
+
+	/**
+	 * Run the read and write loops of each connection on dedicated threads waiting
+	 * for work with the given strategy, rather than waking up a shared thread each time.
+	 * <p>
+	 * The thread factory is called for the read loop and for the write loop of each
+	 * connection. The JDK offers no thread affinity, a factory can pin the threads to
+	 * isolated cores with a native library.
+	 *
+	 * @param wait how the loops wait for work
+	 * @param ioThreads creates the loop threads, null for default daemon threads
+	 *
+	 * @return a client with lower latency loops
+	 */
+	public SimpleClient waitStrategy(WaitStrategy wait, ThreadFactory ioThreads) {
+		Objects.requireNonNull(wait, "wait");
+		return new SimpleClient(address,
+				port,
+				compression,
+				resumeTimeout,
+				replaySize,
+				decodeLanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
 	}
 
 	@Override
@@ -74,7 +228,25 @@ public final class SimpleClient extends SimplePeer {
 					}
 				});
 
-				SimpleConnection connection = new SimpleConnection(socket);
+				Session session = null;
+				if (replaySize > 0) {
+					session = new Session(Session.newId(),
+							socket,
+							resumeTimeout,
+							replaySize,
+							() -> new Socket(address, port),
+							scheduler);
+				}
+
+				SimpleConnection connection = new SimpleConnection(socket,
+						false,
+						compression,
+						null,
+						session,
+						decodeLanes,
+						encodeWorkers,
+						wait,
+						ioThreads);
 
 				sink.success(connection);
 
@@ -16,18 +16,26 @@
 
 package reactor.ipc.socket;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.NotSerializableException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.IntConsumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.reactivestreams.Publisher;
 import reactor.core.Exceptions;
@@ -39,7 +47,11 @@ import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 import reactor.ipc.connector.Inbound;
 import reactor.ipc.connector.Outbound;
+import reactor.ipc.stream.StreamOperations;
 import reactor.ipc.stream.StreamOutbound;
+import reactor.ipc.stream.StreamPriority;
+import reactor.util.Logger;
+import reactor.util.Loggers;
 import reactor.util.context.Context;
 
 /**
@@ -48,37 +60,258 @@ import reactor.util.context.Context;
 final class SimpleConnection implements Inbound<byte[]>, Outbound<byte[]>,
                                         StreamOutbound, SimpleContext {
 
+	static final Logger log = Loggers.getLogger(SimpleConnection.class);
+
+	/**
+	 * The largest value payload sent in a single frame, larger ones are split into
+	 * fragments interleaved with the frames of the other streams. The remote may
+	 * advertise a smaller one in its {@link Handshake}.
+	 */
+	static final int FRAGMENT_SIZE = 64 * 1024;
+
+	/**
+	 * The value payload bytes the remote may send before being granted more, see
+	 * {@link ConnectionWindow}.
+	 */
+	static final int WINDOW_SIZE = 16 * FRAGMENT_SIZE;
+
+	/**
+	 * The capacity of the {@link OutboundRing} values are encoded into when sent.
+	 */
+	static final int RING_SIZE = 4 * FRAGMENT_SIZE;
+
+	/**
+	 * How long {@link #dispose()} waits for the {@link #writeLoop()} to end, in
+	 * milliseconds.
+	 */
+	static final long JOIN_TIMEOUT = 1000L;
+
+	/**
+	 * The capacity of the {@link FrameReader} the frames are received through.
+	 */
+	static final int READ_SIZE = FRAGMENT_SIZE;
+
 	final DirectProcessor<Void> processor;
 
 	final Mono<Void> onClose;
 
 	final Socket socket;
 
+	/**
+	 * Set once the connection is closed or disposed locally, a read failing afterwards
+	 * ends the input instead of failing it.
+	 */
 	final AtomicBoolean terminateOnce;
 
 	final Flux<byte[]> receiver;
 
 	final byte[] readBuffer;
 
-	final byte[] writeBuffer;
+	/**
+	 * Encodes outbound frames, only used from the {@link #drain()} loop.
+	 */
+	final FrameWriter writer;
+
+	/**
+	 * Payload arrays of received and sent values, released once the value has been
+	 * delivered or written.
+	 */
+	final BufferPool pool;
+
+	/**
+	 * Holds the frames of the values encoded by the sending threads, see
+	 * {@link #encodeInPlace(long, PendingValues, Object)}.
+	 */
+	final OutboundRing ring;
+
+	/**
+	 * Serializes {@link ByteArrayStreamProtocol#PAYLOAD_OBJECT_STREAM} values, only used
+	 * from the {@link #drain()} loop.
+	 */
+	final ObjectCodec.Encoder objectEncoder;
+
+	/**
+	 * Deserializes {@link ByteArrayStreamProtocol#PAYLOAD_OBJECT_STREAM} values, only
+	 * used from the receiver.
+	 */
+	final ObjectCodec.Decoder objectDecoder;
+
+	/**
+	 * Compresses value payloads from the {@link #drain()} loop and decompresses them
+	 * from the receiver.
+	 */
+	final FrameCompressor compressor;
+
+	/**
+	 * Decodes costly value payloads off the read thread, null if every payload is decoded
+	 * from there.
+	 */
+	final DecodeLanes lanes;
+
+	/**
+	 * Encodes costly values off the sending threads, null if every value is encoded
+	 * from there or the {@link #drain()} loop.
+	 */
+	final EncodeStage stage;
+
+	/**
+	 * Reassembles fragmented value payloads, only used from the receiver.
+	 */
+	final FrameAssembler assembler;
+
+	/**
+	 * Orders the frames taken from {@link #outbound}, only used from the
+	 * {@link #drain()} loop.
+	 */
+	final FrameScheduler scheduler;
+
+	/**
+	 * Bounds the value payload bytes in flight in both directions.
+	 */
+	final ConnectionWindow window;
 
 	final Scheduler readScheduler;
 	final Scheduler writeScheduler;
 	final Scheduler dispatcher;
 
-	final InputStream in;
+	/**
+	 * How the read and write loops wait for work, null to run them on the
+	 * {@link #dispatcher} and block whenever idle.
+	 */
+	final WaitStrategy wait;
+
+	/**
+	 * Runs the {@link #writeLoop()} of the {@link #wait} strategy, null without one.
+	 */
+	final Thread writeThread;
+
+	/**
+	 * Set once disposed, the drain loop then discards the frames instead of writing
+	 * them.
+	 */
+	volatile boolean stopped;
+
+	/**
+	 * The frames input, the socket input until the remote preamble is read and then the
+	 * {@link #reader}.
+	 */
+	InputStream in;
+
+	/**
+	 * Reads the frames in bulk, over the {@link Session} if any and inflated if the
+	 * remote compresses its stream. Null until the remote preamble is read.
+	 */
+	FrameReader reader;
 
-	final OutputStream out;
+	/**
+	 * The resumable session carrying the frames, null if not resumable.
+	 */
+	volatile Session session;
+
+	final FrameCompression compression;
+
+	final Handshake handshake;
+
+	/**
+	 * The features both peers support, null until the remote preamble is read. Frames
+	 * are queued but not written until then.
+	 */
+	volatile Handshake.Settings settings;
+
+	/**
+	 * True once the {@link #drain()} loop applied the {@link #settings}.
+	 */
+	boolean started;
+
+	/**
+	 * Frames sent but not yet given to the {@link #scheduler}, in send order.
+	 */
+	final OutboundQueue outbound;
+
+	/**
+	 * The values not yet written indexed by stream, so they can be discarded when the
+	 * stream is purged. A purged stream stays until forgotten so the values still
+	 * racing in are discarded too.
+	 */
+	final ConcurrentMap<Long, PendingValues> pendingNexts;
+
+	/**
+	 * Receives the values failing to encode once sent, null until the connection is
+	 * accepted.
+	 */
+	volatile StreamOperations endpoint;
+
+	/**
+	 * Counts the frames sent since the {@link #drain()} loop last checked, the sender
+	 * incrementing it from zero claims the loop.
+	 */
+	final AtomicInteger outboundWip;
+
+	final Runnable drainLoop;
+
+	/**
+	 * Request amounts not yet written indexed by stream, increments sent in the meantime
+	 * are merged in the same frame.
+	 */
+	final ConcurrentMap<Long, AtomicLong> pendingRequests;
 
 	SimpleConnection(Socket socket) {
 		this(socket, false);
 	}
 
 	SimpleConnection(Socket socket, boolean server) {
+		this(socket, server, FrameCompression.none());
+	}
+
+	SimpleConnection(Socket socket, boolean server, FrameCompression compression) {
+		this(socket, server, compression, null, null, 0, 0, null, null);
+	}
+
+	/**
+	 * @param remote the preamble already read from a client, null to read the remote
+	 * one once connected
+	 * @param session the session to open or resume, null if not resumable
+	 * @param decodeLanes the number of {@link DecodeLanes}, 0 to decode every value from
+	 * the read thread
+	 * @param encodeWorkers the number of {@link EncodeStage} threads, 0 to encode every
+	 * value from the sending threads or the write thread
+	 * @param wait how the read and write loops wait for work, null to block whenever idle
+	 * @param ioThreads creates the threads of the read and write loops if waiting with a
+	 * strategy, null for default daemon threads
+	 */
+	SimpleConnection(Socket socket,
+			boolean server,
+			FrameCompression compression,
+			Handshake remote,
+			Session session,
+			int decodeLanes,
+			int encodeWorkers,
+			WaitStrategy wait,
+			ThreadFactory ioThreads) {
 		this.socket = socket;
 		this.terminateOnce = new AtomicBoolean();
-		this.readBuffer = new byte[16];
-		this.writeBuffer = new byte[32];
+		this.readBuffer = new byte[256];
+		this.pool = new BufferPool(16);
+		this.ring = new OutboundRing(RING_SIZE);
+		this.objectEncoder = new ObjectCodec.Encoder();
+		this.objectDecoder = new ObjectCodec.Decoder();
+		this.compressor = new FrameCompressor(compression, pool);
+		this.assembler = new FrameAssembler(pool);
+		this.lanes = decodeLanes > 0 ?
+				new DecodeLanes("simple-" + (server ? "server" : "client") + "-decode",
+						decodeLanes,
+						pool) : null;
+		this.stage = encodeWorkers > 0 ?
+				new EncodeStage(this,
+						"simple-" + (server ? "server" : "client") + "-encode",
+						encodeWorkers) : null;
+		this.scheduler = new FrameScheduler();
+		this.window = new ConnectionWindow(WINDOW_SIZE);
+		this.outbound = new OutboundQueue();
+		this.pendingNexts = new ConcurrentHashMap<>();
+		this.outboundWip = new AtomicInteger();
+		this.drainLoop = this::drain;
+		this.pendingRequests = new ConcurrentHashMap<>();
 		this.processor = DirectProcessor.create();
 		this.onClose = Mono.from(processor);
 		this.dispatcher =
@@ -86,34 +319,182 @@ final class SimpleConnection implements Inbound<byte[]>, Outbound<byte[]>,
 						2,
 						true);
 		
-		this.readScheduler = Schedulers.single(dispatcher);
+		this.wait = wait;
+		if (wait != null && ioThreads == null) {
+			String name = "simple-" + (server ? "server" : "client") + "-loop";
+			ioThreads = r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			};
+		}
+		this.readScheduler = wait != null ? Schedulers.newSingle(ioThreads) :
+				Schedulers.single(dispatcher);
 		this.writeScheduler = Schedulers.single(dispatcher);
 
-		InputStream in;
 		OutputStream out;
 
+		this.compression = compression;
+		this.session = session;
+		this.handshake = Handshake.local(compression,
+				FRAGMENT_SIZE,
+				WINDOW_SIZE,
+				session != null ? session.id : 0L);
+		if (session != null) {
+			session.handshake = handshake;
+		}
+
 		try {
-			in = socket.getInputStream();
+			this.in = socket.getInputStream();
 			out = socket.getOutputStream();
+			handshake.write(out);
+			if (remote != null) {
+				negotiate(remote);
+			}
 		}
 		catch (IOException io) {
 			throw Exceptions.propagate(io);
 		}
 
-		this.in = in;
-		this.out = out;
+		this.writer = new FrameWriter(out, ByteBuffer.allocate(8192));
 
 		this.receiver = Flux.<byte[]>generate(sink -> {
-			if (readFully(in, readBuffer, 16) < 16) {
-				sink.complete();
+			try {
+				Handshake.Settings s = settings;
+				if (s == null) {
+					// the preamble is read unbuffered, the session starts right after it
+					try {
+						Handshake h = Handshake.read(this.in, readBuffer);
+						if (h == null) {
+							sink.complete();
+							return;
+						}
+						s = negotiate(h);
+					}
+					catch (IOException ex) {
+						// the remote would otherwise wait for frames that never come
+						closeSocket();
+						throw ex;
+					}
+					signal();
+				}
+				for (; ; ) {
+					// the first fragment of a value is prefixed by the whole length
+					if (!reader.header(s.header, s.maxFrame + 4, readBuffer)) {
+						sink.complete();
+						return;
+					}
+					int type = readBuffer[4];
+					int len = (readBuffer[0] & 0xFF) | ((readBuffer[1] & 0xFF) << 8) | ((readBuffer[2] & 0xFF) << 16) | ((readBuffer[3] & 0xFF) << 24);
+					if (type == ByteArrayStreamProtocol.TYPE_WINDOW) {
+						onWindow(len - 16);
+						continue;
+					}
+					sink.next(readBuffer);
+					if (type == ByteArrayStreamProtocol.TYPE_NEXT) {
+						// the frame has been dispatched to its stream once sink.next returns,
+						// unless its value is still pending in a decode lane
+						int n = len - 16;
+						long streamId = streamId(readBuffer);
+						if (lanes != null && lanes.busy(streamId)) {
+							lanes.execute(streamId, () -> consumed(n));
+						}
+						else {
+							consumed(n);
+						}
+					}
+					return;
+				}
 			}
-			else {
-				sink.next(readBuffer);
+			catch (IOException ex) {
+				if (terminateOnce.get()) {
+					// the socket was closed under the read
+					sink.complete();
+				}
+				else {
+					sink.error(ex);
+				}
 			}
 		}).subscribeOn(readScheduler)
 		  .share();
 
+		if (wait != null) {
+			writeThread = ioThreads.newThread(this::writeLoop);
+			writeThread.start();
+		}
+		else {
+			writeThread = null;
+		}
+	}
+
+	/**
+	 * Settle on the features both peers support and set up the input accordingly,
+	 * before any frame is read or written.
+	 *
+	 * @param remote the remote preamble
+	 *
+	 * @return the connection settings
+	 */
+	Handshake.Settings negotiate(Handshake remote) throws IOException {
+		Handshake.Settings s = handshake.negotiate(remote);
+		if (s.session == 0L) {
+			session = null;
+		}
+		InputStream in = session != null ? session.input : this.in;
+		if (s.inflate) {
+			in = new StreamCompression.Input(in, compression);
+		}
+		reader = new FrameReader(in, READ_SIZE, wait);
+		this.in = reader;
+		window.start(s.window);
+		if (log.isDebugEnabled()) {
+			log.debug("Connection settings: {}", s);
+		}
+		settings = s;
+		return s;
+	}
+
+	/**
+	 * Credit the payload bytes of a value dispatched to its stream, granting them back
+	 * to the remote once they reach half the {@link #window}.
+	 *
+	 * @param n the payload bytes
+	 */
+	void consumed(int n) {
+		int increment = window.consumed(n);
+		if (increment != 0) {
+			schedule(new SignalFrame(this,
+					0L,
+					ByteArrayStreamProtocol.TYPE_WINDOW,
+					null,
+					increment));
+		}
+	}
+
+	static long streamId(byte[] header) {
+		long id = 0L;
+		for (int i = 15; i >= 8; i--) {
+			id = (id << 8) | (header[i] & 0xFF);
+		}
+		return id;
+	}
 
+	/**
+	 * Read a {@link ByteArrayStreamProtocol#TYPE_WINDOW} update and resume the values
+	 * it was blocking, from the read thread.
+	 *
+	 * @param len the payload length
+	 */
+	void onWindow(int len) throws IOException {
+		if (len != 4 || ByteArrayStreamProtocol.readFully(this.in, readBuffer, 16, 4) < 4) {
+			throw new IOException("Malformed window update");
+		}
+		int increment = (readBuffer[16] & 0xFF) | ((readBuffer[17] & 0xFF) << 8) | ((readBuffer[18] & 0xFF) << 16) | ((readBuffer[19] & 0xFF) << 24);
+		if (increment <= 0) {
+			throw new IOException("Invalid window increment: " + increment);
+		}
+		window.grant(increment);
+		signal();
 	}
 
 	@Override
@@ -130,14 +511,26 @@ final class SimpleConnection implements Inbound<byte[]>, Outbound<byte[]>,
 		}
 	}
 
-	void close() {
+	void closeSocket() {
+		Session se = session;
+		if (se != null) {
+			se.close();
+		}
 		tryClose(socket);
+	}
+
+	void close() {
+		terminateOnce.set(true);
+		closeSocket();
 		processor.onComplete();
+		dispose();
 	}
 
 	void closeError(Throwable throwable) {
-		tryClose(socket);
+		terminateOnce.set(true);
+		closeSocket();
 		processor.onError(throwable);
+		dispose();
 	}
 
 	@Override
@@ -152,43 +545,74 @@ final class SimpleConnection implements Inbound<byte[]>, Outbound<byte[]>,
 		throw new UnsupportedOperationException();
 	}
 
-	byte[] encode(Object o, IntConsumer flagOut) throws IOException {
+	/**
+	 * Encode a value, its payload is taken from the pool if any and must then be
+	 * released once written.
+	 *
+	 * @param o the value to encode
+	 * @param encoded the encoded value to fill
+	 * @param pool the pool the payload is taken from, null to allocate it
+	 */
+	static void encode(Object o, EncodedValue encoded, BufferPool pool)
+			throws IOException {
 
 		if (o instanceof Integer) {
-			flagOut.accept(ByteArrayStreamProtocol.PAYLOAD_INT);
-			byte[] r = new byte[4];
-			int v = (Integer) o;
-			r[0] = (byte) (v & 0xFF);
-			r[1] = (byte) ((v >> 8) & 0xFF);
-			r[2] = (byte) ((v >> 16) & 0xFF);
-			r[3] = (byte) ((v >> 24) & 0xFF);
-			return r;
+			encoded.flags = ByteArrayStreamProtocol.PAYLOAD_INT;
+			encoded.value = (Integer) o;
+			return;
 		}
 		else if (o instanceof Long) {
-			flagOut.accept(ByteArrayStreamProtocol.PAYLOAD_LONG);
-			byte[] r = new byte[8];
-			long v = (Long) o;
-			r[0] = (byte) (v & 0xFF);
-			r[1] = (byte) ((v >> 8) & 0xFF);
-			r[2] = (byte) ((v >> 16) & 0xFF);
-			r[3] = (byte) ((v >> 24) & 0xFF);
-			r[4] = (byte) ((v >> 32) & 0xFF);
-			r[5] = (byte) ((v >> 40) & 0xFF);
-			r[6] = (byte) ((v >> 48) & 0xFF);
-			r[7] = (byte) ((v >> 56) & 0xFF);
-			return r;
+			encoded.flags = ByteArrayStreamProtocol.PAYLOAD_LONG;
+			encoded.value = (Long) o;
+			return;
 		}
 		else if (o instanceof String) {
-			flagOut.accept(ByteArrayStreamProtocol.PAYLOAD_STRING);
-			return ByteArrayStreamProtocol.utf8((String) o);
+			encoded.flags = ByteArrayStreamProtocol.PAYLOAD_STRING;
+			if (pool != null) {
+				encoded.text = (String) o;
+			}
+			else {
+				encoded.payload = Utf8.encode((String) o);
+				encoded.length = encoded.payload.length;
+			}
+			return;
 		}
 		else if (o instanceof byte[]) {
-			flagOut.accept(ByteArrayStreamProtocol.PAYLOAD_BYTES);
-			return ((byte[]) o).clone();
+			byte[] b = (byte[]) o;
+			encoded.flags = ByteArrayStreamProtocol.PAYLOAD_BYTES;
+			encoded.payload = pool != null ? pool.acquire(b.length) : new byte[b.length];
+			encoded.length = b.length;
+			encoded.pool = pool;
+			System.arraycopy(b, 0, encoded.payload, 0, b.length);
+			return;
+		}
+		else if (o instanceof ByteBuffer) {
+			ByteBuffer bb = ((ByteBuffer) o).duplicate();
+			int length = bb.remaining();
+			encoded.flags = ByteArrayStreamProtocol.PAYLOAD_BUFFER;
+			encoded.payload = pool != null ? pool.acquire(length) : new byte[length];
+			encoded.length = length;
+			encoded.pool = pool;
+			bb.get(encoded.payload, 0, length);
+			return;
+		}
+
+		if (!(o instanceof Serializable)) {
+			throw new NotSerializableException(o.getClass().getName());
 		}
 
-		flagOut.accept(ByteArrayStreamProtocol.PAYLOAD_OBJECT);
+		if (pool != null) {
+			encoded.flags = ByteArrayStreamProtocol.PAYLOAD_OBJECT_STREAM;
+			encoded.object = o;
+			return;
+		}
 
+		encoded.flags = ByteArrayStreamProtocol.PAYLOAD_OBJECT;
+		encoded.payload = serialize(o);
+		encoded.length = encoded.payload.length;
+	}
+
+	static byte[] serialize(Object o) throws IOException {
 		ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
 		try (ObjectOutputStream oout = new ObjectOutputStream(bout)) {
@@ -198,89 +622,908 @@ final class SimpleConnection implements Inbound<byte[]>, Outbound<byte[]>,
 		return bout.toByteArray();
 	}
 
-	static void flush(OutputStream out) {
-		try {
-			out.flush();
+	void schedule(OutboundFrame frame) {
+		if (stopped) {
+			frame.discard();
+			return;
+		}
+		outbound.offer(frame);
+		signal();
+	}
+
+	/**
+	 * Run the {@link #drain()} loop unless already running.
+	 */
+	void signal() {
+		if (outboundWip.getAndIncrement() == 0) {
+			Thread t = writeThread;
+			if (t == null) {
+				writeScheduler.schedule(drainLoop);
+			}
+			else if (wait == WaitStrategy.PARK) {
+				LockSupport.unpark(t);
+			}
 		}
-		catch (IOException ex) {
-			Operators.onErrorDropped(ex, Context.empty());
+	}
+
+	/**
+	 * Drain the frames as soon as they are sent, waiting for them with the {@link #wait}
+	 * strategy instead of being scheduled on each send. Only run with a strategy.
+	 */
+	void writeLoop() {
+		int round = 0;
+		while (!stopped) {
+			if (outboundWip.get() != 0) {
+				drain();
+				round = 0;
+			}
+			else if (wait.idle(round)) {
+				round = Math.min(round + 1, WaitStrategy.SPINS + WaitStrategy.YIELDS);
+			}
+			else {
+				// a frame sent meanwhile left a permit, park returns right away
+				LockSupport.park(this);
+				round = 0;
+			}
+		}
+		discard();
+	}
+
+	void drain() {
+		int missed = 1;
+		for (; ; ) {
+			Handshake.Settings s = settings;
+			if (s != null && !stopped) {
+				if (!started) {
+					start(s);
+				}
+				OutboundFrame frame;
+				while (!stopped) {
+					// frames sent in the meantime may jump ahead of the queued ones
+					while ((frame = outbound.poll()) != null) {
+						scheduler.offer(frame);
+					}
+					frame = scheduler.poll(window.open(writer.nextBytes));
+					if (frame == null) {
+						break;
+					}
+					try {
+						frame.run();
+					}
+					catch (RuntimeException ex) {
+						Operators.onErrorDropped(ex, Context.empty());
+					}
+				}
+				try {
+					writer.flush();
+				}
+				catch (IOException ex) {
+					Operators.onErrorDropped(ex, Context.empty());
+				}
+			}
+			if (stopped) {
+				discard();
+			}
+
+			missed = outboundWip.addAndGet(-missed);
+			if (missed == 0) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Release the frames not written once disposed, only from the thread owning the
+	 * {@link #drain()} loop so a frame being written is not released under it.
+	 */
+	void discard() {
+		OutboundFrame frame;
+		while ((frame = outbound.poll()) != null) {
+			frame.discard();
 		}
+		scheduler.discard();
+	}
+
+	/**
+	 * Apply the connection settings to the outbound, from the {@link #drain()} loop
+	 * before the first frame is written.
+	 *
+	 * @param s the features both peers support
+	 */
+	void start(Handshake.Settings s) {
+		started = true;
+		writer.header = s.header;
+		writer.maxPayload = s.maxFrame;
+		if (session != null) {
+			writer.out = session.output;
+		}
+		if (s.deflate) {
+			writer.out = new StreamCompression.Output(writer.out, compression);
+		}
+		compressor.codecs = s.codecs;
+	}
+
+	/**
+	 * Write a value payload, split into {@link Fragments} if larger than the
+	 * {@link Handshake.Settings#maxFrame} of the connection.
+	 *
+	 * @param task the value being written
+	 * @param flags the payload flags
+	 * @param payload the payload
+	 * @param len the payload length
+	 * @param owner the pool the payload is released to once written, null if it is not
+	 * modified until then
+	 */
+	void writeNext(OnNextTask task, int flags, byte[] payload, int len, BufferPool owner) {
+		if (len <= settings.maxFrame) {
+			try {
+				ByteArrayStreamProtocol.next(writer, task.streamId, flags, payload, len);
+			}
+			finally {
+				if (owner != null) {
+					owner.release(payload);
+				}
+			}
+			return;
+		}
+		new Fragments(task, flags, payload, len, owner).run();
 	}
 
 	@Override
 	public void sendNew(long streamId, String function) {
-		writeScheduler.schedule(() -> {
-			ByteArrayStreamProtocol.open(out, streamId, function, writeBuffer);
-			flush(out);
-		});
+		sendNew(streamId, function, 0L);
+	}
+
+	@Override
+	public void sendNew(long streamId, String function, long timeout) {
+		sendNew(streamId, function, timeout, 0L);
+	}
+
+	@Override
+	public void sendNew(long streamId, String function, long timeout, long requested) {
+		sendNew(streamId,
+				function,
+				timeout,
+				requested,
+				StreamPriority.DEFAULT_PRIORITY,
+				StreamPriority.DEFAULT_WEIGHT);
+	}
+
+	@Override
+	public void sendNew(long streamId,
+			String function,
+			long timeout,
+			long requested,
+			int priority,
+			int weight) {
+		scheduler.prioritize(streamId, priority, weight);
+		schedule(new NewFrame(this, streamId, function, timeout, requested, priority, weight));
+	}
+
+	@Override
+	public Object encode(Object o) throws IOException {
+		EncodedValue encoded = new EncodedValue();
+		encode(o, encoded, null);
+		return encoded;
+	}
+
+	@Override
+	public Object encoding() {
+		// encoded without the pool, the object stream or compression, so only with
+		// the payloads every remote supports
+		return Handshake.REQUIRED_PAYLOADS;
 	}
 
 	@Override
 	public void sendNext(long streamId, Object o) throws IOException {
+		PendingValues pending = pending(streamId);
+		if (pending.purged) {
+			return;
+		}
+
+		if (stage != null && EncodeStage.accepts(o)) {
+			stage.submit(pending, streamId, o);
+			return;
+		}
 
-		OnNextTask task = new OnNextTask(streamId, out, writeBuffer);
+		EncodedValue encoded;
+		if (o instanceof EncodedValue) {
+			encoded = (EncodedValue) o;
+		}
+		else {
+			RingFrame frame = encodeInPlace(streamId, pending, o);
+			if (frame != null) {
+				schedule(pending, frame);
+				return;
+			}
+			encoded = new EncodedValue();
+			encode(o, encoded, pool);
+		}
 
-		task.payload = encode(o, task);
+		schedule(pending, new OnNextTask(streamId, this, pending, encoded));
+	}
 
-		writeScheduler.schedule(task);
+	/**
+	 * Send a frame following the values of its stream, once those are encoded if the
+	 * {@link EncodeStage} still holds some.
+	 *
+	 * @param pending the pending values of the stream, null if none
+	 * @param frame the frame to send
+	 */
+	void schedule(PendingValues pending, OutboundFrame frame) {
+		if (pending != null && pending.sequence != null) {
+			pending.sequence.offer(frame);
+		}
+		else {
+			schedule(frame);
+		}
 	}
 
-	static final class OnNextTask implements Runnable, IntConsumer {
+	/**
+	 * Encode a value frame, header included, straight into the {@link #ring} from the
+	 * sending thread.
+	 * <p>
+	 * Only values whose frame is final once the connection is set up are encoded this
+	 * way: primitives, text and byte payloads neither fragmented nor compressed. The
+	 * others, or all of them when the ring is full, are encoded by the {@link #drain()}
+	 * loop.
+	 *
+	 * @param streamId the stream identifier
+	 * @param pending the pending values of the stream
+	 * @param o the value to send
+	 *
+	 * @return the frame committing the encoded region, null if not encoded
+	 */
+	RingFrame encodeInPlace(long streamId, PendingValues pending, Object o) {
+		Handshake.Settings s = settings;
+		if (s == null) {
+			return null;
+		}
+		int flags;
+		int length;
+		if (o instanceof Integer) {
+			flags = ByteArrayStreamProtocol.PAYLOAD_INT;
+			length = 4;
+		}
+		else if (o instanceof Long) {
+			flags = ByteArrayStreamProtocol.PAYLOAD_LONG;
+			length = 8;
+		}
+		else if (o instanceof String) {
+			flags = ByteArrayStreamProtocol.PAYLOAD_STRING;
+			length = Utf8.encodedLength((String) o);
+		}
+		else if (o instanceof byte[]) {
+			flags = ByteArrayStreamProtocol.PAYLOAD_BYTES;
+			length = ((byte[]) o).length;
+		}
+		else if (o instanceof ByteBuffer) {
+			flags = ByteArrayStreamProtocol.PAYLOAD_BUFFER;
+			length = ((ByteBuffer) o).remaining();
+		}
+		else {
+			return null;
+		}
+		if (length > s.maxFrame || compressor.accepts(s.codecs, length)) {
+			return null;
+		}
 
-		final long         streamId;
-		final OutputStream out;
-		final byte[]       writeBuffer;
-		byte[] payload;
-		int    flags;
+		FrameHeader h = s.header;
+		int frameLength = h.length(flags, streamId, length) + length;
+		long start = ring.claim(frameLength);
+		if (start < 0L) {
+			return null;
+		}
+		long end = ring.end(start, frameLength);
+		int offset = ring.offset(start, frameLength);
+		try {
+			ByteBuffer b = ByteBuffer.wrap(ring.buffer, offset, frameLength)
+			                         .order(ByteOrder.LITTLE_ENDIAN);
+			h.write(b, ByteArrayStreamProtocol.TYPE_NEXT, flags, streamId, length);
+			if (o instanceof Integer) {
+				b.putInt((Integer) o);
+			}
+			else if (o instanceof Long) {
+				b.putLong((Long) o);
+			}
+			else if (o instanceof String) {
+				Utf8.encode((String) o, ring.buffer, b.position());
+			}
+			else if (o instanceof byte[]) {
+				b.put((byte[]) o);
+			}
+			else {
+				b.put(((ByteBuffer) o).duplicate());
+			}
+		}
+		catch (RuntimeException ex) {
+			// a buffer modified concurrently, let the drain loop report it
+			ring.release(start, end);
+			return null;
+		}
+		return new RingFrame(this, streamId, pending, start, end, offset, frameLength, length);
+	}
 
-		public OnNextTask(long streamId, OutputStream out, byte[] writeBuffer) {
+	PendingValues pending(long streamId) {
+		PendingValues pending = pendingNexts.get(streamId);
+		if (pending == null) {
+			pending = new PendingValues(stage != null ? new EncodeStage.Sequence(this) : null);
+			PendingValues previous = pendingNexts.putIfAbsent(streamId, pending);
+			if (previous != null) {
+				pending = previous;
+			}
+		}
+		return pending;
+	}
+
+	@Override
+	public void purge(long streamId) {
+		// kept rather than removed, a value racing in would index the stream again
+		PendingValues pending = pendingNexts.get(streamId);
+		if (pending != null) {
+			pending.purged = true;
+		}
+	}
+
+	@Override
+	public void forget(long streamId) {
+		PendingValues pending = pendingNexts.get(streamId);
+		if (pending != null && pending.purged) {
+			pendingNexts.remove(streamId, pending);
+		}
+	}
+
+	/**
+	 * @return the pending values the last frame of a stream follows, null if none, no
+	 * longer indexed unless purged
+	 */
+	PendingValues last(long streamId) {
+		PendingValues pending = pendingNexts.get(streamId);
+		if (pending != null && !pending.purged) {
+			pendingNexts.remove(streamId, pending);
+		}
+		return pending;
+	}
+
+	/**
+	 * Fail a stream whose value could not be encoded after being sent: its pending
+	 * values are purged, the values and terminal signals sent afterwards are dropped and
+	 * the {@link #endpoint} stops the producer of the stream.
+	 *
+	 * @param pending the pending values of the stream
+	 * @param streamId the stream identifier
+	 * @param e the encoding failure
+	 *
+	 * @return true if the error is to be written, false if the stream already failed
+	 */
+	boolean fail(PendingValues pending, long streamId, Throwable e) {
+		if (!PendingValues.FAILED.compareAndSet(pending, 0, 1)) {
+			return false;
+		}
+		pending.purged = true;
+		StreamOperations ep = endpoint;
+		if (ep != null) {
+			ep.onSendError(streamId, e);
+		}
+		return true;
+	}
+
+	/**
+	 * A value encoded once by {@link #encode(Object)}, its payload is shared by every
+	 * stream it is sent to and never modified. {@code int} and {@code long} values are
+	 * kept unboxed and written straight into the frame.
+	 * <p>
+	 * Values encoded for a single stream borrow their payload from the connection
+	 * {@link BufferPool}, it is released once written or discarded. Their text is
+	 * encoded straight into the frame and their objects are serialized by the
+	 * connection {@link ObjectCodec.Encoder} when written. Pooled payloads are handed
+	 * over to the frame writing them, which releases them once written.
+	 */
+	static final class EncodedValue {
+
+		Object     object;
+		String     text;
+		byte[]     payload;
+		int        length;
+		long       value;
+		int        flags;
+		BufferPool pool;
+
+		void write(OnNextTask task) {
+			SimpleConnection connection = task.connection;
+			FrameWriter w = connection.writer;
+			if (flags == ByteArrayStreamProtocol.PAYLOAD_INT) {
+				ByteArrayStreamProtocol.next(w, task.streamId, (int) value);
+			}
+			else if (flags == ByteArrayStreamProtocol.PAYLOAD_LONG) {
+				ByteArrayStreamProtocol.next(w, task.streamId, value);
+			}
+			else if (text != null) {
+				if (text.length() <= connection.settings.maxFrame / 3 && !connection.compressor.accepts(text.length())) {
+					ByteArrayStreamProtocol.next(w, task.streamId, flags, text);
+					return;
+				}
+				BufferPool p = connection.pool;
+				byte[] b = p.acquire(Utf8.encodedLength(text));
+				write(task, b, Utf8.encode(text, b, 0), p);
+			}
+			else if (object != null) {
+				if ((connection.settings.payloads & 1 << ByteArrayStreamProtocol.PAYLOAD_OBJECT_STREAM) == 0) {
+					// the remote only decodes standalone serialized objects
+					byte[] b;
+					try {
+						b = serialize(object);
+					}
+					catch (IOException | RuntimeException ex) {
+						if (connection.fail(task.pending, task.streamId, ex)) {
+							ByteArrayStreamProtocol.error(w, task.streamId, ex);
+						}
+						return;
+					}
+					flags = ByteArrayStreamProtocol.PAYLOAD_OBJECT;
+					write(task, b, b.length, null);
+					return;
+				}
+				ObjectCodec.Sink sink;
+				try {
+					sink = connection.objectEncoder.encode(object);
+				}
+				catch (IOException | RuntimeException ex) {
+					if (connection.fail(task.pending, task.streamId, ex)) {
+						ByteArrayStreamProtocol.error(w, task.streamId, ex);
+					}
+					return;
+				}
+				if (sink.count <= connection.settings.maxFrame) {
+					write(task, sink.buffer, sink.count, null);
+					return;
+				}
+				// the sink is reused by the next value, fragments need their own copy
+				BufferPool p = connection.pool;
+				byte[] b = p.acquire(sink.count);
+				System.arraycopy(sink.buffer, 0, b, 0, sink.count);
+				write(task, b, sink.count, p);
+			}
+			else {
+				BufferPool p = pool;
+				pool = null;
+				write(task, payload, length, p);
+			}
+		}
+
+		/**
+		 * @param owner the pool the payload is released to once written, null if it is
+		 * not modified until then
+		 */
+		void write(OnNextTask task, byte[] b, int len, BufferPool owner) {
+			SimpleConnection connection = task.connection;
+			FrameCompressor c = connection.compressor;
+			int n = c.compress(b, len);
+			if (n < 0) {
+				connection.writeNext(task, flags, b, len, owner);
+				return;
+			}
+			if (owner != null) {
+				owner.release(b);
+			}
+			connection.writeNext(task, flags | c.flag(), c.detach(), n, connection.pool);
+		}
+
+		void release() {
+			BufferPool p = pool;
+			if (p != null) {
+				pool = null;
+				p.release(payload);
+				payload = null;
+			}
+		}
+	}
+
+	/**
+	 * A frame waiting in {@link #outbound}.
+	 */
+	abstract static class OutboundFrame implements Runnable {
+
+		final long streamId;
+
+		/**
+		 * True if the frame must follow the values previously sent on its stream.
+		 */
+		final boolean ordered;
+
+		/**
+		 * The frame sent after this one, linked by the {@link OutboundQueue}.
+		 */
+		volatile OutboundFrame next;
+
+		OutboundFrame(long streamId, boolean ordered) {
 			this.streamId = streamId;
-			this.out = out;
-			this.writeBuffer = writeBuffer;
+			this.ordered = ordered;
+		}
+
+		/**
+		 * @return the approximate length of the frame, charged to its stream by the
+		 * {@link FrameScheduler}
+		 */
+		int cost() {
+			return 16;
+		}
+
+		/**
+		 * Release the resources of a frame that will not be written.
+		 */
+		void discard() {
+		}
+	}
+
+	/**
+	 * A frame other than a value or a new stream, described by its type and argument so
+	 * sending it allocates nothing else.
+	 */
+	static final class SignalFrame extends OutboundFrame {
+
+		final SimpleConnection connection;
+		/**
+		 * The pending values the error or completion follows, dropped if one of them
+		 * fails to encode; null if none.
+		 */
+		final PendingValues    pending;
+		final int              type;
+		/**
+		 * The error, the cancel reason or the merged request amount.
+		 */
+		final Object           argument;
+		/**
+		 * The window increment or the cancel flags.
+		 */
+		final int              increment;
+
+		SignalFrame(SimpleConnection connection,
+				long streamId,
+				int type,
+				Object argument,
+				int increment) {
+			this(connection, null, streamId, type, argument, increment);
+		}
+
+		SignalFrame(SimpleConnection connection,
+				PendingValues pending,
+				long streamId,
+				int type,
+				Object argument,
+				int increment) {
+			super(streamId,
+					type == ByteArrayStreamProtocol.TYPE_ERROR || type == ByteArrayStreamProtocol.TYPE_COMPLETE);
+			this.connection = connection;
+			this.pending = pending;
+			this.type = type;
+			this.argument = argument;
+			this.increment = increment;
 		}
 
 		@Override
 		public void run() {
-			ByteArrayStreamProtocol.next(out, streamId, flags, payload, writeBuffer);
-			flush(out);
+			SimpleConnection c = connection;
+			PendingValues p = pending;
+			if (p != null && p.failed != 0) {
+				// the stream already ended with the error of its value
+				c.scheduler.forget(streamId);
+				return;
+			}
+			switch (type) {
+				case ByteArrayStreamProtocol.TYPE_ERROR:
+					c.scheduler.forget(streamId);
+					ByteArrayStreamProtocol.error(c.writer, streamId, (Throwable) argument);
+					break;
+				case ByteArrayStreamProtocol.TYPE_COMPLETE:
+					c.scheduler.forget(streamId);
+					ByteArrayStreamProtocol.complete(c.writer, streamId);
+					break;
+				case ByteArrayStreamProtocol.TYPE_CANCEL:
+					c.scheduler.forget(streamId);
+					ByteArrayStreamProtocol.cancel(c.writer, streamId, increment, (String) argument);
+					break;
+				case ByteArrayStreamProtocol.TYPE_REQUEST:
+					AtomicLong merged = (AtomicLong) argument;
+					long r = merged.getAndSet(0L);
+					c.pendingRequests.remove(streamId, merged);
+					ByteArrayStreamProtocol.request(c.writer, streamId, r);
+					break;
+				case ByteArrayStreamProtocol.TYPE_WINDOW:
+					ByteArrayStreamProtocol.window(c.writer, increment);
+					break;
+				default:
+					throw new IllegalStateException("Unexpected frame type: " + type);
+			}
+		}
+	}
+
+	static final class NewFrame extends OutboundFrame {
+
+		final SimpleConnection connection;
+		final String           function;
+		final long             timeout;
+		final long             requested;
+		final int              priority;
+		final int              weight;
+
+		NewFrame(SimpleConnection connection,
+				long streamId,
+				String function,
+				long timeout,
+				long requested,
+				int priority,
+				int weight) {
+			super(streamId, false);
+			this.connection = connection;
+			this.function = function;
+			this.timeout = timeout;
+			this.requested = requested;
+			this.priority = priority;
+			this.weight = weight;
 		}
 
 		@Override
-		public void accept(int value) {
-			this.flags = value;
+		public void run() {
+			ByteArrayStreamProtocol.open(connection.writer,
+					streamId,
+					function,
+					timeout,
+					requested,
+					priority,
+					weight);
+		}
+	}
+
+	/**
+	 * The values of a stream not yet written, discarded together when the stream is
+	 * purged.
+	 */
+	static final class PendingValues {
+
+		static final AtomicIntegerFieldUpdater<PendingValues> FAILED =
+				AtomicIntegerFieldUpdater.newUpdater(PendingValues.class, "failed");
+
+		/**
+		 * Orders the frames of the stream behind its values being encoded by the
+		 * {@link EncodeStage}, null without one.
+		 */
+		final EncodeStage.Sequence sequence;
+
+		volatile boolean purged;
+
+		/**
+		 * Set to 1 by the first value failing to encode, see {@link SimpleConnection#fail}.
+		 */
+		volatile int failed;
+
+		PendingValues(EncodeStage.Sequence sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	static final class OnNextTask extends OutboundFrame {
+
+		final SimpleConnection connection;
+		final PendingValues    pending;
+		final EncodedValue     value;
+
+		public OnNextTask(long streamId,
+				SimpleConnection connection,
+				PendingValues pending,
+				EncodedValue value) {
+			super(streamId, true);
+			this.connection = connection;
+			this.pending = pending;
+			this.value = value;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!pending.purged) {
+					value.write(this);
+				}
+			}
+			finally {
+				value.release();
+			}
+		}
+
+		@Override
+		int cost() {
+			EncodedValue v = value;
+			return 16 + (v.text != null ? v.text.length() : v.length);
+		}
+
+		@Override
+		void discard() {
+			value.release();
+		}
+	}
+
+	/**
+	 * A value frame encoded in the {@link #ring}, written from there unless its stream
+	 * is purged first.
+	 */
+	static final class RingFrame extends OutboundFrame {
+
+		final SimpleConnection connection;
+		final PendingValues    pending;
+		final long             start;
+		final long             end;
+		final int              offset;
+		final int              length;
+		final int              payloadLength;
+
+		RingFrame(SimpleConnection connection,
+				long streamId,
+				PendingValues pending,
+				long start,
+				long end,
+				int offset,
+				int length,
+				int payloadLength) {
+			super(streamId, true);
+			this.connection = connection;
+			this.pending = pending;
+			this.start = start;
+			this.end = end;
+			this.offset = offset;
+			this.length = length;
+			this.payloadLength = payloadLength;
+		}
+
+		@Override
+		public void run() {
+			SimpleConnection c = connection;
+			if (pending.purged) {
+				discard();
+				return;
+			}
+			try {
+				c.writer.region(c.ring, start, end, offset, length, payloadLength);
+			}
+			catch (IOException ex) {
+				// the region was not taken over by the writer
+				discard();
+				throw new RuntimeException(ex);
+			}
+		}
+
+		@Override
+		int cost() {
+			return length;
+		}
+
+		@Override
+		void discard() {
+			connection.ring.release(start, end);
+		}
+	}
+
+	/**
+	 * The fragments of a value payload, written one at a time and resumed at the head of
+	 * its stream so the {@link FrameScheduler} interleaves them with the frames of the
+	 * other streams. The following frames of the stream wait for the last fragment.
+	 */
+	static final class Fragments extends OutboundFrame {
+
+		final OnNextTask task;
+		final int        flags;
+		final byte[]     data;
+		final int        length;
+
+		BufferPool owner;
+		int        offset;
+
+		Fragments(OnNextTask task, int flags, byte[] data, int length, BufferPool owner) {
+			super(task.streamId, true);
+			this.task = task;
+			this.flags = flags;
+			this.data = data;
+			this.length = length;
+			this.owner = owner;
+		}
+
+		@Override
+		public void run() {
+			SimpleConnection connection = task.connection;
+			if (!task.pending.purged) {
+				int n = Math.min(connection.settings.maxFrame, length - offset);
+				try {
+					ByteArrayStreamProtocol.fragment(connection.writer,
+							streamId,
+							flags,
+							data,
+							offset,
+							n,
+							length);
+				}
+				catch (RuntimeException ex) {
+					complete();
+					throw ex;
+				}
+				offset += n;
+				if (offset != length) {
+					connection.scheduler.resume(this);
+					return;
+				}
+			}
+			complete();
+		}
+
+		@Override
+		int cost() {
+			return 16 + Math.min(task.connection.settings.maxFrame, length - offset);
+		}
+
+		void complete() {
+			discard();
+		}
+
+		@Override
+		void discard() {
+			BufferPool p = owner;
+			if (p != null) {
+				owner = null;
+				p.release(data);
+			}
 		}
 	}
 
 	@Override
 	public void sendError(long streamId, Throwable e) {
-		writeScheduler.schedule(() -> {
-			ByteArrayStreamProtocol.error(out, streamId, e, writeBuffer);
-			flush(out);
-		});
+		PendingValues pending = last(streamId);
+		if (pending != null && pending.failed != 0) {
+			return;
+		}
+		schedule(pending,
+				new SignalFrame(this, pending, streamId, ByteArrayStreamProtocol.TYPE_ERROR, e, 0));
 	}
 
 	@Override
 	public void sendComplete(long streamId) {
-		writeScheduler.schedule(() -> {
-			ByteArrayStreamProtocol.complete(out, streamId, writeBuffer);
-			flush(out);
-		});
+		PendingValues pending = last(streamId);
+		if (pending != null && pending.failed != 0) {
+			return;
+		}
+		schedule(pending,
+				new SignalFrame(this, pending, streamId, ByteArrayStreamProtocol.TYPE_COMPLETE, null, 0));
 	}
 
 	@Override
 	public void sendCancel(long streamId, String reason) {
-		writeScheduler.schedule(() -> {
-			ByteArrayStreamProtocol.cancel(out, streamId, reason, writeBuffer);
-			flush(out);
-		});
+		schedule(new SignalFrame(this, streamId, ByteArrayStreamProtocol.TYPE_CANCEL, reason, 0));
+	}
+
+	@Override
+	public void sendOverloaded(long streamId, String reason) {
+		schedule(new SignalFrame(this,
+				streamId,
+				ByteArrayStreamProtocol.TYPE_CANCEL,
+				reason,
+				ByteArrayStreamProtocol.FLAG_CANCEL_OVERLOADED));
 	}
 
 	@Override
 	public void sendRequested(long streamId, long requested) {
-		writeScheduler.schedule(() -> {
-			ByteArrayStreamProtocol.request(out, streamId, requested, writeBuffer);
-			flush(out);
-		});
+		AtomicLong pending = pendingRequests.get(streamId);
+		if (pending == null) {
+			pending = new AtomicLong();
+			AtomicLong previous = pendingRequests.putIfAbsent(streamId, pending);
+			if (previous != null) {
+				pending = previous;
+			}
+		}
+
+		if (pending.getAndAccumulate(requested, Operators::addCap) == 0L) {
+			schedule(new SignalFrame(this,
+					streamId,
+					ByteArrayStreamProtocol.TYPE_REQUEST,
+					pending,
+					0));
+		}
 	}
 
 	@Override
@@ -311,46 +1554,52 @@ final class SimpleConnection implements Inbound<byte[]>, Outbound<byte[]>,
 		return offset;
 	}
 
-	Object decode(int flags, byte[] payload, int len)
-			throws IOException, ClassNotFoundException {
-		if (flags == ByteArrayStreamProtocol.PAYLOAD_INT) {
-			int v =
-					(payload[0] & 0xFF) | ((payload[1] & 0xFF) << 8) | ((payload[2] & 0xFF) << 16) | ((payload[3] & 0xFF) << 24);
-			return v;
-		}
-		else if (flags == ByteArrayStreamProtocol.PAYLOAD_LONG) {
-			long v =
-					(payload[0] & 0xFFL) | ((payload[1] & 0xFFL) << 8) | ((payload[2] & 0xFFL) << 16) | ((payload[3] & 0xFFL) << 24) | ((payload[4] & 0xFFL) << 32) | ((payload[5] & 0xFFL) << 40) | ((payload[6] & 0xFFL) << 48) | ((payload[7] & 0xFFL) << 56);
-			return v;
-		}
-		else if (flags == ByteArrayStreamProtocol.PAYLOAD_STRING) {
-			return ByteArrayStreamProtocol.readUtf8(payload, 0, len);
-		}
-		else if (flags == ByteArrayStreamProtocol.PAYLOAD_BYTES) {
-			if (payload == readBuffer) {
-				byte[] r = new byte[len];
-				System.arraycopy(payload, 0, r, 0, len);
-				return r;
-			}
-			return payload;
-		}
-
-		ByteArrayInputStream bin = new ByteArrayInputStream(payload);
-		ObjectInputStream oin = new ObjectInputStream(bin);
-		return oin.readObject();
-	}
-
 	@Override
 	public void dispose() {
+		stopped = true;
+		terminateOnce.set(true);
+		Thread t = writeThread;
+		if (t != null) {
+			// the write loop discards the frames once it sees the flag
+			LockSupport.unpark(t);
+		}
+		else if (outboundWip.getAndIncrement() == 0) {
+			// no drain running, and none will ever start
+			discard();
+		}
+		pendingNexts.clear();
+		pendingRequests.clear();
 		try {
 			readScheduler.dispose();
 			writeScheduler.dispose();
 			dispatcher.dispose();
+			if (lanes != null) {
+				lanes.dispose();
+			}
+			if (stage != null) {
+				stage.dispose();
+			}
+			compressor.dispose();
+			assembler.dispose();
 			in.close();
-			out.close();
+			writer.out.close();
 		}
 		catch (IOException io) {
 			//IGNORE
 		}
+		if (t != null && t != Thread.currentThread()) {
+			// joined once the socket is closed, a write blocked on it fails meanwhile
+			try {
+				t.join(JOIN_TIMEOUT);
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread()
+				      .interrupt();
+			}
+		}
+		int leaked = pool.outstanding();
+		if (leaked != 0) {
+			log.warn("{} pooled buffers have not been released", leaked);
+		}
 	}
 }
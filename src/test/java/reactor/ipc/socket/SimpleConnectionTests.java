@@ -0,0 +1,732 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.ipc.stream.Ipc;
+import reactor.ipc.stream.StreamContext;
+import reactor.ipc.stream.StreamOperations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks a {@link SimpleConnection} against a remote written by hand, so the frames it
+ * writes can be asserted one by one.
+ */
+public class SimpleConnectionTests {
+
+	@Test
+	public void purgedStream() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(1), 0)) {
+			for (int i = 0; i < 100; i++) {
+				peer.connection.sendNext(1L, new byte[1000]);
+			}
+			// the first value overdraws the window, the others wait for an update
+			Frame first = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEXT, first.type);
+			assertEquals(1L, first.streamId);
+
+			peer.connection.purge(1L);
+			peer.connection.sendNext(1L, new byte[1000]);
+			peer.window(1 << 20);
+			peer.connection.sendNext(3L, new byte[10]);
+
+			Frame next = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEXT, next.type);
+			assertEquals("a purged value was written", 3L, next.streamId);
+
+			peer.connection.forget(1L);
+			peer.connection.sendNext(1L, new byte[10]);
+			assertEquals(1L, peer.read().streamId);
+		}
+	}
+
+	@Test
+	public void unencodableValue() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(1 << 20), 2)) {
+			// both fail on the encode stage, only the first failure ends the stream
+			peer.connection.sendNext(1L, new Object());
+			peer.connection.sendNext(1L, new Object());
+			peer.connection.sendNext(1L, 1);
+
+			Frame error = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_ERROR, error.type);
+			assertEquals(1L, error.streamId);
+			assertEquals("send-error 1 java.io.NotSerializableException: java.lang.Object",
+					peer.event());
+
+			peer.connection.sendNext(1L, 2);
+			peer.connection.sendComplete(1L);
+			peer.connection.sendNext(3L, 3);
+			Frame next = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEXT, next.type);
+			assertEquals("a frame followed the error", 3L, next.streamId);
+			assertNull(peer.events.poll());
+		}
+	}
+
+	@Test
+	public void connectionWindow() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(4096), 0)) {
+			for (int i = 0; i < 10; i++) {
+				peer.connection.sendNext(1L + 2L * (i % 2), new byte[1000]);
+			}
+			// written until 4096 bytes are exceeded, whatever the stream
+			for (int i = 0; i < 5; i++) {
+				assertEquals(1000, peer.read().payload.length);
+			}
+			peer.connection.sendRequested(5L, 1L);
+			assertEquals("requests are not held by the window",
+					ByteArrayStreamProtocol.TYPE_REQUEST,
+					peer.read().type);
+			Thread.sleep(100);
+			assertEquals("values written past the window", 0, peer.in.available());
+
+			peer.window(1000);
+			assertEquals(1000, peer.read().payload.length);
+			Thread.sleep(100);
+			assertEquals("values written past the window", 0, peer.in.available());
+
+			peer.window(10_000);
+			for (int i = 0; i < 4; i++) {
+				assertEquals(ByteArrayStreamProtocol.TYPE_NEXT, peer.read().type);
+			}
+		}
+	}
+
+	@Test
+	public void fullRing() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(1), 0)) {
+			// values are only encoded into the ring once the preamble is read
+			peer.awaitSettings();
+			int values = 2 * SimpleConnection.RING_SIZE / 1000;
+			for (int i = 0; i < values; i++) {
+				peer.connection.sendNext(1L, ByteBuffer.allocate(1000)
+				                                     .putInt(0, i));
+			}
+			OutboundRing ring = peer.connection.ring;
+			assertTrue("the ring was not filled",
+					ring.claimed.get() - ring.released > SimpleConnection.RING_SIZE - 1100);
+
+			// the values not fitting in the ring are encoded by the drain loop, in order
+			peer.window(1 << 30);
+			for (int i = 0; i < values; i++) {
+				Frame frame = peer.read();
+				assertEquals(1000, frame.payload.length);
+				assertEquals(i,
+						ByteBuffer.wrap(frame.payload)
+						          .getInt());
+			}
+		}
+	}
+
+	@Test
+	public void disposedWhileStalled() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(1), 0)) {
+			for (int i = 0; i < 400; i++) {
+				peer.connection.sendNext(1L, new byte[1000]);
+			}
+			peer.read();
+			assertTrue(peer.connection.pool.outstanding() > 0);
+			// the drain loop stops once it has queued every value behind the window
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (peer.connection.outboundWip.get() != 0) {
+				assertTrue("the drain loop did not stall", System.nanoTime() < deadline);
+				Thread.sleep(10);
+			}
+
+			// released once by the disposing thread, no drain is running
+			peer.connection.dispose();
+			assertEquals(0, peer.connection.pool.outstanding());
+			peer.connection.sendNext(1L, new byte[1000]);
+			assertEquals(0, peer.connection.pool.outstanding());
+		}
+	}
+
+	@Test
+	public void initialRequest() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(0), 0)) {
+			peer.connection.sendNew(1L, "small", 0L, 5L);
+			peer.connection.sendNew(3L, "large", 0L, 0x50_0000L);
+			peer.connection.sendNew(5L, "unbounded", 0L, Long.MAX_VALUE);
+			peer.connection.sendNew(7L, "none", 0L, 0L);
+
+			Frame small = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEW, small.type);
+			assertEquals(5, small.flags & ByteArrayStreamProtocol.FLAG_NEW_REQUEST);
+
+			// the flags hold up to 0x3FFFFE, the rest follows in a request
+			Frame large = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEW, large.type);
+			assertEquals(0x3F_FFFE, large.flags & ByteArrayStreamProtocol.FLAG_NEW_REQUEST);
+			Frame rest = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_REQUEST, rest.type);
+			assertEquals(3L, rest.streamId);
+			assertEquals(0x50_0000 - 0x3F_FFFE, rest.flags);
+
+			Frame unbounded = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEW, unbounded.type);
+			assertEquals(ByteArrayStreamProtocol.FLAG_NEW_REQUEST,
+					unbounded.flags & ByteArrayStreamProtocol.FLAG_NEW_REQUEST);
+
+			Frame none = peer.read();
+			assertEquals(ByteArrayStreamProtocol.TYPE_NEW, none.type);
+			assertEquals(7L, none.streamId);
+			assertEquals(0, none.flags & ByteArrayStreamProtocol.FLAG_NEW_REQUEST);
+
+			ByteArrayStreamProtocol.open(peer.writer, 2L, "large", 0L, 0x50_0000L);
+			ByteArrayStreamProtocol.open(peer.writer, 4L, "unbounded", 0L, -1L);
+			peer.writer.flush();
+
+			assertEquals("new 2 large", peer.event());
+			assertEquals("request 2 " + 0x3F_FFFE, peer.event());
+			assertEquals("request 2 " + (0x50_0000 - 0x3F_FFFE), peer.event());
+			assertEquals("new 4 unbounded", peer.event());
+			assertEquals("request 4 " + Long.MAX_VALUE, peer.event());
+		}
+	}
+
+	@Test
+	public void littleEndianPayloads() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(0), 0)) {
+			peer.connection.sendNext(1L, 0x0102_0304);
+			peer.connection.sendNext(1L, 0x0102_0304_0506_0708L);
+			peer.connection.sendNext(1L, ByteBuffer.wrap(new byte[]{1, 2, 3}));
+
+			Frame i = peer.read();
+			assertEquals(ByteArrayStreamProtocol.PAYLOAD_INT, i.flags);
+			assertArrayEquals(new byte[]{4, 3, 2, 1}, i.payload);
+			Frame l = peer.read();
+			assertEquals(ByteArrayStreamProtocol.PAYLOAD_LONG, l.flags);
+			assertArrayEquals(new byte[]{8, 7, 6, 5, 4, 3, 2, 1}, l.payload);
+			Frame b = peer.read();
+			assertEquals(ByteArrayStreamProtocol.PAYLOAD_BUFFER, b.flags);
+			assertArrayEquals(new byte[]{1, 2, 3}, b.payload);
+
+			ByteArrayStreamProtocol.next(peer.writer, 2L, Integer.MIN_VALUE + 1);
+			ByteArrayStreamProtocol.next(peer.writer, 2L, Long.MIN_VALUE + 1L);
+			ByteArrayStreamProtocol.next(peer.writer, 2L, -1L);
+			ByteArrayStreamProtocol.next(peer.writer,
+					2L,
+					ByteArrayStreamProtocol.PAYLOAD_BUFFER,
+					new byte[]{1, 2, 3});
+			peer.writer.flush();
+
+			assertEquals("next 2 " + (Integer.MIN_VALUE + 1), peer.event());
+			assertEquals("next 2 " + (Long.MIN_VALUE + 1L), peer.event());
+			assertEquals("next 2 -1", peer.event());
+			assertEquals("next 2 buffer[1, 2, 3]", peer.event());
+		}
+	}
+
+	@Test
+	public void pooledBuffers() throws Exception {
+		try (RawPeer peer = new RawPeer(preamble(0), 0)) {
+			char[] text = new char[10_000];
+			Arrays.fill(text, 'a');
+			byte[] fragmented = new byte[3 * Handshake.MIN_FRAME];
+			peer.connection.sendNext(1L, new String(text));
+			peer.connection.sendNext(1L, fragmented);
+			peer.connection.sendComplete(1L);
+
+			Frame frame;
+			do {
+				frame = peer.read();
+			}
+			while (frame.type != ByteArrayStreamProtocol.TYPE_COMPLETE);
+
+			ByteArrayStreamProtocol.next(peer.writer,
+					2L,
+					ByteArrayStreamProtocol.PAYLOAD_STRING,
+					new String(text));
+			for (int offset = 0; offset < fragmented.length; offset += Handshake.MIN_FRAME) {
+				ByteArrayStreamProtocol.fragment(peer.writer,
+						2L,
+						ByteArrayStreamProtocol.PAYLOAD_BYTES,
+						fragmented,
+						offset,
+						Handshake.MIN_FRAME,
+						fragmented.length);
+			}
+			ByteArrayStreamProtocol.complete(peer.writer, 2L);
+			peer.writer.flush();
+			assertTrue(peer.event().startsWith("next 2 aaa"));
+			assertTrue(peer.event().startsWith("next 2 [0, 0"));
+			assertEquals("complete 2", peer.event());
+
+			// released right after the last frame is written or the value dispatched
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (peer.connection.pool.outstanding() != 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, peer.connection.pool.outstanding());
+		}
+	}
+
+	@Test
+	public void incompatiblePreambles() throws Exception {
+		Handshake[] preambles = {
+				preamble(Handshake.MIN_VERSION - 1, FrameHeader.FIXED.mask, Handshake.PAYLOADS),
+				// only a header format unknown to this peer
+				preamble(Handshake.VERSION, 0b100, Handshake.PAYLOADS),
+				preamble(Handshake.VERSION,
+						FrameHeader.FIXED.mask,
+						Handshake.REQUIRED_PAYLOADS & ~(1 << ByteArrayStreamProtocol.PAYLOAD_BUFFER))};
+		String[] reasons = {"Unsupported protocol version",
+				"No common frame header format",
+				"The remote does not decode the required payloads"};
+
+		for (int i = 0; i < preambles.length; i++) {
+			// connecting
+			try (RawPeer peer = new RawPeer(preambles[i], 0)) {
+				String event = peer.event();
+				assertTrue(event, event.startsWith("error -1 java.io.IOException: " + reasons[i]));
+				assertEquals("The remote was not disconnected", -1, peer.in.read());
+			}
+
+			// accepting
+			AtomicInteger handled = new AtomicInteger();
+			SimpleContext server =
+					(SimpleContext) SimpleServer.create(0, InetAddress.getLoopbackAddress())
+					                            .newHandler((in, out) -> {
+						                            handled.incrementAndGet();
+						                            return Mono.never();
+					                            })
+					                            .block();
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+					server.address()
+					      .getPort())) {
+				socket.setSoTimeout(10_000);
+				preambles[i].write(socket.getOutputStream());
+				// the server preamble if negotiated, then the end of the input
+				InputStream in = socket.getInputStream();
+				byte[] b = new byte[256];
+				while (in.read(b) >= 0) {
+					// skipped
+				}
+				assertEquals(0, handled.get());
+			}
+			finally {
+				server.dispose();
+			}
+		}
+	}
+
+	@Test
+	public void silentClient() throws Exception {
+		AtomicInteger handled = new AtomicInteger();
+		SimpleContext server =
+				(SimpleContext) SimpleServer.create(0, InetAddress.getLoopbackAddress())
+				                            .newHandler((in, out) -> {
+					                            handled.incrementAndGet();
+					                            return Mono.never();
+				                            })
+				                            .block();
+		try (Socket silent = new Socket(InetAddress.getLoopbackAddress(),
+				server.address()
+				      .getPort());
+		     Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				     server.address()
+				           .getPort())) {
+			// well within the time the silent client has to send its preamble
+			socket.setSoTimeout(SimpleServer.HANDSHAKE_TIMEOUT / 4);
+			preamble(0).write(socket.getOutputStream());
+			assertNotNull(Handshake.read(socket.getInputStream(), new byte[256]));
+			// handled right after the server preamble is written
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+			while (handled.get() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, handled.get());
+			// still waiting for its preamble, the silent client is not refused yet
+			assertTrue(silent.isConnected());
+		}
+		finally {
+			server.dispose();
+		}
+	}
+
+	@Test
+	public void cancelledStreams() throws Exception {
+		AtomicReference<SimpleConnection> served = new AtomicReference<>();
+		SimpleServer server = SimpleServer.create(0, InetAddress.getLoopbackAddress());
+		SimpleContext context = server.<Object>newStreamSupport(ValuesServerAPI::new,
+				null,
+				(in, ops) -> {
+					served.set((SimpleConnection) in);
+					server.accept(in, ops);
+				},
+				server)
+		                              .cast(SimpleContext.class)
+		                              .block();
+		try (RawClient client = new RawClient(context)) {
+			for (long streamId = 1L; streamId < 20L; streamId += 2L) {
+				client.connection.sendNew(streamId, "values", 0L, 1L);
+				assertEquals("next " + streamId + " 1", client.event());
+				client.connection.sendCancel(streamId, "");
+			}
+			// the value sent indexed each stream, the cancel purged it
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!served.get().pendingNexts.isEmpty()) {
+				assertTrue("cancelled streams still indexed: " + served.get().pendingNexts.keySet(),
+						System.nanoTime() < deadline);
+				Thread.sleep(10);
+			}
+		}
+		finally {
+			context.dispose();
+		}
+	}
+
+	@Test
+	public void expiredStream() throws Exception {
+		TicksServerAPI api = new TicksServerAPI();
+		SimpleContext server = (SimpleContext) SimpleServer.create(0,
+				InetAddress.getLoopbackAddress())
+		                                                   .newReceiver(() -> api)
+		                                                   .block();
+		try (RawClient client = new RawClient(server)) {
+			// no deadline of its own, the client waits for the server to give up
+			client.connection.sendNew(1L, "ticks", 200L, Long.MAX_VALUE);
+			String event = client.event();
+			while (event.startsWith("next 1 ")) {
+				event = client.event();
+			}
+			assertTrue(event, event.startsWith("error 1 "));
+			assertTrue(event, event.contains("Stream 1 deadline exceeded"));
+			assertTrue("ticks not cancelled", api.cancelled.await(5, TimeUnit.SECONDS));
+		}
+		finally {
+			server.dispose();
+		}
+	}
+
+	static Handshake preamble(int window) {
+		return new Handshake(Handshake.VERSION,
+				FrameHeader.FIXED.mask,
+				Handshake.PAYLOADS,
+				0,
+				0,
+				Handshake.MIN_FRAME,
+				window,
+				0L,
+				-1L);
+	}
+
+	static Handshake preamble(int version, int headers, int payloads) {
+		return new Handshake(version,
+				headers,
+				payloads,
+				0,
+				0,
+				Handshake.MIN_FRAME,
+				0,
+				0L,
+				-1L);
+	}
+
+	public static final class ValuesServerAPI {
+
+		@Ipc
+		public Flux<Integer> values(StreamContext<?> ctx) {
+			return Flux.just(1)
+			           .concatWith(Flux.never());
+		}
+	}
+
+	public static final class TicksServerAPI {
+
+		final CountDownLatch cancelled = new CountDownLatch(1);
+
+		@Ipc
+		public Flux<Long> ticks(StreamContext<?> ctx) {
+			return Flux.interval(Duration.ofMillis(50))
+			           .doOnCancel(cancelled::countDown);
+		}
+	}
+
+	/**
+	 * A frame read by a {@link RawPeer}.
+	 */
+	static final class Frame {
+
+		final int    type;
+		final int    flags;
+		final long   streamId;
+		final byte[] payload;
+
+		Frame(int type, int flags, long streamId, byte[] payload) {
+			this.type = type;
+			this.flags = flags;
+			this.streamId = streamId;
+			this.payload = payload;
+		}
+
+		@Override
+		public String toString() {
+			return "Frame{type=" + type + ", flags=" + flags + ", streamId=" + streamId + ", length=" + payload.length + '}';
+		}
+	}
+
+	/**
+	 * A connection and its remote over loopback, the remote exchanging the preambles and
+	 * {@link FrameHeader#FIXED} frames by hand.
+	 */
+	static final class RawPeer implements AutoCloseable {
+
+		final ServerSocket          server;
+		final Socket                socket;
+		final DataInputStream       in;
+		final FrameWriter           writer;
+		final SimpleConnection      connection;
+		final BlockingQueue<String> events;
+
+		/**
+		 * @param preamble the preamble of the remote, null to write none
+		 * @param encodeWorkers the {@link EncodeStage} threads of the connection
+		 */
+		RawPeer(Handshake preamble, int encodeWorkers) throws IOException {
+			this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+			this.socket = server.accept();
+			this.socket.setSoTimeout(10_000);
+			this.in = new DataInputStream(socket.getInputStream());
+			this.writer = new FrameWriter(socket.getOutputStream(), ByteBuffer.allocate(1024));
+			this.connection = new SimpleConnection(client,
+					false,
+					FrameCompression.none(),
+					null,
+					null,
+					0,
+					encodeWorkers,
+					null,
+					null);
+			this.events = new LinkedBlockingQueue<>();
+
+			Handshake.read(in, new byte[256]);
+			if (preamble != null) {
+				preamble.write(socket.getOutputStream());
+			}
+			SimpleClient.create(InetAddress.getLoopbackAddress(), 0)
+			            .accept(connection, new Recorder(connection, events));
+		}
+
+		Frame read() throws IOException {
+			int length = Integer.reverseBytes(in.readInt());
+			int header = Integer.reverseBytes(in.readInt());
+			long streamId = Long.reverseBytes(in.readLong());
+			byte[] payload = new byte[length - 16];
+			in.readFully(payload);
+			return new Frame(header & 0xFF, header >>> 8, streamId, payload);
+		}
+
+		/**
+		 * @return the next signal the connection received
+		 */
+		String event() throws InterruptedException {
+			String event = events.poll(10, TimeUnit.SECONDS);
+			assertNotNull("no signal received", event);
+			return event;
+		}
+
+		void awaitSettings() throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (connection.settings == null) {
+				assertTrue("no preamble read", System.nanoTime() < deadline);
+				Thread.sleep(10);
+			}
+		}
+
+		void window(int increment) throws IOException {
+			ByteArrayStreamProtocol.window(writer, increment);
+			writer.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			connection.dispose();
+			socket.close();
+			server.close();
+		}
+	}
+
+	/**
+	 * A connection to a server, opening and cancelling streams by hand.
+	 */
+	static final class RawClient implements AutoCloseable {
+
+		final SimpleConnection      connection;
+		final BlockingQueue<String> events;
+
+		RawClient(SimpleContext server) throws IOException {
+			Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+					server.address()
+					      .getPort());
+			this.connection = new SimpleConnection(socket,
+					false,
+					FrameCompression.none(),
+					null,
+					null,
+					0,
+					0,
+					null,
+					null);
+			this.events = new LinkedBlockingQueue<>();
+			SimpleClient.create(InetAddress.getLoopbackAddress(), 0)
+			            .accept(connection, new Recorder(connection, events));
+		}
+
+		/**
+		 * @return the next signal the server sent
+		 */
+		String event() throws InterruptedException {
+			String event = events.poll(10, TimeUnit.SECONDS);
+			assertNotNull("no signal received", event);
+			return event;
+		}
+
+		@Override
+		public void close() {
+			connection.dispose();
+		}
+	}
+
+	/**
+	 * Records the signals a connection receives, the ones it sends go to the
+	 * connection.
+	 */
+	static final class Recorder implements StreamOperations {
+
+		final SimpleConnection      connection;
+		final BlockingQueue<String> events;
+
+		Recorder(SimpleConnection connection, BlockingQueue<String> events) {
+			this.connection = connection;
+			this.events = events;
+		}
+
+		@Override
+		public void onNew(long streamId, String function) {
+			events.offer("new " + streamId + " " + function);
+		}
+
+		@Override
+		public void onNext(long streamId, Object o) {
+			events.offer("next " + streamId + " " + describe(o));
+		}
+
+		@Override
+		public void onError(long streamId, String reason) {
+			events.offer("error " + streamId + " " + reason);
+		}
+
+		@Override
+		public void onError(long streamId, Throwable e) {
+			events.offer("error " + streamId + " " + e);
+		}
+
+		@Override
+		public void onComplete(long streamId) {
+			events.offer("complete " + streamId);
+		}
+
+		@Override
+		public void onCancel(long streamId, String reason) {
+			events.offer("cancel " + streamId + " " + reason);
+		}
+
+		@Override
+		public void onRequested(long streamId, long n) {
+			events.offer("request " + streamId + " " + n);
+		}
+
+		@Override
+		public void onSendError(long streamId, Throwable e) {
+			events.offer("send-error " + streamId + " " + e);
+		}
+
+		@Override
+		public void sendNew(long streamId, String function) {
+			connection.sendNew(streamId, function);
+		}
+
+		@Override
+		public void sendCancel(long streamId, String reason) {
+			connection.sendCancel(streamId, reason);
+		}
+
+		@Override
+		public void sendNext(long streamId, Object o) throws IOException {
+			connection.sendNext(streamId, o);
+		}
+
+		@Override
+		public void sendError(long streamId, Throwable e) {
+			connection.sendError(streamId, e);
+		}
+
+		@Override
+		public void sendComplete(long streamId) {
+			connection.sendComplete(streamId);
+		}
+
+		@Override
+		public void sendRequested(long streamId, long n) {
+			connection.sendRequested(streamId, n);
+		}
+
+		@Override
+		public boolean isClosed() {
+			return connection.isClosed();
+		}
+
+		static String describe(Object o) {
+			if (o instanceof byte[]) {
+				return Arrays.toString((byte[]) o);
+			}
+			if (o instanceof ByteBuffer) {
+				ByteBuffer b = ((ByteBuffer) o).duplicate();
+				byte[] a = new byte[b.remaining()];
+				b.get(a);
+				return "buffer" + Arrays.toString(a);
+			}
+			return String.valueOf(o);
+		}
+	}
+}
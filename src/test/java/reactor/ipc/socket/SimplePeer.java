@@ -41,10 +41,19 @@ abstract class SimplePeer
 	@Override
 	@SuppressWarnings("unchecked")
 	public void accept(Inbound<byte[]> inbound, StreamOperations endpoint) {
+		((SimpleConnection) inbound).endpoint = endpoint;
 		inbound.receive()
 		       .subscribe(d -> ByteArrayStreamProtocol.receive(((SimpleConnection) inbound).in,
 				       d,
-				       endpoint));
+				       ((SimpleConnection) inbound).pool,
+				       ((SimpleConnection) inbound).objectDecoder,
+				       ((SimpleConnection) inbound).compressor,
+				       ((SimpleConnection) inbound).assembler,
+				       ((SimpleConnection) inbound).scheduler,
+				       ((SimpleConnection) inbound).lanes,
+				       endpoint),
+				       e -> endpoint.onError(-1, e),
+				       () -> endpoint.onComplete(-1));
 	}
 
 	@Override
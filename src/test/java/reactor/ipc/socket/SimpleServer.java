@@ -21,7 +21,12 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.time.Duration;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 
@@ -34,27 +39,187 @@ import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 import reactor.ipc.connector.Inbound;
 import reactor.ipc.connector.Outbound;
+import reactor.util.Logger;
+import reactor.util.Loggers;
 
 /**
  * @author Stephane Maldini
  */
 public final class SimpleServer extends SimplePeer  {
 
+	static final Logger log = Loggers.getLogger(SimpleServer.class);
+
+	/**
+	 * How long a client has to send its preamble once connected, in milliseconds.
+	 */
+	static final int HANDSHAKE_TIMEOUT = 10_000;
+
 	static public SimpleServer create(int port) {
-		return new SimpleServer(port, null);
+		return new SimpleServer(port, null, FrameCompression.none(), 0L, 0, 0, 0, null, null);
 	}
 
 	static public SimpleServer create(int port, InetAddress bindAddress) {
 		Objects.requireNonNull(bindAddress, "bindAddress");
-		return new SimpleServer(port, bindAddress);
+		return new SimpleServer(port, bindAddress, FrameCompression.none(), 0L, 0, 0, 0, null, null);
 	}
 
-	final int         port;
-	final InetAddress address;
+	final int              port;
+	final InetAddress      address;
+	final FrameCompression compression;
+	final long             resumeTimeout;
+	final int              replaySize;
+	final int              decodeLanes;
+	final int              encodeWorkers;
+	final WaitStrategy     wait;
+	final ThreadFactory    ioThreads;
 
-	SimpleServer(int port, InetAddress address) {
+	SimpleServer(int port,
+			InetAddress address,
+			FrameCompression compression,
+			long resumeTimeout,
+			int replaySize,
+			int decodeLanes,
+			int encodeWorkers,
+			WaitStrategy wait,
+			ThreadFactory ioThreads) {
 		this.port = port;
 		this.address = address;
+		this.compression = compression;
+		this.resumeTimeout = resumeTimeout;
+		this.replaySize = replaySize;
+		this.decodeLanes = decodeLanes;
+		this.encodeWorkers = encodeWorkers;
+		this.wait = wait;
+		this.ioThreads = ioThreads;
+	}
+
+	/**
+	 * @param compression how the values sent by the server connections are compressed
+	 *
+	 * @return a server compressing the values it sends
+	 */
+	public SimpleServer compression(FrameCompression compression) {
+		Objects.requireNonNull(compression, "compression");
+		return new SimpleServer(port,
+				address,
+				compression,
+				resumeTimeout,
+				replaySize,
+				decodeLanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Let clients asking for it resume their connection after a failure, with every
+	 * stream continuing where it stopped.
+	 *
+	 * @param timeout how long a connection waits for its client to reconnect
+	 * @param replaySize the bytes kept by each connection to be sent again once resumed
+	 *
+	 * @return a server keeping the connections of resumable clients
+	 */
+	public SimpleServer resume(Duration timeout, int replaySize) {
+		Objects.requireNonNull(timeout, "timeout");
+		if (replaySize <= 0) {
+			throw new IllegalArgumentException("replaySize must be positive: " + replaySize);
+		}
+		return new SimpleServer(port,
+				address,
+				compression,
+				timeout.toMillis(),
+				replaySize,
+				decodeLanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Decode the serialized objects and long texts the server connections receive on
+	 * several threads, the values of each stream still being delivered in order.
+	 *
+	 * @param lanes the number of decoding threads of each connection
+	 *
+	 * @return a server decoding the values it receives in parallel
+	 */
+	public SimpleServer decodeParallelism(int lanes) {
+		if (lanes <= 0) {
+			throw new IllegalArgumentException("lanes must be positive: " + lanes);
+		}
+		return new SimpleServer(port,
+				address,
+				compression,
+				resumeTimeout,
+				replaySize,
+				lanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Encode the objects and long texts the server sends on several threads, even those
+	 * of a single stream, the values of each stream still being sent in order. Objects
+	 * are then serialized standalone rather than sharing the class descriptors already
+	 * sent on the connection.
+	 *
+	 * @param workers the number of encoding threads of each connection
+	 *
+	 * @return a server encoding the values it sends in parallel
+	 */
+	public SimpleServer encodeParallelism(int workers) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers must be positive: " + workers);
+		}
+		return new SimpleServer(port,
+				address,
+				compression,
+				resumeTimeout,
+				replaySize,
+				decodeLanes,
+				workers,
+				wait,
+				ioThreads);
+	}
+
+	/**
+	 * Run the read and write loops of each connection on dedicated threads waiting
+	 * for work with the given strategy, rather than waking up a shared thread each time.
+	 *
+	 * @param wait how the loops wait for work
+	 *
+	 * @return a server with lower latency loops
+	 */
+	public SimpleServer waitStrategy(WaitStrategy wait) {
+		return waitStrategy(wait, null);
+	}
+
+	/**
+	 * Run the read and write loops of each connection on dedicated threads waiting
+	 * for work with the given strategy, rather than waking up a shared thread each time.
+	 * <p>
+	 * The thread factory is called for the read loop and for the write loop of each
+	 * connection. The JDK offers no thread affinity, a factory can pin the threads to
+	 * isolated cores with a native library.
+	 *
+	 * @param wait how the loops wait for work
+	 * @param ioThreads creates the loop threads, null for default daemon threads
+	 *
+	 * @return a server with lower latency loops
+	 */
+	public SimpleServer waitStrategy(WaitStrategy wait, ThreadFactory ioThreads) {
+		Objects.requireNonNull(wait, "wait");
+		return new SimpleServer(port,
+				address,
+				compression,
+				resumeTimeout,
+				replaySize,
+				decodeLanes,
+				encodeWorkers,
+				wait,
+				ioThreads);
 	}
 
 	@Override
@@ -64,6 +229,8 @@ public final class SimpleServer extends SimplePeer  {
 			ServerSocket ssocket;
 			Scheduler acceptor =
 					Schedulers.newParallel("simple-server-connection", 1, true);
+			Scheduler handshakes =
+					Schedulers.newElastic("simple-server-handshake", 60, true);
 
 			try {
 				if (address == null) {
@@ -74,16 +241,18 @@ public final class SimpleServer extends SimplePeer  {
 				}
 			}
 			catch (IOException e) {
+				acceptor.dispose();
+				handshakes.dispose();
 				sink.error(e);
 				return;
 			}
 
 			AtomicBoolean done = new AtomicBoolean();
 			ServerListening connectedState =
-					new ServerListening(ssocket, done, sink, acceptor);
+					new ServerListening(ssocket, done, sink, acceptor, handshakes);
 			Disposable c =
 					acceptor.schedule(() -> socketAccept(ioHandler, connectedState,
-							acceptor));
+							acceptor, this));
 
 			sink.onCancel(() -> connectedState.close(c));
 		});
@@ -91,9 +260,11 @@ public final class SimpleServer extends SimplePeer  {
 
 	static void socketAccept(
 			BiFunction<? super Inbound<byte[]>, ? super Outbound<byte[]>, ? extends Publisher<Void>> ioHandler,
-			ServerListening connectedState, Scheduler acceptor) {
+			ServerListening connectedState, Scheduler acceptor,
+			SimpleServer server) {
 
 		connectedState.sink.success(connectedState);
+		Map<Long, Session> sessions = new ConcurrentHashMap<>();
 
 			while (!Thread.currentThread()
 			              .isInterrupted() && !acceptor.isDisposed()) {
@@ -111,16 +282,97 @@ public final class SimpleServer extends SimplePeer  {
 				}
 
 				try {
-					SimpleConnection connection = new SimpleConnection(socket, true);
-					Publisher<Void> closing = ioHandler.apply(connection, connection);
-					Flux.from(closing)
-					    .subscribe(null, connection::closeError, connection::close);
+					// a client slow to send its preamble holds its own thread only
+					connectedState.handshakes.schedule(() -> connect(socket,
+							ioHandler,
+							sessions,
+							server));
 				}
-				catch (Throwable ex) {
+				catch (RejectedExecutionException ex) {
 					tryClose(socket);
 				}
+			}
+	}
 
+	/**
+	 * Read the preamble of an accepted client, then resume its session or open a new
+	 * connection.
+	 */
+	static void connect(Socket socket,
+			BiFunction<? super Inbound<byte[]>, ? super Outbound<byte[]>, ? extends Publisher<Void>> ioHandler,
+			Map<Long, Session> sessions,
+			SimpleServer server) {
+		try {
+			Handshake remote = handshake(socket);
+			if (remote == null) {
+				tryClose(socket);
+				return;
+			}
+			if (remote.position >= 0L) {
+				resume(socket, remote, sessions, server);
+				return;
 			}
+			Session session = null;
+			if (remote.session != 0L && server.replaySize > 0) {
+				Session s = new Session(remote.session,
+						socket,
+						server.resumeTimeout,
+						server.replaySize,
+						null,
+						null);
+				if (sessions.putIfAbsent(s.id, s) == null) {
+					s.onClose = () -> sessions.remove(s.id, s);
+					session = s;
+				}
+			}
+			SimpleConnection connection = new SimpleConnection(socket,
+					true,
+					server.compression,
+					remote,
+					session,
+					server.decodeLanes,
+					server.encodeWorkers,
+					server.wait,
+					server.ioThreads);
+			Publisher<Void> closing = ioHandler.apply(connection, connection);
+			Flux.from(closing)
+			    .subscribe(null, connection::closeError, connection::close);
+		}
+		catch (Throwable ex) {
+			log.warn("Connection from {} refused", socket.getRemoteSocketAddress(), ex);
+			tryClose(socket);
+		}
+	}
+
+	/**
+	 * Read the client preamble, giving up after {@link #HANDSHAKE_TIMEOUT}.
+	 *
+	 * @return the client preamble, null if the client closed the connection
+	 */
+	static Handshake handshake(Socket socket) throws IOException {
+		socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+		Handshake remote = Handshake.read(socket.getInputStream(), new byte[256]);
+		socket.setSoTimeout(0);
+		return remote;
+	}
+
+	/**
+	 * Continue a suspended session on the socket of its client, or tell the client it
+	 * expired with a preamble without it.
+	 */
+	static void resume(Socket socket,
+			Handshake remote,
+			Map<Long, Session> sessions,
+			SimpleServer server) throws IOException {
+		Session session = sessions.get(remote.session);
+		if (session == null || !session.resume(socket, remote.position, true)) {
+			Handshake.local(server.compression,
+					SimpleConnection.FRAGMENT_SIZE,
+					SimpleConnection.WINDOW_SIZE,
+					0L)
+			         .write(socket.getOutputStream());
+			tryClose(socket);
+		}
 	}
 
 	static void tryClose(Socket socket) {
@@ -138,15 +390,18 @@ public final class SimpleServer extends SimplePeer  {
 		final AtomicBoolean          done;
 		final MonoSink<Disposable> sink;
 		final Scheduler              acceptor;
+		final Scheduler              handshakes;
 
 		ServerListening(ServerSocket ssocket,
 				AtomicBoolean done,
 				MonoSink<Disposable> sink,
-				Scheduler acceptor) {
+				Scheduler acceptor,
+				Scheduler handshakes) {
 			this.ssocket = ssocket;
 			this.done = done;
 			this.sink = sink;
 			this.acceptor = acceptor;
+			this.handshakes = handshakes;
 		}
 
 		@Override
@@ -162,6 +417,7 @@ public final class SimpleServer extends SimplePeer  {
 		void close(Disposable disposable) {
 			if (done.compareAndSet(false, true)) {
 				acceptor.dispose();
+				handshakes.dispose();
 				if (disposable != null) {
 					disposable.dispose();
 				}
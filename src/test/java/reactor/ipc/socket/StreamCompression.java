@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Connection-level compression: everything a peer writes after its preamble goes
+ * through a single zlib stream, so frames are compressed against all the frames sent
+ * before them.
+ * <p>
+ * The stream is sync-flushed at every {@link FrameWriter#flush()}, so each batch of
+ * frames can be decoded as soon as it is received. When a preset dictionary is
+ * configured it seeds the stream and the remote must be configured with the same one,
+ * which is checked with its Adler-32 identifier.
+ */
+final class StreamCompression {
+
+	/**
+	 * Deflates the outbound stream, only used from the write thread.
+	 */
+	static final class Output extends OutputStream {
+
+		final OutputStream     out;
+		final Deflater         deflater;
+		final FrameCompression settings;
+		final byte[]           buffer;
+
+		long read;
+		long written;
+
+		Output(OutputStream out, FrameCompression settings) {
+			this.out = out;
+			this.settings = settings;
+			this.deflater = new Deflater(settings.level);
+			this.buffer = new byte[8192];
+			if (settings.dictionary != null) {
+				deflater.setDictionary(settings.dictionary);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput()) {
+				deflate(Deflater.NO_FLUSH);
+			}
+			settings.compressNanos.add(System.nanoTime() - start);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = System.nanoTime();
+			while (deflate(Deflater.SYNC_FLUSH) == buffer.length) {
+				// the buffer was filled, there may be more to flush
+			}
+			settings.compressNanos.add(System.nanoTime() - start);
+			long r = deflater.getBytesRead();
+			long w = deflater.getBytesWritten();
+			settings.uncompressedBytes.add(r - read);
+			settings.compressedBytes.add(w - written);
+			read = r;
+			written = w;
+			out.flush();
+		}
+
+		int deflate(int mode) throws IOException {
+			int n = deflater.deflate(buffer, 0, buffer.length, mode);
+			if (n > 0) {
+				out.write(buffer, 0, n);
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	/**
+	 * Inflates the inbound stream, only used from the read thread.
+	 */
+	static final class Input extends InputStream {
+
+		final InputStream      in;
+		final Inflater         inflater;
+		final FrameCompression settings;
+		final byte[]           buffer;
+
+		Input(InputStream in, FrameCompression settings) {
+			this.in = in;
+			this.settings = settings;
+			this.inflater = new Inflater();
+			this.buffer = new byte[8192];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			for (; ; ) {
+				int n;
+				long start = System.nanoTime();
+				try {
+					n = inflater.inflate(b, off, len);
+				}
+				catch (DataFormatException ex) {
+					throw new IOException(ex);
+				}
+				finally {
+					settings.decompressNanos.add(System.nanoTime() - start);
+				}
+				if (n > 0) {
+					return n;
+				}
+				if (inflater.finished()) {
+					return -1;
+				}
+				if (inflater.needsDictionary()) {
+					byte[] dictionary = settings.dictionary;
+					if (dictionary == null) {
+						throw new IOException("The remote stream requires a preset dictionary");
+					}
+					Adler32 id = new Adler32();
+					id.update(dictionary);
+					if ((int) id.getValue() != inflater.getAdler()) {
+						throw new IOException("The remote stream uses a different preset dictionary");
+					}
+					inflater.setDictionary(dictionary);
+				}
+				else if (inflater.needsInput()) {
+					int r = in.read(buffer, 0, buffer.length);
+					if (r < 0) {
+						return -1;
+					}
+					inflater.setInput(buffer, 0, r);
+				}
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			// compressed bytes already received may not inflate to any, yet worth a read
+			return inflater.getRemaining() > 0 ? 1 : in.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
+	}
+
+	private StreamCompression() {
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 encoding and decoding over byte arrays.
+ * <p>
+ * Both directions first run a tight loop over the leading ASCII characters, which is
+ * all of most function names and reasons, before falling back to the general case.
+ * Supplementary characters are encoded from and decoded to surrogate pairs, unpaired
+ * surrogates are encoded as {@code '?'} and each maximal malformed subsequence of the
+ * input is decoded as one U+FFFD.
+ */
+final class Utf8 {
+
+	static final char REPLACEMENT = '\uFFFD';
+
+	/**
+	 * @param s the text to measure
+	 *
+	 * @return the number of bytes {@link #encode(CharSequence, byte[], int)} writes
+	 */
+	static int encodedLength(CharSequence s) {
+		int n = s.length();
+		int i = 0;
+		while (i < n && s.charAt(i) < 0x80) {
+			i++;
+		}
+		int len = i;
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				len++;
+			}
+			else if (c < 0x800) {
+				len += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(
+					s.charAt(i + 1))) {
+				len += 4;
+				i++;
+			}
+			else if (Character.isSurrogate(c)) {
+				len++;
+			}
+			else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	/**
+	 * Encode the text into the array, which must have room for
+	 * {@link #encodedLength(CharSequence)} bytes.
+	 *
+	 * @param s the text to encode
+	 * @param b the array to write to
+	 * @param offset the index of the first byte to write
+	 *
+	 * @return the index after the last byte written
+	 */
+	static int encode(CharSequence s, byte[] b, int offset) {
+		int n = s.length();
+		int i = 0;
+		char c;
+		while (i < n && (c = s.charAt(i)) < 0x80) {
+			b[offset++] = (byte) c;
+			i++;
+		}
+		for (; i < n; i++) {
+			c = s.charAt(i);
+			if (c < 0x80) {
+				b[offset++] = (byte) c;
+			}
+			else if (c < 0x800) {
+				b[offset++] = (byte) (0b1100_0000 | (c >> 6));
+				b[offset++] = (byte) (0b1000_0000 | (c & 0b11_1111));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(
+					s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				b[offset++] = (byte) (0b1111_0000 | (cp >> 18));
+				b[offset++] = (byte) (0b1000_0000 | ((cp >> 12) & 0b11_1111));
+				b[offset++] = (byte) (0b1000_0000 | ((cp >> 6) & 0b11_1111));
+				b[offset++] = (byte) (0b1000_0000 | (cp & 0b11_1111));
+			}
+			else if (Character.isSurrogate(c)) {
+				b[offset++] = '?';
+			}
+			else {
+				b[offset++] = (byte) (0b1110_0000 | (c >> 12));
+				b[offset++] = (byte) (0b1000_0000 | ((c >> 6) & 0b11_1111));
+				b[offset++] = (byte) (0b1000_0000 | (c & 0b11_1111));
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @param s the text to encode, may be null
+	 *
+	 * @return the encoded text, empty if null
+	 */
+	static byte[] encode(CharSequence s) {
+		if (s == null || s.length() == 0) {
+			return ByteArrayStreamProtocol.EMPTY;
+		}
+		byte[] b = new byte[encodedLength(s)];
+		encode(s, b, 0);
+		return b;
+	}
+
+	/**
+	 * @param b the array to decode from
+	 * @param offset the index of the first byte
+	 * @param length the number of bytes to decode
+	 *
+	 * @return the decoded text
+	 */
+	static String decode(byte[] b, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		while (i < end && b[i] >= 0) {
+			i++;
+		}
+		if (i == end) {
+			return new String(b, offset, length, StandardCharsets.ISO_8859_1);
+		}
+
+		char[] chars = new char[length];
+		int n = 0;
+		for (int j = offset; j < i; j++) {
+			chars[n++] = (char) b[j];
+		}
+
+		while (i < end) {
+			int b0 = b[i++] & 0xFF;
+			if (b0 < 0x80) {
+				chars[n++] = (char) b0;
+				continue;
+			}
+			// the range of the second byte excludes overlong forms, surrogates and
+			// code points past U+10FFFF
+			int need;
+			int cp;
+			int lower = 0x80;
+			int upper = 0xBF;
+			if (b0 >= 0xC2 && b0 <= 0xDF) {
+				need = 1;
+				cp = b0 & 0b1_1111;
+			}
+			else if (b0 >= 0xE0 && b0 <= 0xEF) {
+				need = 2;
+				cp = b0 & 0b1111;
+				if (b0 == 0xE0) {
+					lower = 0xA0;
+				}
+				else if (b0 == 0xED) {
+					upper = 0x9F;
+				}
+			}
+			else if (b0 >= 0xF0 && b0 <= 0xF4) {
+				need = 3;
+				cp = b0 & 0b111;
+				if (b0 == 0xF0) {
+					lower = 0x90;
+				}
+				else if (b0 == 0xF4) {
+					upper = 0x8F;
+				}
+			}
+			else {
+				chars[n++] = REPLACEMENT;
+				continue;
+			}
+			// a truncated sequence is replaced once, the byte ending it is decoded anew
+			for (; need != 0 && i < end; need--) {
+				int c = b[i] & 0xFF;
+				if (c < lower || c > upper) {
+					break;
+				}
+				cp = (cp << 6) | (c & 0b11_1111);
+				lower = 0x80;
+				upper = 0xBF;
+				i++;
+			}
+			if (need != 0) {
+				chars[n++] = REPLACEMENT;
+			}
+			else if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				chars[n++] = (char) cp;
+			}
+			else {
+				chars[n++] = Character.highSurrogate(cp);
+				chars[n++] = Character.lowSurrogate(cp);
+			}
+		}
+
+		return new String(chars, 0, n);
+	}
+
+	private Utf8() {
+	}
+}
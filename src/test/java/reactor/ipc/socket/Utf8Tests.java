@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Utf8Tests {
+
+	static final String R = String.valueOf(Utf8.REPLACEMENT);
+
+	@Test
+	public void roundTrip() {
+		String[] texts = {"",
+				"function",
+				"café",
+				"€ 100",
+				"😀",
+				"a𝄞b😀c",
+				"\u007f\u0080߿ࠀ￿𐀀􏿿"};
+		for (String text : texts) {
+			byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+			assertEquals(text, expected.length, Utf8.encodedLength(text));
+			assertArrayEquals(text, expected, Utf8.encode(text));
+			assertEquals(text, Utf8.decode(expected, 0, expected.length));
+		}
+	}
+
+	@Test
+	public void supplementaryCharacters() {
+		String text = new StringBuilder().appendCodePoint(0x1F600)
+		                                 .appendCodePoint(Character.MAX_CODE_POINT)
+		                                 .toString();
+		byte[] b = Utf8.encode(text);
+		assertArrayEquals(bytes(0xF0, 0x9F, 0x98, 0x80, 0xF4, 0x8F, 0xBF, 0xBF), b);
+		assertEquals(text, Utf8.decode(b, 0, b.length));
+	}
+
+	@Test
+	public void unpairedSurrogates() {
+		assertEncoded("a?b", "a\ud83db");
+		assertEncoded("a?b", "a\ude00b");
+		assertEncoded("a?", "a\ud83d");
+		assertEncoded("??", "\ude00\ud83d");
+		assertEncoded("?😀", "\ud83d😀");
+	}
+
+	@Test
+	public void overlongSequences() {
+		assertDecoded(R + R, 0xC0, 0x80);
+		assertDecoded(R + R, 0xC1, 0xBF);
+		assertDecoded(R + R + R, 0xE0, 0x80, 0x80);
+		assertDecoded(R + R + R, 0xE0, 0x9F, 0xBF);
+		assertDecoded(R + R + R + R, 0xF0, 0x8F, 0xBF, 0xBF);
+	}
+
+	@Test
+	public void invalidCodePoints() {
+		// encoded surrogates
+		assertDecoded(R + R + R, 0xED, 0xA0, 0x80);
+		// past U+10FFFF
+		assertDecoded(R + R + R + R, 0xF4, 0x90, 0x80, 0x80);
+		assertDecoded(R + R + R + R, 0xF5, 0x80, 0x80, 0x80);
+		assertDecoded(R + R, 0xFF, 0xFE);
+		// lone continuation
+		assertDecoded("a" + R + "b", 'a', 0x80, 'b');
+	}
+
+	@Test
+	public void truncatedSequences() {
+		assertDecoded(R, 0xC3);
+		assertDecoded(R + "a", 0xC3, 'a');
+		assertDecoded(R, 0xE2, 0x82);
+		assertDecoded("a" + R + "b", 'a', 0xE2, 0x82, 'b');
+		assertDecoded(R, 0xF0, 0x9F, 0x98);
+		assertDecoded(R + "é", 0xF0, 0x9F, 0xC3, 0xA9);
+	}
+
+	@Test
+	public void asciiFastPath() {
+		byte[] b = "--plain ascii \u007f--".getBytes(StandardCharsets.US_ASCII);
+		assertEquals("plain ascii \u007f", Utf8.decode(b, 2, b.length - 4));
+		assertEquals("", Utf8.decode(b, 2, 0));
+
+		// the ascii prefix is copied before decoding the rest
+		b = "ascii then é".getBytes(StandardCharsets.UTF_8);
+		assertEquals("ascii then é", Utf8.decode(b, 0, b.length));
+		assertEquals("then", Utf8.decode(b, 6, 4));
+	}
+
+	static void assertEncoded(String expected, String text) {
+		byte[] b = Utf8.encode(text);
+		assertEquals(expected, new String(b, StandardCharsets.UTF_8));
+		assertEquals(b.length, Utf8.encodedLength(text));
+	}
+
+	static void assertDecoded(String expected, int... values) {
+		byte[] b = bytes(values);
+		assertEquals(expected, Utf8.decode(b, 0, b.length));
+	}
+
+	static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			b[i] = (byte) values[i];
+		}
+		return b;
+	}
+}
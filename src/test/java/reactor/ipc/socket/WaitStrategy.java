@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.socket;
+
+/**
+ * How the dedicated read and write loops of a connection wait for work, trading CPU
+ * for wake-up latency.
+ * <p>
+ * The write loop checks for frames to send between waits. The read loop polls the
+ * socket for received bytes before blocking in a read, at most
+ * {@link FrameReader#MAX_POLLS} times so an idle or closed connection still ends up
+ * blocked.
+ */
+public enum WaitStrategy {
+
+	/**
+	 * Never give up the CPU, for the lowest latency at the cost of a core per loop.
+	 */
+	BUSY_SPIN {
+		@Override
+		boolean idle(int round) {
+			return true;
+		}
+	},
+
+	/**
+	 * Spin for a while, then yield to the other threads between checks.
+	 */
+	YIELD {
+		@Override
+		boolean idle(int round) {
+			if (round >= SPINS) {
+				Thread.yield();
+			}
+			return true;
+		}
+	},
+
+	/**
+	 * Spin, then yield for a while, then park until woken by new work.
+	 */
+	PARK {
+		@Override
+		boolean idle(int round) {
+			if (round < SPINS) {
+				return true;
+			}
+			if (round < SPINS + YIELDS) {
+				Thread.yield();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	static final int SPINS  = 100;
+	static final int YIELDS = 100;
+
+	/**
+	 * Wait a little after finding no work.
+	 *
+	 * @param round the number of consecutive checks that found no work
+	 *
+	 * @return false if the loop should block until woken instead
+	 */
+	abstract boolean idle(int round);
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a {@link StreamOperationsImpl} serving an API by hand, the frames it sends
+ * recorded by a {@link RecordingOutbound}.
+ */
+public class StreamOperationsTests {
+
+	public static final class LimitedServerAPI {
+
+		@Ipc
+		@IpcLimit(1)
+		public void receive(StreamContext<?> ctx, Publisher<Integer> values) {
+			Flux.from(values)
+			    .subscribe();
+		}
+
+		@Ipc
+		@IpcLimit(1)
+		public Publisher<Integer> map(StreamContext<?> ctx, Publisher<Integer> values) {
+			return Flux.from(values);
+		}
+	}
+
+	public static final class SlowServerAPI {
+
+		@Ipc
+		public Publisher<Integer> values(StreamContext<?> ctx) {
+			return Flux.range(1, 10);
+		}
+	}
+
+	public interface ClientAPI {
+
+		@Ipc
+		Flux<Integer> values();
+
+		@Ipc
+		Flux<Integer> map(Publisher<Integer> values);
+	}
+
+	@Test
+	public void cancelledBeforeOpening() {
+		Map<String, Object> functions = IpcServiceMapper.clientServiceMap(ClientAPI.class);
+		IpcServiceMapper.IpcClientReceive values =
+				(IpcServiceMapper.IpcClientReceive) functions.get("values");
+		IpcServiceMapper.IpcClientMap map = (IpcServiceMapper.IpcClientMap) functions.get("map");
+		RecordingOutbound remote = new RecordingOutbound();
+		StreamOperationsImpl<Object, Object> io = connect(remote);
+
+		// cancelled from onSubscribe, before the stream is opened
+		values.receive("values", io)
+		      .subscribe(new CancelOnSubscribe());
+		map.map("map", Flux.just(1), io)
+		   .subscribe(new CancelOnSubscribe());
+		assertEquals(Arrays.asList("forget 1", "forget 2"), remote.frames);
+		assertTrue(io.subscribers.isEmpty());
+		assertTrue(io.subscriptions.isEmpty());
+		remote.frames.clear();
+
+		Disposable opened = Flux.from(values.receive("values", io))
+		                        .subscribe();
+		opened.dispose();
+		assertEquals(Arrays.asList("new 3 values",
+				"request 3 " + Long.MAX_VALUE,
+				"forget 3",
+				"cancel 3 "), remote.frames);
+		assertTrue(io.subscribers.isEmpty());
+	}
+
+	@Test
+	public void expiredStreamsReleasePermits() {
+		LimitedServerAPI api = new LimitedServerAPI();
+		Map<String, StreamLimiter> limits = IpcServiceMapper.serverLimits(api);
+		RecordingOutbound remote = new RecordingOutbound();
+		StreamOperationsImpl<Object, Object> io = serve(api, limits, remote, -1L);
+
+		long streamId = 1L;
+		for (String function : new String[]{"receive", "map"}) {
+			for (int i = 0; i < 3; i++) {
+				io.onNew(streamId, function, 100L);
+				assertTrue(remote.frames.toString(),
+						remote.sent("cancel " + streamId + " Stream " + streamId + " deadline exceeded"));
+				streamId++;
+			}
+			assertEquals(function, 0, limits.get(function).inflight.get());
+
+			// a stream within its budget still fits in the limit
+			io.onNew(streamId, function, 0L);
+			assertEquals(function, 1, limits.get(function).inflight.get());
+			streamId++;
+		}
+		assertFalse(remote.frames.toString(), remote.sent("overloaded"));
+	}
+
+	@Test
+	public void deadlineWhileSending() throws Exception {
+		SlowServerAPI api = new SlowServerAPI();
+		RecordingOutbound remote = new RecordingOutbound();
+		remote.sending = new CountDownLatch(1);
+		StreamOperationsImpl<Object, Object> io =
+				serve(api, IpcServiceMapper.serverLimits(api), remote, 60_000L);
+
+		io.onNew(1L, "values", 60_000L);
+		IpcServiceMapper.DeadlineSendSubscriber sender =
+				(IpcServiceMapper.DeadlineSendSubscriber) io.subscriptions.get(1L);
+		Thread producer = new Thread(() -> io.onRequested(1L, 1L));
+		producer.start();
+
+		// the timer fires while the first value is being sent
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (sender.state.get() != IpcServiceMapper.DeadlineSendSubscriber.SENDING) {
+			assertTrue("no value sent", System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+		sender.run();
+		assertEquals(IpcServiceMapper.DeadlineSendSubscriber.EXPIRED, sender.state.get());
+		assertTrue(remote.frames.toString(), remote.frames.isEmpty());
+		remote.sending.countDown();
+		producer.join(5000);
+
+		// a value racing in after the stream ended is dropped
+		sender.onNext(2);
+		assertEquals(Arrays.asList("next 1 1",
+				"purge 1",
+				"error 1 java.util.concurrent.TimeoutException: Stream 1 deadline exceeded",
+				"forget 1"), remote.frames);
+	}
+
+	/**
+	 * @return the operations of a client, refusing the streams the remote opens
+	 */
+	static StreamOperationsImpl<Object, Object> connect(StreamOutbound remote) {
+		return new StreamOperationsImpl<>("client",
+				(streamId, function, timeout, io) -> false,
+				null,
+				Collections.emptyMap(),
+				remote,
+				null,
+				() -> {
+				});
+	}
+
+	/**
+	 * @param budget the time left to the streams opened with a time budget, negative
+	 * if they arrive past their deadline
+	 *
+	 * @return the operations of a server
+	 */
+	static StreamOperationsImpl<Object, Object> serve(Object api,
+			Map<String, StreamLimiter> limits,
+			StreamOutbound remote,
+			long budget) {
+		Map<String, Object> functions = IpcServiceMapper.serverServiceMap(api);
+		StreamContextImpl<Object> ctx = new StreamContextImpl<>(null);
+		return new StreamOperationsImpl<>("server",
+				(streamId, function, timeout, io) -> IpcServiceMapper.dispatchServer(streamId,
+						functions.get(function),
+						io,
+						timeout > 0L ?
+								new DeadlineStreamContext<>(ctx,
+										System.currentTimeMillis() + budget) : ctx),
+				IpcServiceMapper.connectionLimit(api),
+				limits,
+				remote,
+				null,
+				() -> {
+				});
+	}
+
+	static final class CancelOnSubscribe extends BaseSubscriber<Object> {
+
+		@Override
+		protected void hookOnSubscribe(Subscription subscription) {
+			cancel();
+		}
+	}
+
+	/**
+	 * Records the frames sent to the remote.
+	 */
+	static final class RecordingOutbound implements StreamOutbound {
+
+		final List<String> frames = new CopyOnWriteArrayList<>();
+
+		/**
+		 * Holds the values being sent until counted down, null to send them right away.
+		 */
+		volatile CountDownLatch sending;
+
+		boolean sent(String prefix) {
+			for (String frame : frames) {
+				if (frame.startsWith(prefix)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void sendNew(long streamId, String function) {
+			frames.add("new " + streamId + " " + function);
+		}
+
+		@Override
+		public void sendCancel(long streamId, String reason) {
+			frames.add("cancel " + streamId + " " + reason);
+		}
+
+		@Override
+		public void sendOverloaded(long streamId, String reason) {
+			frames.add("overloaded " + streamId + " " + reason);
+		}
+
+		@Override
+		public void sendNext(long streamId, Object o) {
+			CountDownLatch latch = sending;
+			if (latch != null) {
+				try {
+					latch.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread()
+					      .interrupt();
+				}
+			}
+			frames.add("next " + streamId + " " + o);
+		}
+
+		@Override
+		public void purge(long streamId) {
+			frames.add("purge " + streamId);
+		}
+
+		@Override
+		public void forget(long streamId) {
+			frames.add("forget " + streamId);
+		}
+
+		@Override
+		public void sendError(long streamId, Throwable e) {
+			frames.add("error " + streamId + " " + e);
+		}
+
+		@Override
+		public void sendComplete(long streamId) {
+			frames.add("complete " + streamId);
+		}
+
+		@Override
+		public void sendRequested(long streamId, long n) {
+			frames.add("request " + streamId + " " + n);
+		}
+
+		@Override
+		public boolean isClosed() {
+			return false;
+		}
+	}
+}
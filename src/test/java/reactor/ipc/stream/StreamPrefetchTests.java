@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011-2017 Pivotal Software Inc, All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package reactor.ipc.stream;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.Exceptions;
+import reactor.core.publisher.BaseSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds a {@link StreamPrefetch.PrefetchSubscriber} by hand, as the remote of a
+ * received stream would.
+ */
+public class StreamPrefetchTests {
+
+	@Test
+	public void adaptiveOverflow() {
+		Recorder local = new Recorder(1L);
+		RemoteSubscription remote = new RemoteSubscription();
+		StreamPrefetch.PrefetchSubscriber prefetch = new StreamPrefetch.PrefetchSubscriber(local,
+				new StreamPrefetch(4, 75, true, 2, 8));
+		prefetch.onSubscribe(remote);
+		assertEquals(4L, remote.requested);
+
+		for (int i = 0; i < 4; i++) {
+			prefetch.onNext(i);
+		}
+		assertTrue(local.error == null);
+
+		// within the queue, but beyond the demand issued
+		prefetch.onNext(4);
+		assertTrue(remote.cancelled);
+
+		// the values requested in time are still delivered ahead of the error
+		local.request(10L);
+		assertEquals(Arrays.asList(0, 1, 2, 3), local.values);
+		assertTrue(String.valueOf(local.error), Exceptions.isOverflow(local.error));
+	}
+
+	@Test
+	public void adaptiveUnbounded() {
+		Recorder local = new Recorder(Long.MAX_VALUE);
+		RemoteSubscription remote = new RemoteSubscription();
+		StreamPrefetch.PrefetchSubscriber prefetch = new StreamPrefetch.PrefetchSubscriber(local,
+				new StreamPrefetch(4, 75, true, 2, 8));
+		prefetch.onSubscribe(remote);
+		assertEquals(Long.MAX_VALUE, remote.requested);
+
+		for (int i = 0; i < 100; i++) {
+			prefetch.onNext(i);
+		}
+		assertTrue(local.error == null);
+		assertEquals(100, local.values.size());
+	}
+
+	static final class RemoteSubscription implements Subscription {
+
+		long    requested;
+		boolean cancelled;
+
+		@Override
+		public void request(long n) {
+			requested = n == Long.MAX_VALUE ? n : requested + n;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	static final class Recorder extends BaseSubscriber<Object> {
+
+		final List<Object> values = new CopyOnWriteArrayList<>();
+		final long         initial;
+
+		volatile Throwable error;
+
+		Recorder(long initial) {
+			this.initial = initial;
+		}
+
+		@Override
+		protected void hookOnSubscribe(Subscription subscription) {
+			request(initial);
+		}
+
+		@Override
+		protected void hookOnNext(Object value) {
+			values.add(value);
+		}
+
+		@Override
+		protected void hookOnError(Throwable throwable) {
+			error = throwable;
+		}
+	}
+}